@@ -0,0 +1,71 @@
+package org.graylog;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.apache.qpid.server.Broker;
+import org.apache.qpid.server.BrokerOptions;
+
+import com.google.common.io.Files;
+
+/**
+ * An in-process Qpid broker speaking AMQP 0-9-1 with a memory store. It
+ * listens on the same port across restarts, so clients see a restart the
+ * way they would see one of a real broker.
+ */
+public class EmbeddedBroker {
+	public static final String USER = "guest";
+	public static final String PASSWORD = "guest";
+	public static final String VIRTUAL_HOST = "/sensu";
+
+	private final int port;
+	private final File workDirectory;
+	private Broker broker;
+
+	public EmbeddedBroker() throws IOException {
+		this.port = freePort();
+		this.workDirectory = Files.createTempDir();
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public synchronized void start() throws Exception {
+		URL config = EmbeddedBroker.class.getResource("/qpid-embedded.json");
+		BrokerOptions options = new BrokerOptions();
+		options.setInitialConfigurationLocation(config.toExternalForm());
+		options.setConfigurationStoreType("Memory");
+		options.setConfigProperty("qpid.amqp_port", Integer.toString(port));
+		options.setConfigProperty("qpid.work_dir", workDirectory.getAbsolutePath());
+		options.setStartupLoggedToSystemOut(false);
+
+		broker = new Broker();
+		broker.startup(options);
+	}
+
+	public synchronized void stop() {
+		if (broker != null) {
+			broker.shutdown();
+			broker = null;
+		}
+	}
+
+	/**
+	 * Stops the broker, which drops every connection and all queued
+	 * messages, and starts it again after the given pause.
+	 */
+	public void restart(long downtimeMillis) throws Exception {
+		stop();
+		Thread.sleep(downtimeMillis);
+		start();
+	}
+
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.graylog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TCP forwarder between the plugin and the embedded broker. It can cut every
+ * open connection, like a network failure or a load balancer failover, and
+ * stall traffic in both directions, like a broker that stopped reading from
+ * its sockets under memory or disk alarms.
+ */
+public class FaultInjectingProxy implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(FaultInjectingProxy.class);
+
+	private final int targetPort;
+	private final ServerSocket serverSocket;
+	private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+	private final Object pauseLock = new Object();
+	private volatile boolean paused;
+	private volatile boolean closed;
+
+	public FaultInjectingProxy(int targetPort) throws IOException {
+		this.targetPort = targetPort;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "fault-injecting-proxy-" + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Closes every open connection. New connections are still accepted.
+	 */
+	public void dropConnections() {
+		for (Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+	}
+
+	public void pause() {
+		paused = true;
+	}
+
+	public void resume() {
+		synchronized (pauseLock) {
+			paused = false;
+			pauseLock.notifyAll();
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		resume();
+		closeQuietly(serverSocket);
+		dropConnections();
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket client = serverSocket.accept();
+				Socket broker;
+				try {
+					broker = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+				} catch (IOException e) {
+					// broker is down, the client sees a refused connection
+					closeQuietly(client);
+					continue;
+				}
+				client.setTcpNoDelay(true);
+				broker.setTcpNoDelay(true);
+				sockets.add(client);
+				sockets.add(broker);
+				pump(client, broker);
+				pump(broker, client);
+			} catch (IOException e) {
+				if (!closed) {
+					LOG.warn("Accepting a connection on port {} failed", getPort(), e);
+				}
+			}
+		}
+	}
+
+	private void pump(final Socket from, final Socket to) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[16 * 1024];
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						awaitResumed();
+						out.write(buffer, 0, read);
+						out.flush();
+					}
+				} catch (IOException | InterruptedException e) {
+					// one side went away, tear down the pair below
+				} finally {
+					sockets.remove(from);
+					sockets.remove(to);
+					closeQuietly(from);
+					closeQuietly(to);
+				}
+			}
+		}, "fault-injecting-proxy-pump");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void awaitResumed() throws InterruptedException {
+		if (!paused) {
+			return;
+		}
+		synchronized (pauseLock) {
+			while (paused) {
+				pauseLock.wait();
+			}
+		}
+	}
+
+	private static void closeQuietly(AutoCloseable closeable) {
+		try {
+			closeable.close();
+		} catch (Exception e) {
+			// already closed
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.graylog;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Plays the Sensu server: consumes the results queue straight from the
+ * broker and records which results arrived. Results are told apart by a
+ * {@code result-<n>} marker in their output. It declares the same topology
+ * as the plugin and recovers it after a broker restart.
+ */
+public class ResultsConsumer implements AutoCloseable {
+	private static final Pattern RESULT_ID = Pattern.compile("result-(\\d+)");
+
+	private final Set<Integer> received = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger deliveries = new AtomicInteger();
+	private final Connection connection;
+	private volatile long delayMillis;
+
+	public ResultsConsumer(int port) throws Exception {
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setUsername(EmbeddedBroker.USER);
+		factory.setPassword(EmbeddedBroker.PASSWORD);
+		factory.setVirtualHost(EmbeddedBroker.VIRTUAL_HOST);
+		factory.setPort(port);
+		factory.setAutomaticRecoveryEnabled(true);
+		factory.setTopologyRecoveryEnabled(true);
+		factory.setNetworkRecoveryInterval(500);
+		connection = factory.newConnection();
+
+		final Channel channel = connection.createChannel();
+		new SensuTopology().ensureDeclared(channel);
+		channel.basicQos(100);
+		channel.basicConsume(SensuTopology.RESULTS, false, new DefaultConsumer(channel) {
+			@Override
+			public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+					throws IOException {
+				long delay = delayMillis;
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				record(new String(body, StandardCharsets.UTF_8));
+				channel.basicAck(envelope.getDeliveryTag(), false);
+			}
+		});
+	}
+
+	/**
+	 * Slows down every delivery, like a Sensu server that cannot keep up.
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public int getReceived() {
+		return received.size();
+	}
+
+	public int getDeliveries() {
+		return deliveries.get();
+	}
+
+	public boolean hasReceived(int id) {
+		return received.contains(id);
+	}
+
+	/**
+	 * Waits until every result id below {@code count} arrived.
+	 */
+	public boolean awaitAll(int count, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (received.size() < count) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.sleep(20);
+		}
+		return true;
+	}
+
+	public int countMissing(int count) {
+		int missing = 0;
+		for (int id = 0; id < count; id++) {
+			if (!received.contains(id)) {
+				missing++;
+			}
+		}
+		return missing;
+	}
+
+	@Override
+	public void close() throws IOException {
+		connection.abort();
+	}
+
+	private void record(String result) {
+		deliveries.incrementAndGet();
+		Matcher matcher = RESULT_ID.matcher(result);
+		if (matcher.find()) {
+			received.add(Integer.parseInt(matcher.group(1)));
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package org.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.plugin.MessageSummary;
+import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.streams.Stream;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes through the real callback, connection pool and spool to an
+ * embedded broker while faults are injected, and checks that every result
+ * reaches the results queue and that alert processing stays within the
+ * latency budget. Results may arrive more than once, they must not get lost.
+ */
+public class SensuPublishIT {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuPublishIT.class);
+
+	private static final long LATENCY_BUDGET_MILLIS = Long.getLong("it.latencyBudget", 250);
+	private static final long DELIVERY_TIMEOUT_SECONDS = 60;
+
+	private static EmbeddedBroker broker;
+
+	@Rule
+	public TemporaryFolder spoolFolder = new TemporaryFolder();
+
+	private FaultInjectingProxy proxy;
+	private ResultsConsumer consumer;
+	private Stream stream;
+
+	@BeforeClass
+	public static void startBroker() throws Exception {
+		broker = new EmbeddedBroker();
+		broker.start();
+	}
+
+	@AfterClass
+	public static void stopBroker() {
+		broker.stop();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		// a proxy per test gives every test its own pooled plugin connection
+		proxy = new FaultInjectingProxy(broker.getPort());
+		consumer = new ResultsConsumer(broker.getPort());
+
+		stream = mock(Stream.class);
+		when(stream.getId()).thenReturn("it-stream-id");
+		when(stream.getTitle()).thenReturn("it stream");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (consumer != null) {
+			consumer.close();
+		}
+		if (proxy != null) {
+			proxy.close();
+		}
+	}
+
+	@Test
+	public void testThroughputAndLatency() throws Exception {
+		SensuAlarmCallback callback = createCallback(publisherConfirms());
+		int count = 2000;
+
+		long started = System.nanoTime();
+		long[] latencies = burst(callback, 0, count);
+		assertDelivered(count);
+		long elapsed = System.nanoTime() - started;
+
+		report("throughput", latencies, count * TimeUnit.SECONDS.toNanos(1) / elapsed);
+		assertWithinBudget(latencies);
+	}
+
+	@Test
+	public void testBrokerRestartMidBurst() throws Exception {
+		SensuAlarmCallback callback = createCallback(spool(publisherConfirms()));
+		int count = 600;
+
+		long[] latencies = burst(callback, 0, count / 3);
+		// results the broker still holds in memory die with it, which is not
+		// something a publisher can prevent
+		assertTrue(consumer.awaitAll(count / 3, DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		broker.stop();
+		Thread restart = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(2000);
+					broker.start();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		restart.start();
+		try {
+			latencies = concat(latencies, burst(callback, count / 3, count));
+		} finally {
+			restart.join();
+		}
+
+		assertDelivered(count);
+		report("broker restart", latencies, 0);
+	}
+
+	@Test
+	public void testClusterNodeFailure() throws Exception {
+		EmbeddedBroker secondNode = new EmbeddedBroker();
+		secondNode.start();
+		ResultsConsumer secondConsumer = new ResultsConsumer(secondNode.getPort());
+		boolean firstNodeStopped = false;
+		try {
+			Map<String, Object> config = spool(publisherConfirms());
+			config.put("rabbitmq_hostname", "localhost:" + proxy.getPort() + ",localhost:" + secondNode.getPort());
+			SensuAlarmCallback callback = createCallback(config);
+			int count = 600;
+
+			long[] latencies = burst(callback, 0, count / 3);
+			assertEquals(0, awaitAll(count / 3, consumer, secondConsumer));
+			// stop whichever node the plugin is connected to
+			if (consumer.getReceived() > 0) {
+				broker.stop();
+				firstNodeStopped = true;
+			} else {
+				secondNode.stop();
+			}
+			latencies = concat(latencies, burst(callback, count / 3, count));
+
+			assertEquals("results lost", 0, awaitAll(count, consumer, secondConsumer));
+			report("cluster node failure", latencies, 0);
+			assertWithinBudget(latencies);
+		} finally {
+			secondConsumer.close();
+			secondNode.stop();
+			if (firstNodeStopped) {
+				broker.start();
+			}
+		}
+	}
+
+	@Test
+	public void testConnectionDropsMidBurst() throws Exception {
+		SensuAlarmCallback callback = createCallback(spool(publisherConfirms()));
+		int count = 1000;
+
+		long[] latencies = new long[0];
+		for (int from = 0; from < count; from += 200) {
+			latencies = concat(latencies, burst(callback, from, from + 200));
+			proxy.dropConnections();
+		}
+
+		assertDelivered(count);
+		report("connection drops", latencies, 0);
+	}
+
+	@Test
+	public void testBlockedBrokerDoesNotBlockAsyncAlerts() throws Exception {
+		Map<String, Object> config = spool(publisherConfirms());
+		config.put("async_enabled", true);
+		SensuAlarmCallback callback = createCallback(config);
+		int count = 500;
+
+		long[] latencies = burst(callback, 0, 100);
+		assertTrue(consumer.awaitAll(100, DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		proxy.pause();
+		try {
+			latencies = concat(latencies, burst(callback, 100, count));
+			Thread.sleep(2000);
+			assertTrue(consumer.getReceived() <= 100);
+		} finally {
+			proxy.resume();
+		}
+
+		assertDelivered(count);
+		report("blocked broker", latencies, 0);
+		assertWithinBudget(latencies);
+	}
+
+	@Test
+	public void testSlowConsumer() throws Exception {
+		SensuAlarmCallback callback = createCallback(publisherConfirms());
+		consumer.setDelayMillis(2);
+		int count = 1000;
+
+		long[] latencies = burst(callback, 0, count);
+		assertTrue(consumer.getReceived() < count);
+
+		assertDelivered(count);
+		report("slow consumer", latencies, 0);
+		assertWithinBudget(latencies);
+	}
+
+	private Map<String, Object> publisherConfirms() {
+		Map<String, Object> config = new HashMap<>();
+		config.put("check_name", "it_check");
+		config.put("check_client", "it_client");
+		config.put("check_handlers", "default");
+		config.put("check_severity", "2");
+		config.put("check_subscribers", "");
+		config.put("check_tags", "");
+		config.put("rabbitmq_user", EmbeddedBroker.USER);
+		config.put("rabbitmq_password", EmbeddedBroker.PASSWORD);
+		config.put("rabbitmq_virtual_host", EmbeddedBroker.VIRTUAL_HOST);
+		config.put("rabbitmq_hostname", "localhost");
+		config.put("rabbitmq_port", proxy.getPort());
+		config.put("rabbitmq_use_ssl", false);
+		config.put("rabbitmq_publisher_confirms", true);
+		return config;
+	}
+
+	private Map<String, Object> spool(Map<String, Object> config) throws Exception {
+		config.put("spool_directory", spoolFolder.newFolder().getAbsolutePath());
+		return config;
+	}
+
+	private SensuAlarmCallback createCallback(Map<String, Object> config) throws Exception {
+		SensuAlarmCallback callback = new SensuAlarmCallback();
+		callback.initialize(new Configuration(config));
+		return callback;
+	}
+
+	/**
+	 * Raises alerts {@code from} to {@code to} (exclusive) and returns how
+	 * long each call took in nanoseconds.
+	 */
+	private long[] burst(SensuAlarmCallback callback, int from, int to) throws Exception {
+		long[] latencies = new long[to - from];
+		for (int id = from; id < to; id++) {
+			CheckResult result = mock(CheckResult.class);
+			when(result.getResultDescription()).thenReturn("result-" + id);
+			when(result.getTriggeredAt()).thenReturn(new DateTime(DateTimeZone.UTC));
+			when(result.getMatchingMessages()).thenReturn(Collections.<MessageSummary> emptyList());
+
+			long started = System.nanoTime();
+			callback.call(stream, result);
+			latencies[id - from] = System.nanoTime() - started;
+		}
+		return latencies;
+	}
+
+	private void assertDelivered(int count) throws InterruptedException {
+		consumer.awaitAll(count, DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		assertEquals("results lost", 0, consumer.countMissing(count));
+	}
+
+	/**
+	 * Waits for results that may arrive on any of the consumers and returns
+	 * how many are still missing.
+	 */
+	private int awaitAll(int count, ResultsConsumer... consumers) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DELIVERY_TIMEOUT_SECONDS);
+		int missing;
+		do {
+			missing = 0;
+			for (int id = 0; id < count; id++) {
+				boolean received = false;
+				for (ResultsConsumer consumer : consumers) {
+					received |= consumer.hasReceived(id);
+				}
+				if (!received) {
+					missing++;
+				}
+			}
+			if (missing > 0) {
+				Thread.sleep(20);
+			}
+		} while (missing > 0 && System.nanoTime() < deadline);
+		return missing;
+	}
+
+	private void assertWithinBudget(long[] latencies) {
+		long p99 = TimeUnit.NANOSECONDS.toMillis(percentile(latencies, 0.99));
+		assertTrue("p99 latency of " + p99 + "ms exceeds the budget of " + LATENCY_BUDGET_MILLIS + "ms",
+				p99 <= LATENCY_BUDGET_MILLIS);
+	}
+
+	private void report(String scenario, long[] latencies, long perSecond) {
+		LOG.info(String.format("%s: %d alerts, %d deliveries, p50 %.2fms, p99 %.2fms, max %.2fms%s", scenario,
+				latencies.length, consumer.getDeliveries(), percentile(latencies, 0.5) / 1e6,
+				percentile(latencies, 0.99) / 1e6, percentile(latencies, 1.0) / 1e6,
+				perSecond > 0 ? ", " + perSecond + " alerts/s" : ""));
+	}
+
+	private static long percentile(long[] values, double percentile) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static long[] concat(long[] first, long[] second) {
+		long[] joined = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
+}
@@ -0,0 +1,173 @@
+package org.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares how fast results leave the plugin over AMQP with publisher
+ * confirms and over the Sensu Go events API, one at a time and in batches.
+ * The events API stub answers after a configurable delay, like a backend
+ * that writes every event to its store before answering.
+ */
+public class SensuTransportThroughputIT {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuTransportThroughputIT.class);
+
+	private static final long BACKEND_LATENCY_MILLIS = Long.getLong("it.sensuGoLatency", 2);
+	private static final long DELIVERY_TIMEOUT_SECONDS = 60;
+	private static final Pattern RESULT_ID = Pattern.compile("result-(\\d+)");
+	private static final int COUNT = 2000;
+	private static final int BATCH_SIZE = 50;
+
+	private static EmbeddedBroker broker;
+
+	private final CheckTemplate template = new CheckTemplate(2, "default", "", "");
+	private final Set<Integer> posted = ConcurrentHashMap.newKeySet();
+	private HttpServer backend;
+	private ResultsConsumer consumer;
+	private ScheduledExecutorService retries;
+
+	@BeforeClass
+	public static void startBroker() throws Exception {
+		broker = new EmbeddedBroker();
+		broker.start();
+	}
+
+	@AfterClass
+	public static void stopBroker() {
+		broker.stop();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		consumer = new ResultsConsumer(broker.getPort());
+		backend = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+		backend.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				accept(exchange);
+			}
+		});
+		backend.setExecutor(Executors.newCachedThreadPool());
+		backend.start();
+		retries = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		consumer.close();
+		backend.stop(0);
+		retries.shutdownNow();
+	}
+
+	@Test
+	public void testAmqp() throws Exception {
+		RabbitMQClient client = new RabbitMQClient(EmbeddedBroker.USER, EmbeddedBroker.PASSWORD,
+				EmbeddedBroker.VIRTUAL_HOST, "localhost", broker.getPort(), false,
+				new RabbitMQSettings().setPublisherConfirms(true));
+
+		long single = sendOneByOne(client, 0);
+		long batched = sendBatched(client, COUNT);
+
+		assertTrue(consumer.awaitAll(2 * COUNT, DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		report("amqp", single, batched);
+	}
+
+	@Test
+	public void testSensuGoEventsApi() throws Exception {
+		SensuGoTransport transport = SensuGoTransport.forBackend(
+				"http://127.0.0.1:" + backend.getAddress().getPort(), SensuGoTransport.DEFAULT_NAMESPACE, null,
+				retries);
+
+		long single = sendOneByOne(transport, 0);
+		long batched = sendBatched(transport, COUNT);
+
+		assertEquals(2 * COUNT, posted.size());
+		report("sensu go", single, batched);
+	}
+
+	private long sendOneByOne(SensuTransport transport, int from) throws Exception {
+		long started = System.nanoTime();
+		for (int id = from; id < from + COUNT; id++) {
+			transport.send(render(transport, id));
+		}
+		return System.nanoTime() - started;
+	}
+
+	private long sendBatched(SensuTransport transport, int from) throws Exception {
+		long started = System.nanoTime();
+		for (int batchStart = from; batchStart < from + COUNT; batchStart += BATCH_SIZE) {
+			List<byte[]> batch = new ArrayList<>(BATCH_SIZE);
+			for (int id = batchStart; id < batchStart + BATCH_SIZE; id++) {
+				batch.add(render(transport, id));
+			}
+			transport.sendBatch(batch);
+		}
+		return System.nanoTime() - started;
+	}
+
+	private byte[] render(SensuTransport transport, int id) {
+		long timestamp = System.currentTimeMillis() / 1000;
+		if (transport.getFormat() == SensuTransport.Format.EVENT) {
+			return template.renderEvent("it_check", "result-" + id, timestamp, "it_client", SensuGoTransport.DEFAULT_NAMESPACE);
+		}
+		return template.render("it_check", "result-" + id, timestamp, "it_client");
+	}
+
+	private void accept(HttpExchange exchange) throws IOException {
+		try {
+			Matcher matcher = RESULT_ID.matcher(read(exchange.getRequestBody()));
+			if (matcher.find()) {
+				posted.add(Integer.parseInt(matcher.group(1)));
+			}
+			Thread.sleep(BACKEND_LATENCY_MILLIS);
+			exchange.sendResponseHeaders(201, -1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void report(String transport, long single, long batched) {
+		LOG.info("{}: {} results/s one by one, {} results/s in batches of {}", transport,
+				COUNT * TimeUnit.SECONDS.toNanos(1) / single, COUNT * TimeUnit.SECONDS.toNanos(1) / batched, BATCH_SIZE);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,33 @@
+package org.graylog;
+
+final class BenchmarkData {
+	private static final String WORDS = "connection refused while sending \"request\" to /api/v1/items, retrying in 5s; ";
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Log-like text of the given length with characters that need escaping.
+	 */
+	static String text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		while (text.length() < length) {
+			text.append(WORDS, 0, Math.min(WORDS.length(), length - text.length()));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * A comma separated list like the handlers, subscribers and tags settings.
+	 */
+	static String list(String prefix, int size) {
+		StringBuilder list = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				list.append(',');
+			}
+			list.append(prefix).append(i);
+		}
+		return list.toString();
+	}
+}
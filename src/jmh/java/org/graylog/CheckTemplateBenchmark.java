@@ -0,0 +1,60 @@
+package org.graylog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of creating a single Sensu result, with a check template
+ * compiled per result and with a precompiled one. Run with {@code -prof gc}
+ * for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckTemplateBenchmark {
+
+	@Param({ "100", "10000" })
+	public int outputLength;
+
+	@Param({ "1", "5", "20" })
+	public int listSize;
+
+	private CheckTemplate template;
+	private String output;
+	private String handlers;
+	private String subscribers;
+	private String tags;
+
+	@Setup
+	public void setUp() {
+		output = BenchmarkData.text(outputLength);
+		handlers = BenchmarkData.list("handler", listSize);
+		subscribers = BenchmarkData.list("subscriber", listSize);
+		tags = BenchmarkData.list("tag", listSize);
+		template = new CheckTemplate(2, handlers, subscribers, tags);
+	}
+
+	@Benchmark
+	public byte[] compileAndRenderTemplate() {
+		return new CheckTemplate(2, handlers, subscribers, tags).render("check-name", output, 1447848420L, "client");
+	}
+
+	@Benchmark
+	public byte[] renderTemplate() {
+		return template.render("check-name", output, 1447848420L, "client");
+	}
+}
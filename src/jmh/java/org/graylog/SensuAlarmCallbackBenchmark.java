@@ -0,0 +1,110 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.alerts.AbstractAlertCondition;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.MessageSummary;
+import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.streams.Stream;
+import org.graylog2.streams.StreamImpl;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of a complete {@link SensuAlarmCallback#call} with a client that
+ * only counts the bytes it is handed, so rendering and serialization are
+ * measured without any broker I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensuAlarmCallbackBenchmark {
+
+	@Param({ "0", "10", "1000" })
+	public int backlogSize;
+
+	@Param({ "80", "2000" })
+	public int messageLength;
+
+	@Param({ "1", "5" })
+	public int listSize;
+
+	private SensuAlarmCallback callback;
+	private CountingClient client;
+	private Stream stream;
+	private CheckResult checkResult;
+
+	@Setup
+	public void setUp() throws Exception {
+		Map<String, Object> config = new HashMap<>();
+		config.put("check_name", "[stream]");
+		config.put("check_client", "[source]");
+		config.put("check_handlers", BenchmarkData.list("handler", listSize));
+		config.put("check_severity", "2");
+		config.put("check_subscribers", BenchmarkData.list("subscriber", listSize));
+		config.put("check_tags", BenchmarkData.list("tag", listSize));
+		config.put("rabbitmq_user", "guest");
+		config.put("rabbitmq_password", "guest");
+		config.put("rabbitmq_virtual_host", "/sensu");
+		config.put("rabbitmq_hostname", "localhost");
+		config.put("rabbitmq_port", 5672);
+		config.put("rabbitmq_use_ssl", false);
+
+		client = new CountingClient();
+		callback = new SensuAlarmCallback();
+		callback.initialize(new Configuration(config));
+		callback.setTransport(client);
+
+		Map<String, Object> streamFields = new HashMap<>();
+		streamFields.put("title", "Benchmark stream");
+		stream = new StreamImpl(streamFields);
+
+		DateTime now = new DateTime(2015, 11, 18, 12, 7, DateTimeZone.UTC);
+		List<MessageSummary> messages = new ArrayList<>(backlogSize);
+		for (int i = 0; i < backlogSize; i++) {
+			Message message = new Message(BenchmarkData.text(messageLength), "source-" + (i % 10), now);
+			messages.add(new MessageSummary("graylog_0", message));
+		}
+		checkResult = new AbstractAlertCondition.CheckResult(true, null, "Stream had " + backlogSize + " messages", now,
+				messages);
+	}
+
+	@Benchmark
+	public long call() throws Exception {
+		callback.call(stream, checkResult);
+		return client.bytes;
+	}
+
+	private static class CountingClient extends RabbitMQClient {
+		private long bytes;
+
+		private CountingClient() {
+			super("guest", "guest", "/sensu", "localhost", 5672, false);
+		}
+
+		@Override
+		public void send(byte[] body) {
+			bytes += body.length;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Holds alerts that share an aggregation key for a short window and rolls
+ * them up into a single result with the highest severity, the number of
+ * alerts per stream and a merged backlog. Open windows are spread over
+ * independently locked shards, and one shared thread flushes the windows
+ * that are due. A single instance, owned by {@link SensuPublisherService}, is
+ * shared by all callbacks.
+ */
+public class AlertAggregator {
+	private static final Logger LOG = LoggerFactory.getLogger(AlertAggregator.class);
+
+	public static final int MAX_MERGED_MESSAGES = 100;
+
+	private static final int SHARDS = 16;
+	private static final long FLUSH_INTERVAL = 100;
+
+	/**
+	 * Publishes a rolled up result, called on the flusher thread.
+	 */
+	public interface Emitter {
+		void emit(Aggregate aggregate) throws Exception;
+	}
+
+	private final Shard[] shards = new Shard[SHARDS];
+	private ScheduledExecutorService flusher;
+	private volatile boolean closed;
+
+	AlertAggregator() {
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard();
+		}
+	}
+
+	/**
+	 * Adds an alert to the open window of its key, opening a window of
+	 * {@code windowMillis} if there is none. Keys are compared with equals,
+	 * so they can combine the destination with the aggregation key.
+	 *
+	 * @return false if the aggregator is closed and the caller has to
+	 *         publish the alert itself
+	 */
+	public boolean add(Object key, Alert alert, long windowMillis) {
+		startFlusher();
+		return add(key, alert, windowMillis, System.currentTimeMillis());
+	}
+
+	@VisibleForTesting
+	boolean add(Object key, Alert alert, long windowMillis, long now) {
+		Shard shard = shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+		synchronized (shard) {
+			// checked under the shard lock, close() flushes every shard after setting it
+			if (closed) {
+				return false;
+			}
+			Aggregate aggregate = shard.windows.get(key);
+			if (aggregate == null) {
+				aggregate = new Aggregate(now, now + windowMillis);
+				shard.windows.put(key, aggregate);
+			}
+			aggregate.add(alert);
+		}
+		return true;
+	}
+
+	/**
+	 * Emits and closes every window whose deadline has passed.
+	 *
+	 * @return the number of windows flushed
+	 */
+	@VisibleForTesting
+	int flushDue(long now) {
+		List<Aggregate> due = new ArrayList<>();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (Iterator<Aggregate> it = shard.windows.values().iterator(); it.hasNext();) {
+					Aggregate aggregate = it.next();
+					if (aggregate.deadline <= now) {
+						it.remove();
+						due.add(aggregate);
+					}
+				}
+			}
+		}
+
+		for (Aggregate aggregate : due) {
+			try {
+				aggregate.emitter.emit(aggregate);
+			} catch (Exception e) {
+				LOG.warn("Could not publish aggregated Sensu result for {} alert(s)", aggregate.getAlertCount(), e);
+			}
+		}
+		return due.size();
+	}
+
+	/**
+	 * Stops the flusher and emits every open window, due or not.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (flusher != null) {
+				flusher.shutdown();
+			}
+			closed = true;
+		}
+		flushDue(Long.MAX_VALUE);
+	}
+
+	private synchronized void startFlusher() {
+		if (flusher != null || closed) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("sensu-aggregation-flusher-%d").setDaemon(true).build());
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushDue(System.currentTimeMillis());
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private static class Shard {
+		private final Map<Object, Aggregate> windows = new HashMap<>();
+	}
+
+	/**
+	 * One alert handed to the aggregator by a callback.
+	 */
+	public static class Alert {
+		private final String client;
+		private final String checkName;
+		private final String streamId;
+		private final String stream;
+		private final int status;
+		private final List<String> messages;
+		private final Emitter emitter;
+
+		public Alert(String client, String checkName, String streamId, String stream, int status, List<String> messages,
+				Emitter emitter) {
+			this.client = client;
+			this.checkName = checkName;
+			this.streamId = streamId;
+			this.stream = stream;
+			this.status = status;
+			this.messages = messages;
+			this.emitter = emitter;
+		}
+	}
+
+	/**
+	 * The alerts collected in one window. The result is published by the
+	 * emitter, client and check name of the most severe alert, which is the
+	 * only client/check the window sends a result for.
+	 */
+	public static class Aggregate {
+		private final long openedAt;
+		private final long deadline;
+		private final Map<String, Integer> alertsPerStream = new LinkedHashMap<>();
+		private final Set<String> messages = new LinkedHashSet<>();
+		private int alertCount;
+		private int status = Integer.MIN_VALUE;
+		private String client;
+		private String checkName;
+		private String streamId;
+		private Emitter emitter;
+
+		private Aggregate(long openedAt, long deadline) {
+			this.openedAt = openedAt;
+			this.deadline = deadline;
+		}
+
+		private void add(Alert alert) {
+			alertCount++;
+			Integer count = alertsPerStream.get(alert.stream);
+			alertsPerStream.put(alert.stream, count == null ? 1 : count + 1);
+			for (String message : alert.messages) {
+				if (messages.size() >= MAX_MERGED_MESSAGES) {
+					break;
+				}
+				messages.add(message);
+			}
+			if (alert.status > status) {
+				status = alert.status;
+				client = alert.client;
+				checkName = alert.checkName;
+				streamId = alert.streamId;
+				emitter = alert.emitter;
+			}
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getClient() {
+			return client;
+		}
+
+		public String getCheckName() {
+			return checkName;
+		}
+
+		public String getStreamId() {
+			return streamId;
+		}
+
+		public int getAlertCount() {
+			return alertCount;
+		}
+
+		public Map<String, Integer> getAlertsPerStream() {
+			return Collections.unmodifiableMap(alertsPerStream);
+		}
+
+		public List<String> getMessages() {
+			return new ArrayList<>(messages);
+		}
+
+		public String getSummary() {
+			StringBuilder summary = new StringBuilder(64 + alertsPerStream.size() * 48);
+			summary.append("Aggregated ").append(alertCount).append(" alert(s) from ").append(alertsPerStream.size())
+					.append(" stream(s) within ").append(TimeUnit.MILLISECONDS.toSeconds(deadline - openedAt))
+					.append(" seconds.\n");
+			for (Map.Entry<String, Integer> entry : alertsPerStream.entrySet()) {
+				summary.append("Stream \"").append(entry.getKey()).append("\": ").append(entry.getValue())
+						.append(" alert(s)\n");
+			}
+			return summary.append('\n').toString();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package org.graylog;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.graylog2.plugin.MessageSummary;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Suppresses alert storms before they reach Sensu. Every client/check pair
+ * gets a token bucket, implemented as a generic cell rate algorithm so a
+ * single CAS on one timestamp is enough, and exact repeats of a result are
+ * dropped for a time window based on a content fingerprint. Both tables are
+ * bounded and swept of expired entries. A single instance, owned by
+ * {@link SensuPublisherService}, is shared by all callbacks.
+ */
+public class AlertSuppressor {
+	public static final int DEFAULT_BURST = 5;
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** Returned by {@link #tryAcquire} when the result has to be dropped. */
+	public static final long SUPPRESSED = -1;
+
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+	private static final long UNREPORTED_RETENTION = TimeUnit.HOURS.toMillis(1);
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final ConcurrentMap<String, CheckState> checks = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Long, Long> fingerprints = new ConcurrentHashMap<>();
+	private final AtomicLong nextSweep = new AtomicLong();
+	private final int maxEntries;
+
+	AlertSuppressor(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Decides whether a result for the given client and check may be
+	 * published.
+	 *
+	 * @param ratePerMinute sustained results per minute per client and check, 0 disables rate limiting
+	 * @param burst results allowed back to back before the rate applies
+	 * @param dedupWindowSeconds how long an identical result is dropped, 0 disables deduplication
+	 * @return {@link #SUPPRESSED}, or the number of results suppressed since the last one let through
+	 */
+	public long tryAcquire(String client, String check, long fingerprint, int ratePerMinute, int burst, int dedupWindowSeconds) {
+		return tryAcquire(client, check, fingerprint, ratePerMinute, burst, dedupWindowSeconds, System.currentTimeMillis());
+	}
+
+	@VisibleForTesting
+	long tryAcquire(String client, String check, long fingerprint, int ratePerMinute, int burst, int dedupWindowSeconds,
+			long now) {
+		sweepIfDue(now);
+
+		String key = client + '\u0000' + check;
+		CheckState state = checks.get(key);
+		if (state == null) {
+			if (checks.size() >= maxEntries) {
+				// table is full of live entries, fail open rather than grow
+				return 0;
+			}
+			CheckState created = new CheckState();
+			state = checks.putIfAbsent(key, created);
+			if (state == null) {
+				state = created;
+			}
+		}
+		state.lastSeen = now;
+
+		long dedupKey = hash(fingerprint, key);
+		if (dedupWindowSeconds > 0 && isRepeat(dedupKey, now)) {
+			state.suppressed.incrementAndGet();
+			return SUPPRESSED;
+		}
+		if (ratePerMinute > 0 && !state.tryTake(TimeUnit.MINUTES.toMillis(1) / ratePerMinute, Math.max(1, burst), now)) {
+			state.suppressed.incrementAndGet();
+			return SUPPRESSED;
+		}
+		// only a result that is let through starts a dedup window
+		if (dedupWindowSeconds > 0 && !record(dedupKey, now + TimeUnit.SECONDS.toMillis(dedupWindowSeconds), now)) {
+			state.suppressed.incrementAndGet();
+			return SUPPRESSED;
+		}
+		return state.suppressed.getAndSet(0);
+	}
+
+	/**
+	 * Fingerprints the parts of an alert that stay the same while a condition
+	 * keeps firing, leaving out timestamps.
+	 */
+	public static long fingerprint(int status, String description, List<MessageSummary> messages) {
+		long hash = FNV_OFFSET;
+		hash = (hash ^ status) * FNV_PRIME;
+		hash = hash(hash, description);
+		for (MessageSummary message : messages) {
+			hash = hash(hash, message.getMessage());
+		}
+		return hash;
+	}
+
+	@VisibleForTesting
+	int getTrackedChecks() {
+		return checks.size();
+	}
+
+	@VisibleForTesting
+	int getTrackedFingerprints() {
+		return fingerprints.size();
+	}
+
+	private boolean isRepeat(long fingerprint, long now) {
+		Long expiresAt = fingerprints.get(fingerprint);
+		return expiresAt != null && expiresAt > now;
+	}
+
+	/**
+	 * Starts the dedup window of a fingerprint, or returns false if an
+	 * identical result started one in the meantime.
+	 */
+	private boolean record(long fingerprint, long expiresAt, long now) {
+		while (true) {
+			Long current = fingerprints.get(fingerprint);
+			if (current == null) {
+				if (fingerprints.size() >= maxEntries) {
+					return true;
+				}
+				if (fingerprints.putIfAbsent(fingerprint, expiresAt) == null) {
+					return true;
+				}
+			} else if (current > now) {
+				return false;
+			} else if (fingerprints.replace(fingerprint, current, expiresAt)) {
+				return true;
+			}
+		}
+	}
+
+	private void sweepIfDue(long now) {
+		long due = nextSweep.get();
+		if (now < due || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL)) {
+			return;
+		}
+		for (Iterator<Map.Entry<Long, Long>> it = fingerprints.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue() <= now) {
+				it.remove();
+			}
+		}
+		for (Iterator<Map.Entry<String, CheckState>> it = checks.entrySet().iterator(); it.hasNext();) {
+			CheckState state = it.next().getValue();
+			if (state.isIdle(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static long hash(long hash, String value) {
+		if (value == null) {
+			return hash * FNV_PRIME;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+		}
+		// separator so ("ab", "c") and ("a", "bc") differ
+		return (hash ^ 0xff) * FNV_PRIME;
+	}
+
+	private static class CheckState {
+		// theoretical arrival time of the next conforming result
+		private final AtomicLong arrival = new AtomicLong();
+		private final AtomicLong suppressed = new AtomicLong();
+		private volatile long lastSeen;
+
+		private boolean tryTake(long interval, int burst, long now) {
+			long tolerance = interval * (burst - 1);
+			while (true) {
+				long current = arrival.get();
+				long next = Math.max(current, now);
+				if (next - now > tolerance) {
+					return false;
+				}
+				if (arrival.compareAndSet(current, next + interval)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Idle once the bucket has refilled and it has not been used for a
+		 * sweep interval, or for an hour if suppressed results were never
+		 * reported.
+		 */
+		private boolean isIdle(long now) {
+			long unused = now - lastSeen;
+			return arrival.get() <= now && unused > SWEEP_INTERVAL
+					&& (suppressed.get() == 0 || unused > UNREPORTED_RETENTION);
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package org.graylog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decouples {@link SensuAlarmCallback#call} from the broker: rendered results
+ * are put on a bounded in-memory queue and published by dedicated sender
+ * threads. A single instance, owned by {@link SensuPublisherService}, is shared
+ * by all callbacks.
+ */
+public class AsyncPublisher {
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncPublisher.class);
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	public static final int DEFAULT_SENDER_THREADS = 2;
+	public static final int DEFAULT_BLOCK_TIMEOUT = 100;
+	public static final int DEFAULT_BATCH_SIZE = 1;
+	public static final int DEFAULT_BATCH_WINDOW = 5;
+
+	private static final long EVICTION_WARNING_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	public enum OverflowPolicy {
+		DROP_OLDEST, DROP_NEWEST, BLOCK;
+
+		public static OverflowPolicy fromString(String policy) {
+			if (policy == null || policy.isEmpty()) {
+				return DROP_OLDEST;
+			}
+			return valueOf(policy.toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<PendingResult> queue = new ArrayDeque<>();
+	private final List<Thread> senders = new ArrayList<>();
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private volatile int capacity = DEFAULT_QUEUE_SIZE;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private volatile long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT;
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long batchWindowMillis = DEFAULT_BATCH_WINDOW;
+	private volatile boolean closed;
+	// guarded by lock
+	private long evictedSinceWarning;
+	private long lastEvictionWarning;
+
+	AsyncPublisher() {
+	}
+
+	/**
+	 * Applies the settings of the most recently initialized callback and makes
+	 * sure at least {@code senderThreads} sender threads are running. There is
+	 * one queue for all callbacks and Graylog initializes a callback for every
+	 * alert, so with differing settings the last alert's callback wins; sender
+	 * threads are only ever added.
+	 */
+	public void configure(int queueSize, OverflowPolicy overflowPolicy, int blockTimeoutMillis, int senderThreads) {
+		this.capacity = Math.max(1, queueSize);
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutMillis = Math.max(0, blockTimeoutMillis);
+		startSenders(senderThreads);
+	}
+
+	/**
+	 * Lets sender threads collect up to {@code batchSize} results, waiting at
+	 * most {@code batchWindowMillis} after the first one, and publish them on
+	 * one channel. A batch size of 1 disables batching.
+	 */
+	public void configureBatching(int batchSize, int batchWindowMillis) {
+		this.batchSize = Math.max(1, batchSize);
+		this.batchWindowMillis = Math.max(0, batchWindowMillis);
+	}
+
+	/**
+	 * Queues a result for publishing.
+	 *
+	 * @return false if the result was dropped because the queue is full or
+	 *         the publisher is shut down
+	 */
+	public boolean publish(SensuTransport transport, byte[] body) throws InterruptedException {
+		PendingResult pending = new PendingResult(transport, body);
+
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+			while (!closed && queue.size() >= capacity) {
+				switch (overflowPolicy) {
+				case DROP_OLDEST:
+					queue.pollFirst();
+					evicted();
+					break;
+				case DROP_NEWEST:
+					drop();
+					return false;
+				case BLOCK:
+					if (nanos <= 0) {
+						drop();
+						return false;
+					}
+					nanos = notFull.awaitNanos(nanos);
+					break;
+				}
+			}
+			if (closed) {
+				drop();
+				return false;
+			}
+			queue.addLast(pending);
+			enqueued.incrementAndGet();
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void drop() {
+		dropped.incrementAndGet();
+		SensuMetrics.shared().getDropped().mark();
+	}
+
+	/**
+	 * A queued result was dropped to make room. The caller of that result
+	 * was told it was queued, so this is logged, at most once a minute.
+	 */
+	private void evicted() {
+		drop();
+		evictedSinceWarning++;
+		long now = System.currentTimeMillis();
+		if (now - lastEvictionWarning >= EVICTION_WARNING_INTERVAL_MILLIS) {
+			LOG.warn("Sensu publish queue is full, dropped {} queued result(s) to make room for newer ones",
+					evictedSinceWarning);
+			evictedSinceWarning = 0;
+			lastEvictionWarning = now;
+		}
+	}
+
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@VisibleForTesting
+	int getCapacity() {
+		return capacity;
+	}
+
+	@VisibleForTesting
+	OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public int getQueueSize() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops taking new results and lets the sender threads publish what is
+	 * queued until the timeout has passed.
+	 *
+	 * @return the results that are still queued, in order
+	 */
+	public List<PendingResult> shutdown(long timeoutMillis) throws InterruptedException {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		List<Thread> running;
+		synchronized (this) {
+			running = new ArrayList<>(senders);
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (Thread sender : running) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining > 0) {
+				TimeUnit.NANOSECONDS.timedJoin(sender, remaining);
+			}
+		}
+
+		lock.lock();
+		try {
+			List<PendingResult> leftovers = new ArrayList<>(queue);
+			queue.clear();
+			notFull.signalAll();
+			return leftovers;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@VisibleForTesting
+	synchronized void startSenders(int senderThreads) {
+		while (!closed && senders.size() < senderThreads) {
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drainQueue();
+				}
+			}, "sensu-async-sender-" + senders.size());
+			sender.setDaemon(true);
+			sender.start();
+			senders.add(sender);
+		}
+	}
+
+	/**
+	 * @return null once the publisher is shut down and the queue is empty
+	 */
+	@VisibleForTesting
+	PendingResult take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (queue.isEmpty()) {
+				if (closed) {
+					return null;
+				}
+				notEmpty.await();
+			}
+			PendingResult pending = queue.pollFirst();
+			notFull.signal();
+			return pending;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for a first result, then keeps collecting until the batch is full
+	 * or the batch window has passed.
+	 *
+	 * @return an empty batch once the publisher is shut down and the queue is empty
+	 */
+	@VisibleForTesting
+	List<PendingResult> takeBatch() throws InterruptedException {
+		PendingResult first = take();
+		if (first == null) {
+			return Collections.emptyList();
+		}
+		int maxSize = batchSize;
+		List<PendingResult> batch = new ArrayList<>(Math.min(maxSize, 64));
+		batch.add(first);
+
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+			while (batch.size() < maxSize) {
+				PendingResult pending = queue.pollFirst();
+				if (pending != null) {
+					batch.add(pending);
+					notFull.signal();
+				} else if (nanos <= 0 || closed) {
+					break;
+				} else {
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return batch;
+	}
+
+	@VisibleForTesting
+	void send(List<PendingResult> batch) {
+		Map<SensuTransport, List<byte[]>> byTransport = new LinkedHashMap<>();
+		for (PendingResult pending : batch) {
+			List<byte[]> messages = byTransport.get(pending.transport);
+			if (messages == null) {
+				messages = new ArrayList<>();
+				byTransport.put(pending.transport, messages);
+			}
+			messages.add(pending.body);
+		}
+
+		for (Map.Entry<SensuTransport, List<byte[]>> entry : byTransport.entrySet()) {
+			List<byte[]> messages = entry.getValue();
+			try {
+				if (messages.size() == 1) {
+					entry.getKey().send(messages.get(0));
+				} else {
+					entry.getKey().sendBatch(messages);
+				}
+				sent.addAndGet(messages.size());
+			} catch (Exception e) {
+				failed.addAndGet(messages.size());
+				LOG.warn("Could not publish {} Sensu result(s) asynchronously", messages.size(), e);
+			}
+		}
+	}
+
+	private void drainQueue() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				List<PendingResult> batch = takeBatch();
+				if (batch.isEmpty()) {
+					return;
+				}
+				send(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public static class PendingResult {
+		private final SensuTransport transport;
+		private final byte[] body;
+
+		private PendingResult(SensuTransport transport, byte[] body) {
+			this.transport = transport;
+			this.body = body;
+		}
+
+		public SensuTransport getTransport() {
+			return transport;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+}
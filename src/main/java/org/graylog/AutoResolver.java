@@ -0,0 +1,462 @@
+package org.graylog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sends the OK result for a client/check once no alert arrived for it within
+ * its quiet period. Deadlines live in a hashed timing wheel advanced by one
+ * thread: scheduling is a map lookup plus, for a new client/check, one append
+ * to a bucket, and a re-alert only moves the deadline of the existing entry.
+ * When the wheel reaches an entry whose deadline was pushed back, the entry
+ * moves to the bucket of its new deadline. The active entries are written to
+ * a snapshot periodically and on shutdown and restored on start. The snapshot
+ * identifies a callback only by the hash of its configuration and its stream,
+ * so no settings or credentials are written. A single instance, owned by
+ * {@link SensuPublisherService}, is shared by all callbacks.
+ */
+public class AutoResolver {
+	private static final Logger LOG = LoggerFactory.getLogger(AutoResolver.class);
+
+	private static final long TICK_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 512;
+	private static final long SNAPSHOT_INTERVAL_TICKS = 60;
+	private static final int SNAPSHOT_MAGIC = 0x53524553;
+	private static final int SNAPSHOT_VERSION = 3;
+
+	/**
+	 * Publishes the OK result, called on the wheel thread.
+	 */
+	public interface Resolution {
+		void resolve(String client, String checkName) throws Exception;
+	}
+
+	/**
+	 * Finds the resolution of a callback restored from a snapshot, before a
+	 * callback with that configuration ran again. Returns null if the stream
+	 * has no callback with that configuration anymore.
+	 */
+	public interface ResolutionFactory {
+		Resolution create(String streamId, String configurationId) throws Exception;
+	}
+
+	private final ResolutionFactory factory;
+	private final long tickMillis;
+	private final ConcurrentMap<String, Owner> owners = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final List<ArrayDeque<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+	private volatile long lastTick;
+	private volatile boolean dirty;
+	private File snapshot;
+	private ScheduledExecutorService ticker;
+	private boolean closed;
+
+	AutoResolver(ResolutionFactory factory) {
+		this(factory, TICK_MILLIS);
+	}
+
+	@VisibleForTesting
+	AutoResolver(ResolutionFactory factory, long tickMillis) {
+		this.factory = factory;
+		this.tickMillis = tickMillis;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new ArrayDeque<Entry>());
+		}
+		this.lastTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * Identifies a callback configuration without revealing its settings.
+	 * Credentials are left out, the hash is written to the snapshot and
+	 * would otherwise allow guessing them offline.
+	 */
+	public static String configurationId(Map<String, Object> configuration) {
+		Map<String, Object> settings = new TreeMap<>(configuration);
+		settings.keySet().removeAll(SensuAlarmCallback.CREDENTIAL_FIELDS);
+		return Hashing.sha256().hashString(settings.toString(), StandardCharsets.UTF_8).toString();
+	}
+
+	/**
+	 * Returns the owner for a callback configuration, shared by every
+	 * callback instance with the same configuration, and makes it resolve
+	 * through the given resolution from now on.
+	 */
+	public Owner owner(Map<String, Object> configuration, Resolution resolution) {
+		Owner owner = owner(configurationId(configuration));
+		owner.resolution = resolution;
+		return owner;
+	}
+
+	private Owner owner(String id) {
+		Owner owner = owners.get(id);
+		if (owner == null) {
+			Owner created = new Owner(id);
+			owner = owners.putIfAbsent(id, created);
+			if (owner == null) {
+				owner = created;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * Resolves the client/check after {@code quietMillis} unless it is
+	 * scheduled again before that.
+	 */
+	public void schedule(Owner owner, String streamId, String client, String checkName, long quietMillis) {
+		scheduleAt(owner, streamId, client, checkName, System.currentTimeMillis() + quietMillis);
+	}
+
+	private void scheduleAt(Owner owner, String streamId, String client, String checkName, long deadline) {
+		String key = key(owner, streamId, client, checkName);
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				Entry created = new Entry(key, owner, streamId, client, checkName, deadline);
+				if (entries.putIfAbsent(key, created) == null) {
+					owner.active.incrementAndGet();
+					// the owner may have been evicted while a callback still held it
+					owners.putIfAbsent(owner.id, owner);
+					dirty = true;
+					insert(created);
+					startTicker();
+					return;
+				}
+			} else {
+				synchronized (entry) {
+					if (!entry.expired) {
+						entry.deadline = Math.max(entry.deadline, deadline);
+						dirty = true;
+						return;
+					}
+				}
+				// resolved in the meantime
+				entries.remove(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Forgets a client/check without resolving it.
+	 */
+	public void cancel(Owner owner, String streamId, String client, String checkName) {
+		Entry entry = entries.remove(key(owner, streamId, client, checkName));
+		if (entry != null) {
+			synchronized (entry) {
+				entry.expired = true;
+			}
+			release(entry.owner);
+			dirty = true;
+		}
+	}
+
+	private static String key(Owner owner, String streamId, String client, String checkName) {
+		return owner.id + '\0' + streamId + '\0' + client + '\0' + checkName;
+	}
+
+	/**
+	 * Evicts an owner once its last entry is gone.
+	 */
+	private void release(Owner owner) {
+		if (owner.active.decrementAndGet() <= 0) {
+			owners.remove(owner.id, owner);
+		}
+	}
+
+	public int getActiveCount() {
+		return entries.size();
+	}
+
+	@VisibleForTesting
+	int getOwnerCount() {
+		return owners.size();
+	}
+
+	/**
+	 * Adds the entry to the bucket of its deadline, or of the current tick if
+	 * that has passed. The current bucket is visited again on the next tick.
+	 */
+	private void insert(Entry entry) {
+		long tick = Math.max(entry.deadline / tickMillis, lastTick);
+		ArrayDeque<Entry> bucket = wheel.get((int) (tick % WHEEL_SIZE));
+		synchronized (bucket) {
+			bucket.addLast(entry);
+		}
+	}
+
+	/**
+	 * Advances the wheel to {@code now}, resolving every entry that is due
+	 * in the buckets passed.
+	 *
+	 * @return the number of client/checks resolved
+	 */
+	@VisibleForTesting
+	int advance(long now) {
+		long tick = now / tickMillis;
+		long from;
+		synchronized (this) {
+			from = lastTick;
+			lastTick = Math.max(lastTick, tick);
+		}
+		List<Entry> due = new ArrayList<>();
+		// a full turn visits every bucket once
+		for (long t = from; t <= tick && t <= from + WHEEL_SIZE; t++) {
+			ArrayDeque<Entry> bucket = wheel.get((int) (t % WHEEL_SIZE));
+			List<Entry> visited;
+			synchronized (bucket) {
+				visited = new ArrayList<>(bucket);
+				bucket.clear();
+			}
+			for (Entry entry : visited) {
+				boolean expired;
+				synchronized (entry) {
+					if (entry.expired) {
+						continue;
+					}
+					expired = entry.deadline <= now;
+					entry.expired = expired;
+				}
+				if (expired) {
+					entries.remove(entry.key, entry);
+					due.add(entry);
+				} else {
+					insert(entry);
+				}
+			}
+		}
+
+		if (!due.isEmpty()) {
+			dirty = true;
+		}
+		int resolved = 0;
+		for (Entry entry : due) {
+			if (resolve(entry)) {
+				resolved++;
+			}
+			release(entry.owner);
+		}
+		return resolved;
+	}
+
+	private boolean resolve(Entry entry) {
+		Owner owner = entry.owner;
+		try {
+			Resolution resolution = owner.resolution;
+			if (resolution == null) {
+				resolution = factory.create(entry.streamId, owner.id);
+				if (resolution == null) {
+					LOG.debug("Dropping Sensu resolve for client {} and check {}, its callback no longer exists",
+							entry.client, entry.checkName);
+					return false;
+				}
+				owner.resolution = resolution;
+			}
+			resolution.resolve(entry.client, entry.checkName);
+			return true;
+		} catch (Exception e) {
+			LOG.warn("Could not send Sensu resolve for client {} and check {}", entry.client, entry.checkName, e);
+			return false;
+		}
+	}
+
+	private synchronized void startTicker() {
+		if (ticker != null || closed) {
+			return;
+		}
+		ticker = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("sensu-auto-resolve-%d").setDaemon(true).build());
+		ticker.scheduleAtFixedRate(new Runnable() {
+			private long ticks;
+
+			@Override
+			public void run() {
+				try {
+					advance(System.currentTimeMillis());
+					if (++ticks % SNAPSHOT_INTERVAL_TICKS == 0 && dirty) {
+						writeSnapshot();
+					}
+				} catch (RuntimeException e) {
+					LOG.warn("Advancing the Sensu auto resolve wheel failed", e);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Restores the entries of a snapshot and keeps writing snapshots to the
+	 * same file. A missing file is not an error.
+	 */
+	public void restore(File file) {
+		synchronized (this) {
+			snapshot = file;
+		}
+		int restored = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				LOG.warn("Ignoring Sensu auto resolve snapshot {} of an unknown format", file);
+				return;
+			}
+			int ownerCount = in.readInt();
+			for (int i = 0; i < ownerCount; i++) {
+				Owner owner = owner(in.readUTF());
+				int entryCount = in.readInt();
+				for (int j = 0; j < entryCount; j++) {
+					scheduleAt(owner, in.readUTF(), in.readUTF(), in.readUTF(), in.readLong());
+					restored++;
+				}
+			}
+			LOG.info("Restored {} Sensu auto resolve deadline(s) from {}", restored, file);
+		} catch (FileNotFoundException e) {
+			LOG.debug("No Sensu auto resolve snapshot at {}", file);
+		} catch (IOException e) {
+			LOG.warn("Could not read Sensu auto resolve snapshot {}, restored {} deadline(s)", file, restored, e);
+		}
+	}
+
+	/**
+	 * Stops the wheel and writes a final snapshot. Deadlines that pass while
+	 * the server is down are resolved right after the next start.
+	 */
+	public void close() {
+		ScheduledExecutorService current;
+		synchronized (this) {
+			closed = true;
+			current = ticker;
+			ticker = null;
+		}
+		if (current != null) {
+			current.shutdown();
+			try {
+				current.awaitTermination(tickMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		writeSnapshot();
+	}
+
+	/**
+	 * Writes all active entries, grouped by owner so every configuration id
+	 * is stored once, to a temporary file that then replaces the snapshot.
+	 */
+	@VisibleForTesting
+	synchronized void writeSnapshot() {
+		if (snapshot == null) {
+			return;
+		}
+		Map<Owner, List<Entry>> byOwner = new LinkedHashMap<>();
+		for (Entry entry : entries.values()) {
+			List<Entry> owned = byOwner.get(entry.owner);
+			if (owned == null) {
+				owned = new ArrayList<>();
+				byOwner.put(entry.owner, owned);
+			}
+			owned.add(entry);
+		}
+
+		dirty = false;
+		File temporary = new File(snapshot.getPath() + ".tmp");
+		try {
+			File parent = snapshot.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Could not create " + parent);
+			}
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+				restrictPermissions(temporary);
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeInt(byOwner.size());
+				for (Map.Entry<Owner, List<Entry>> owned : byOwner.entrySet()) {
+					out.writeUTF(owned.getKey().id);
+					out.writeInt(owned.getValue().size());
+					for (Entry entry : owned.getValue()) {
+						out.writeUTF(entry.streamId);
+						out.writeUTF(entry.client);
+						out.writeUTF(entry.checkName);
+						out.writeLong(entry.deadline);
+					}
+				}
+			}
+			Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			dirty = true;
+			LOG.warn("Could not write Sensu auto resolve snapshot {}", snapshot, e);
+		}
+	}
+
+	/**
+	 * Client and check names can be sensitive, so only the server user may
+	 * read the snapshot.
+	 */
+	private static void restrictPermissions(File file) {
+		try {
+			Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException | IOException e) {
+			// not a POSIX file system
+		}
+	}
+
+	/**
+	 * A callback configuration and the resolution of its most recently
+	 * initialized callback.
+	 */
+	public static class Owner {
+		private final String id;
+		private final AtomicInteger active = new AtomicInteger();
+		private volatile Resolution resolution;
+
+		private Owner(String id) {
+			this.id = id;
+		}
+	}
+
+	private static class Entry {
+		private final String key;
+		private final Owner owner;
+		private final String streamId;
+		private final String client;
+		private final String checkName;
+		private long deadline;
+		private boolean expired;
+
+		private Entry(String key, Owner owner, String streamId, String client, String checkName, long deadline) {
+			this.key = key;
+			this.owner = owner;
+			this.streamId = streamId;
+			this.client = client;
+			this.checkName = checkName;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.graylog;
+
+import java.util.List;
+
+import org.graylog2.plugin.MessageSummary;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+/**
+ * Renders the check output, the alert summary followed by the message
+ * backlog, into one pre-sized buffer. The output is limited to a maximum
+ * number of UTF-8 bytes and every message to its own maximum; messages that
+ * no longer fit are summarized in a trailer.
+ */
+public class BacklogRenderer {
+	public static final int DEFAULT_MAX_OUTPUT_SIZE = 65536;
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 4096;
+
+	private static final String BACKLOG_HEADER = "Last messages accounting for this alert: \n";
+	private static final String NO_BACKLOG = "No message backlog available.\n";
+	private static final String MESSAGE_SEPARATOR = "\n\n\n";
+	private static final String ELLIPSIS = "\u2026";
+	// room for "… 2147483647 more messages omitted\n"
+	static final int TRAILER_RESERVE = 40;
+
+	private final int maxOutputSize;
+	private final int maxMessageSize;
+
+	public BacklogRenderer(int maxOutputSize, int maxMessageSize) {
+		this.maxOutputSize = maxOutputSize > 0 ? maxOutputSize : Integer.MAX_VALUE;
+		this.maxMessageSize = maxMessageSize > 0 ? maxMessageSize : Integer.MAX_VALUE;
+	}
+
+	private static final Function<MessageSummary, String> MESSAGE_TEXT = new Function<MessageSummary, String>() {
+		@Override
+		public String apply(MessageSummary message) {
+			return message.getMessage();
+		}
+	};
+
+	public String render(String summary, List<MessageSummary> messages) {
+		return renderMessages(summary, Lists.transform(messages, MESSAGE_TEXT));
+	}
+
+	public String renderMessages(String summary, List<String> messages) {
+		int capacity = summary.length() + BACKLOG_HEADER.length() + NO_BACKLOG.length();
+		for (int i = 0; i < messages.size() && capacity < maxOutputSize; i++) {
+			String message = messages.get(i);
+			capacity += (message == null ? 4 : Math.min(message.length(), maxMessageSize)) + MESSAGE_SEPARATOR.length();
+		}
+		StringBuilder output = new StringBuilder(Math.min(capacity, maxOutputSize) + TRAILER_RESERVE);
+
+		output.append(summary).append(BACKLOG_HEADER);
+		int size = utf8Length(output, 0, output.length());
+		if (messages.isEmpty()) {
+			output.append(NO_BACKLOG);
+			return output.toString();
+		}
+
+		for (int i = 0; i < messages.size(); i++) {
+			String message = String.valueOf(messages.get(i));
+			boolean last = i == messages.size() - 1;
+			int budget = maxOutputSize - size - MESSAGE_SEPARATOR.length() - (last ? 0 : TRAILER_RESERVE);
+
+			int end = truncate(message, Math.min(budget, maxMessageSize));
+			if (end < message.length() && budget < maxMessageSize) {
+				// only cut messages down to the per-message limit, never to squeeze into the output
+				output.append(ELLIPSIS).append(' ').append(messages.size() - i).append(" more messages omitted\n");
+				return output.toString();
+			}
+
+			output.append(message, 0, end);
+			size += utf8Length(message, 0, end);
+			if (end < message.length()) {
+				output.append(ELLIPSIS);
+				size += 3;
+			}
+			output.append(MESSAGE_SEPARATOR);
+			size += MESSAGE_SEPARATOR.length();
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Returns the end index of the longest prefix of {@code value} that fits
+	 * in {@code maxBytes} UTF-8 bytes, leaving room for an ellipsis when the
+	 * value has to be cut. Surrogate pairs are never split.
+	 */
+	static int truncate(String value, int maxBytes) {
+		int bytes = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			int width = utf8Width(ch);
+			int chars = 1;
+			if (Character.isHighSurrogate(ch) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+				width = 4;
+				chars = 2;
+			}
+			if (bytes + width > maxBytes) {
+				return cutBack(value, i, bytes, maxBytes - 3);
+			}
+			bytes += width;
+			i += chars - 1;
+		}
+		return value.length();
+	}
+
+	static int utf8Length(CharSequence value, int start, int end) {
+		int bytes = 0;
+		for (int i = start; i < end; i++) {
+			char ch = value.charAt(i);
+			if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else {
+				bytes += utf8Width(ch);
+			}
+		}
+		return bytes;
+	}
+
+	private static int cutBack(String value, int end, int bytes, int maxBytes) {
+		while (end > 0 && bytes > maxBytes) {
+			end--;
+			if (Character.isLowSurrogate(value.charAt(end)) && end > 0 && Character.isHighSurrogate(value.charAt(end - 1))) {
+				end--;
+				bytes -= 4;
+			} else {
+				bytes -= utf8Width(value.charAt(end));
+			}
+		}
+		return Math.max(0, end);
+	}
+
+	private static int utf8Width(char ch) {
+		if (ch < 0x80) {
+			return 1;
+		} else if (ch < 0x800) {
+			return 2;
+		} else if (Character.isSurrogate(ch)) {
+			// unpaired surrogates are encoded as '?'
+			return 1;
+		}
+		return 3;
+	}
+}
@@ -0,0 +1,284 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.graylog2.plugin.MessageSummary;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Renders the check output as the most frequent messages of the backlog with
+ * their counts, instead of every message. One pass over the backlog feeds a
+ * Space-Saving sketch with a fixed number of counters over normalized message
+ * text, so memory stays bounded however large the backlog is. Counters are
+ * kept in buckets of equal count ordered by count (the Stream-Summary
+ * structure), so counting a message and finding the counter to evict are
+ * constant time. Counts of messages that took over an evicted counter are
+ * upper bounds and marked as approximate. The output is limited like that of
+ * {@link BacklogRenderer}: entries that no longer fit are summarized in a
+ * trailer.
+ */
+public class BacklogSummarizer {
+	public static final int DEFAULT_TOP = 10;
+	// keeps the counters bounded and the trailer within the reserve
+	public static final int MAX_TOP = 1000;
+
+	private static final int COUNTERS_PER_ENTRY = 4;
+	private static final int MAX_TRACKED_SOURCES = 1000;
+	private static final String ELLIPSIS = "\u2026";
+
+	private final int top;
+	private final int capacity;
+	private final int maxOutputSize;
+	private final int maxMessageSize;
+
+	public BacklogSummarizer(int top, int maxOutputSize, int maxMessageSize) {
+		this.top = Math.min(MAX_TOP, Math.max(1, top));
+		this.capacity = this.top * COUNTERS_PER_ENTRY;
+		this.maxOutputSize = maxOutputSize > 0 ? maxOutputSize : Integer.MAX_VALUE;
+		this.maxMessageSize = maxMessageSize > 0 ? maxMessageSize : Integer.MAX_VALUE;
+	}
+
+	public String summarize(String summary, List<MessageSummary> messages) {
+		Map<String, Counter> counters = new HashMap<>(capacity * 2);
+		Buckets buckets = new Buckets();
+		Set<String> sources = new HashSet<>();
+		for (MessageSummary message : messages) {
+			if (sources.size() <= MAX_TRACKED_SOURCES) {
+				sources.add(message.getSource());
+			}
+			String text = String.valueOf(message.getMessage());
+			String key = normalize(text);
+			Counter counter = counters.get(key);
+			if (counter != null) {
+				buckets.increment(counter);
+			} else if (counters.size() < capacity) {
+				counter = new Counter(key, text);
+				counters.put(key, counter);
+				buckets.add(counter);
+			} else {
+				// the new message takes over the smallest counter and its count
+				Counter smallest = buckets.smallest();
+				counters.remove(smallest.key);
+				smallest.error = smallest.count;
+				smallest.key = key;
+				smallest.text = text;
+				counters.put(key, smallest);
+				buckets.increment(smallest);
+			}
+		}
+
+		List<Counter> ranked = buckets.largest(top);
+
+		StringBuilder output = new StringBuilder(summary.length() + 80 + ranked.size() * 80);
+		output.append(summary);
+		if (messages.isEmpty()) {
+			output.append("No message backlog available.\n");
+			return output.toString();
+		}
+		output.append("Most frequent of ").append(messages.size()).append(" messages from ");
+		if (sources.size() > MAX_TRACKED_SOURCES) {
+			output.append("more than ").append(MAX_TRACKED_SOURCES);
+		} else {
+			output.append(sources.size());
+		}
+		output.append(" source(s): \n");
+		int size = BacklogRenderer.utf8Length(output, 0, output.length());
+		boolean others = counters.size() > ranked.size();
+		for (int i = 0; i < ranked.size(); i++) {
+			Counter counter = ranked.get(i);
+			boolean last = i == ranked.size() - 1 && !others;
+			int start = output.length();
+			if (counter.error > 0) {
+				output.append('~');
+			}
+			output.append(counter.count).append("x ");
+			// the count prefix is ASCII
+			int prefix = output.length() - start;
+			int budget = maxOutputSize - size - prefix - 1 - (last ? 0 : BacklogRenderer.TRAILER_RESERVE);
+
+			int end = BacklogRenderer.truncate(counter.text, Math.min(budget, maxMessageSize));
+			if (end < counter.text.length() && budget < maxMessageSize) {
+				// only cut messages down to the per-message limit, never to squeeze into the output
+				output.setLength(start);
+				output.append(ELLIPSIS).append(' ').append(ranked.size() - i).append(" more distinct messages omitted\n");
+				return output.toString();
+			}
+
+			output.append(counter.text, 0, end);
+			size += prefix + BacklogRenderer.utf8Length(counter.text, 0, end) + 1;
+			if (end < counter.text.length()) {
+				output.append(ELLIPSIS);
+				size += 3;
+			}
+			output.append('\n');
+		}
+		if (others) {
+			output.append(ELLIPSIS).append(" and other messages\n");
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Collapses whitespace and replaces digit runs, so messages that only
+	 * differ in numbers, timestamps or addresses are counted together.
+	 */
+	@VisibleForTesting
+	static String normalize(String text) {
+		StringBuilder normalized = new StringBuilder(text.length());
+		char last = ' ';
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			if (Character.isWhitespace(ch)) {
+				ch = ' ';
+			} else if (ch >= '0' && ch <= '9') {
+				ch = '#';
+			}
+			if ((ch == ' ' || ch == '#') && ch == last) {
+				continue;
+			}
+			normalized.append(ch);
+			last = ch;
+		}
+		int length = normalized.length();
+		if (length > 0 && normalized.charAt(length - 1) == ' ') {
+			normalized.setLength(length - 1);
+		}
+		return normalized.toString();
+	}
+
+	private static class Counter {
+		private String key;
+		private String text;
+		private long count = 1;
+		private long error;
+		private Bucket bucket;
+		private Counter previous;
+		private Counter next;
+
+		private Counter(String key, String text) {
+			this.key = key;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Counters with the same count, linked in the order they got there.
+	 */
+	private static class Bucket {
+		private final long count;
+		private Bucket lower;
+		private Bucket higher;
+		private Counter first;
+		private Counter last;
+
+		private Bucket(long count) {
+			this.count = count;
+		}
+
+		private void append(Counter counter) {
+			counter.bucket = this;
+			counter.previous = last;
+			counter.next = null;
+			if (last == null) {
+				first = counter;
+			} else {
+				last.next = counter;
+			}
+			last = counter;
+		}
+
+		private void remove(Counter counter) {
+			if (counter.previous == null) {
+				first = counter.next;
+			} else {
+				counter.previous.next = counter.next;
+			}
+			if (counter.next == null) {
+				last = counter.previous;
+			} else {
+				counter.next.previous = counter.previous;
+			}
+			counter.previous = null;
+			counter.next = null;
+		}
+	}
+
+	/**
+	 * Buckets linked in ascending order of count. A counter only ever moves
+	 * to the bucket of the next higher count, which is its bucket's
+	 * neighbour or a new bucket inserted right after it.
+	 */
+	private static class Buckets {
+		private Bucket lowest;
+		private Bucket highest;
+
+		private void add(Counter counter) {
+			if (lowest == null || lowest.count != counter.count) {
+				Bucket bucket = new Bucket(counter.count);
+				bucket.higher = lowest;
+				if (lowest == null) {
+					highest = bucket;
+				} else {
+					lowest.lower = bucket;
+				}
+				lowest = bucket;
+			}
+			lowest.append(counter);
+		}
+
+		private void increment(Counter counter) {
+			Bucket from = counter.bucket;
+			counter.count++;
+			Bucket to = from.higher;
+			if (to == null || to.count != counter.count) {
+				to = new Bucket(counter.count);
+				to.lower = from;
+				to.higher = from.higher;
+				if (from.higher == null) {
+					highest = to;
+				} else {
+					from.higher.lower = to;
+				}
+				from.higher = to;
+			}
+			from.remove(counter);
+			to.append(counter);
+			if (from.first == null) {
+				unlink(from);
+			}
+		}
+
+		private Counter smallest() {
+			return lowest.first;
+		}
+
+		private List<Counter> largest(int limit) {
+			List<Counter> ranked = new ArrayList<>(limit);
+			for (Bucket bucket = highest; bucket != null && ranked.size() < limit; bucket = bucket.lower) {
+				for (Counter counter = bucket.first; counter != null && ranked.size() < limit; counter = counter.next) {
+					ranked.add(counter);
+				}
+			}
+			return ranked;
+		}
+
+		private void unlink(Bucket bucket) {
+			if (bucket.lower == null) {
+				lowest = bucket.higher;
+			} else {
+				bucket.lower.higher = bucket.higher;
+			}
+			if (bucket.higher == null) {
+				highest = bucket.lower;
+			} else {
+				bucket.higher.lower = bucket.lower;
+			}
+		}
+	}
+}
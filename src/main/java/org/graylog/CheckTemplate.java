@@ -0,0 +1,171 @@
+package org.graylog;
+
+import java.util.Arrays;
+
+import com.google.common.base.Strings;
+
+/**
+ * The parts of a Sensu check result that only depend on the callback
+ * configuration, serialized once. Rendering a result only writes the client,
+ * name, output and timestamps around the precompiled fragments.
+ */
+public class CheckTemplate {
+
+	private static final ThreadLocal<JsonWriter> WRITERS = new ThreadLocal<JsonWriter>() {
+		@Override
+		protected JsonWriter initialValue() {
+			return new JsonWriter();
+		}
+	};
+
+	private final int status;
+	private final byte[] leadingMembers;
+	private final byte[] trailingMembers;
+	private final byte[] eventMembers;
+
+	public CheckTemplate(int status, String handlers, String subscribers, String tags) {
+		this.status = status;
+		handlers = Strings.nullToEmpty(handlers);
+		JsonWriter writer = new JsonWriter(256);
+
+		writer.beginObject();
+		writer.name("type").value("standard");
+		writer.name("command").value("none");
+		writer.name("standalone").value(true);
+		writer.name("status").value(status);
+		this.leadingMembers = members(writer);
+
+		writer.reset().beginObject();
+		if (handlers.contains(",")) {
+			writer.name("handlers");
+			writeArray(writer, splitList(handlers));
+		} else {
+			writer.name("handler").value(handlers);
+		}
+
+		String[] values = splitList(Strings.nullToEmpty(subscribers));
+		if (values.length > 0) {
+			writer.name("subscribers");
+			writeArray(writer, values);
+		}
+
+		values = splitList(Strings.nullToEmpty(tags));
+		if (values.length > 0) {
+			writer.name("tags");
+			writeArray(writer, values);
+		}
+
+		writer.name("publish").value(false);
+		this.trailingMembers = members(writer);
+
+		// Sensu Go always takes lists and calls subscribers subscriptions
+		writer.reset().beginObject();
+		writer.name("status").value(status);
+		writer.name("handlers");
+		writeArray(writer, splitList(handlers));
+		writer.name("subscriptions");
+		writeArray(writer, splitList(Strings.nullToEmpty(subscribers)));
+		this.eventMembers = members(writer);
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public void write(JsonWriter writer, String name, String output, long timestamp, String client) {
+		writer.beginObject();
+		writer.name("client").value(client.trim());
+		writer.name("check");
+		writeCheck(writer, name, output, timestamp, null);
+		writer.endObject();
+	}
+
+	/**
+	 * Writes only the check, the way a Sensu client accepts it on its socket.
+	 * A source attributes the result to that client instead of the local one.
+	 */
+	public void writeCheck(JsonWriter writer, String name, String output, long timestamp, String source) {
+		writer.beginObject();
+		writer.name("name").value(name.trim());
+		writer.raw(leadingMembers);
+		writer.name("output").value(output.trim());
+		writer.name("issued").value(timestamp);
+		writer.name("executed").value(timestamp);
+		writer.raw(trailingMembers);
+		if (source != null) {
+			writer.name("source").value(source.trim());
+		}
+		writer.endObject();
+	}
+
+	/**
+	 * Writes the result as a Sensu Go event of a proxy entity named after the
+	 * client, which the backend creates on the first event.
+	 */
+	public void writeEvent(JsonWriter writer, String name, String output, long timestamp, String entity, String namespace) {
+		writer.beginObject();
+		writer.name("entity").beginObject();
+		writer.name("entity_class").value("proxy");
+		writeMetadata(writer, entity.trim(), namespace);
+		writer.endObject();
+		writer.name("check").beginObject();
+		writeMetadata(writer, name.trim(), namespace);
+		writer.raw(eventMembers);
+		writer.name("output").value(output.trim());
+		writer.name("issued").value(timestamp);
+		writer.name("executed").value(timestamp);
+		writer.endObject();
+		writer.endObject();
+	}
+
+	/**
+	 * Renders the result as UTF-8 JSON into a per-thread buffer and returns an
+	 * exact-length copy that can be handed to the broker as is.
+	 */
+	public byte[] render(String name, String output, long timestamp, String client) {
+		JsonWriter writer = WRITERS.get().reset();
+		write(writer, name, output, timestamp, client);
+		return writer.toByteArray();
+	}
+
+	public byte[] renderCheck(String name, String output, long timestamp, String source) {
+		JsonWriter writer = WRITERS.get().reset();
+		writeCheck(writer, name, output, timestamp, source);
+		return writer.toByteArray();
+	}
+
+	public byte[] renderEvent(String name, String output, long timestamp, String entity, String namespace) {
+		JsonWriter writer = WRITERS.get().reset();
+		writeEvent(writer, name, output, timestamp, entity, namespace);
+		return writer.toByteArray();
+	}
+
+	private static void writeMetadata(JsonWriter writer, String name, String namespace) {
+		writer.name("metadata").beginObject();
+		writer.name("name").value(name);
+		writer.name("namespace").value(namespace);
+		writer.endObject();
+	}
+
+	private static byte[] members(JsonWriter writer) {
+		// drop the opening brace of the scratch object
+		return Arrays.copyOfRange(writer.buffer(), 1, writer.size());
+	}
+
+	private static void writeArray(JsonWriter writer, String[] values) {
+		writer.beginArray();
+		for (String value : values) {
+			writer.value(value.trim());
+		}
+		writer.endArray();
+	}
+
+	private static String[] splitList(String input) {
+		if (input.contains(",")) {
+			return input.split(",");
+		} else if (!"".equals(input)) {
+			return new String[] { input };
+		}
+		return new String[0];
+	}
+}
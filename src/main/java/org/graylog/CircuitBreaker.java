@@ -0,0 +1,116 @@
+package org.graylog;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Stops callers from waiting on a broker that keeps failing. After a number
+ * of consecutive failures the breaker opens and rejects calls for a jittered,
+ * exponentially growing backoff. Once that has passed a single call is let
+ * through as a probe: its success closes the breaker, its failure opens it
+ * again for a longer backoff.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private volatile int failureThreshold;
+	private volatile long baseBackoffMillis;
+	private volatile long maxBackoffMillis;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private int openings;
+	private long openUntil;
+	private long probeDeadline;
+
+	public CircuitBreaker(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+		configure(failureThreshold, baseBackoffMillis, maxBackoffMillis);
+	}
+
+	/**
+	 * A threshold of zero or less disables the breaker.
+	 */
+	public void configure(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+		this.failureThreshold = failureThreshold;
+		this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+		this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+	}
+
+	public boolean allowRequest() {
+		return allowRequest(System.currentTimeMillis());
+	}
+
+	@VisibleForTesting
+	synchronized boolean allowRequest(long now) {
+		if (failureThreshold <= 0) {
+			return true;
+		}
+		switch (state) {
+		case OPEN:
+			if (now < openUntil) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probeDeadline = now + maxBackoffMillis;
+			return true;
+		case HALF_OPEN:
+			// a probe that never reported back must not keep the breaker stuck
+			if (now < probeDeadline) {
+				return false;
+			}
+			probeDeadline = now + maxBackoffMillis;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		openings = 0;
+	}
+
+	public void recordFailure() {
+		recordFailure(System.currentTimeMillis());
+	}
+
+	@VisibleForTesting
+	synchronized void recordFailure(long now) {
+		consecutiveFailures++;
+		if (failureThreshold <= 0) {
+			return;
+		}
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openUntil = now + backoffMillis(baseBackoffMillis, maxBackoffMillis, openings++);
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Milliseconds until the next probe is let through, or zero.
+	 */
+	public synchronized long getRemainingMillis() {
+		return state == State.OPEN ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+	}
+
+	/**
+	 * Exponential backoff with equal jitter: half of the delay is fixed, the
+	 * other half random, so callers that failed together spread out again.
+	 */
+	public static long backoffMillis(long baseMillis, long maxMillis, int attempt) {
+		long delay = maxMillis;
+		if (attempt < 30) {
+			delay = Math.min(maxMillis, baseMillis << attempt);
+		}
+		long half = Math.max(1, delay / 2);
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+}
@@ -0,0 +1,107 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.rabbitmq.client.Address;
+
+/**
+ * The nodes of a RabbitMQ cluster and which of them recently failed. New
+ * connections go to a random healthy node, so the Graylog servers spread
+ * over the cluster, and a node that failed is only tried again once its
+ * cool-down has passed or every other node failed as well.
+ */
+public class ClusterNodes {
+	public static final int DEFAULT_COOL_DOWN = 30000;
+
+	private final List<Address> addresses;
+	private final ConcurrentMap<Address, Long> downUntil = new ConcurrentHashMap<>();
+	private volatile long coolDownMillis = DEFAULT_COOL_DOWN;
+
+	@VisibleForTesting
+	ClusterNodes(List<Address> addresses) {
+		this.addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+	}
+
+	/**
+	 * Parses a comma separated list of {@code host[:port]} entries, entries
+	 * without a port use the given default port.
+	 *
+	 * @throws IllegalArgumentException if the list is empty or a port is not a number
+	 */
+	public static ClusterNodes parse(String hosts, int defaultPort) {
+		List<Address> addresses = new ArrayList<>();
+		for (Address address : Address.parseAddresses(hosts.trim())) {
+			if (address.getHost().trim().isEmpty()) {
+				continue;
+			}
+			addresses.add(new Address(address.getHost().trim(), address.getPort() < 0 ? defaultPort : address.getPort()));
+		}
+		if (addresses.isEmpty()) {
+			throw new IllegalArgumentException("No RabbitMQ host in \"" + hosts + "\"");
+		}
+		return new ClusterNodes(addresses);
+	}
+
+	public List<Address> getAddresses() {
+		return addresses;
+	}
+
+	public void setCoolDownMillis(long coolDownMillis) {
+		this.coolDownMillis = Math.max(0, coolDownMillis);
+	}
+
+	/**
+	 * Healthy nodes in random order, followed by the nodes still cooling
+	 * down, the one that becomes available first in front.
+	 */
+	public List<Address> connectOrder() {
+		return connectOrder(System.currentTimeMillis());
+	}
+
+	@VisibleForTesting
+	List<Address> connectOrder(long now) {
+		List<Address> healthy = new ArrayList<>(addresses.size());
+		List<Address> coolingDown = new ArrayList<>();
+		for (Address address : addresses) {
+			Long until = downUntil.get(address);
+			if (until == null || until <= now) {
+				healthy.add(address);
+			} else {
+				coolingDown.add(address);
+			}
+		}
+		Collections.shuffle(healthy);
+		Collections.sort(coolingDown, new Comparator<Address>() {
+			@Override
+			public int compare(Address a, Address b) {
+				return Long.compare(until(a), until(b));
+			}
+		});
+		healthy.addAll(coolingDown);
+		return healthy;
+	}
+
+	public void markDown(Address address) {
+		markDown(address, System.currentTimeMillis());
+	}
+
+	@VisibleForTesting
+	void markDown(Address address, long now) {
+		downUntil.put(address, now + coolDownMillis);
+	}
+
+	public void markUp(Address address) {
+		downUntil.remove(address);
+	}
+
+	private long until(Address address) {
+		Long until = downUntil.get(address);
+		return until == null ? 0 : until;
+	}
+}
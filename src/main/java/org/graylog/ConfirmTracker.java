@@ -0,0 +1,179 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Timer;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Tracks the unconfirmed publishes of one channel in confirm mode. Delivery
+ * tags are kept in a sorted map so multi-acks and multi-nacks can be
+ * settled by consuming the head of the map; nacked, timed out and orphaned
+ * publishes are handed to a {@link Republisher}.
+ */
+public class ConfirmTracker implements ConfirmListener {
+
+	public interface Republisher {
+		void republish(PendingConfirm pending);
+	}
+
+	private final ConcurrentNavigableMap<Long, PendingConfirm> outstanding = new ConcurrentSkipListMap<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final Object settled = new Object();
+	private final Republisher republisher;
+
+	public ConfirmTracker(Republisher republisher) {
+		this.republisher = republisher;
+	}
+
+	public void track(long deliveryTag, byte[] body, int attempt) {
+		if (outstanding.put(deliveryTag, new PendingConfirm(body, attempt, System.currentTimeMillis())) == null) {
+			size.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops tracking a publish that never reached the broker.
+	 */
+	public void forget(long deliveryTag) {
+		if (outstanding.remove(deliveryTag) != null) {
+			size.decrementAndGet();
+			signalSettled();
+		}
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		Timer confirmTime = SensuMetrics.shared().getConfirmTime();
+		long now = System.currentTimeMillis();
+		for (PendingConfirm pending : settle(deliveryTag, multiple)) {
+			confirmTime.update(now - pending.publishedAt, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		for (PendingConfirm pending : settle(deliveryTag, multiple)) {
+			republisher.republish(pending);
+		}
+	}
+
+	/**
+	 * Republishes everything that has not been confirmed within the timeout.
+	 */
+	public void expire(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() - timeoutMillis;
+		for (Map.Entry<Long, PendingConfirm> entry : outstanding.entrySet()) {
+			if (entry.getValue().publishedAt < deadline && outstanding.remove(entry.getKey(), entry.getValue())) {
+				size.decrementAndGet();
+				republisher.republish(entry.getValue());
+			}
+		}
+		signalSettled();
+	}
+
+	/**
+	 * Republishes everything outstanding, used when the channel is shut down
+	 * and its delivery tags lose their meaning.
+	 */
+	public void failAll() {
+		Map.Entry<Long, PendingConfirm> entry;
+		while ((entry = outstanding.pollFirstEntry()) != null) {
+			size.decrementAndGet();
+			republisher.republish(entry.getValue());
+		}
+		signalSettled();
+	}
+
+	public int getOutstanding() {
+		return size.get();
+	}
+
+	/**
+	 * Waits until fewer than {@code maxOutstanding} publishes are unconfirmed.
+	 */
+	public boolean awaitCapacity(int maxOutstanding, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (settled) {
+			while (size.get() >= maxOutstanding) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				settled.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until every publish up to and including {@code deliveryTag} is
+	 * settled, either confirmed or handed to the republisher.
+	 */
+	public boolean awaitSettled(long deliveryTag, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (settled) {
+			while (!outstanding.headMap(deliveryTag, true).isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				settled.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	private List<PendingConfirm> settle(long deliveryTag, boolean multiple) {
+		List<PendingConfirm> settledConfirms = new ArrayList<>();
+		if (multiple) {
+			Map.Entry<Long, PendingConfirm> entry;
+			while ((entry = outstanding.firstEntry()) != null && entry.getKey() <= deliveryTag) {
+				if (outstanding.remove(entry.getKey(), entry.getValue())) {
+					size.decrementAndGet();
+					settledConfirms.add(entry.getValue());
+				}
+			}
+		} else {
+			PendingConfirm pending = outstanding.remove(deliveryTag);
+			if (pending != null) {
+				size.decrementAndGet();
+				settledConfirms.add(pending);
+			}
+		}
+		signalSettled();
+		return settledConfirms;
+	}
+
+	private void signalSettled() {
+		synchronized (settled) {
+			settled.notifyAll();
+		}
+	}
+
+	public static class PendingConfirm {
+		private final byte[] body;
+		private final int attempt;
+		private final long publishedAt;
+
+		private PendingConfirm(byte[] body, int attempt, long publishedAt) {
+			this.body = body;
+			this.attempt = attempt;
+			this.publishedAt = publishedAt;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public int getAttempt() {
+			return attempt;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package org.graylog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON writer that encodes straight into a growable UTF-8
+ * byte buffer. Instances are meant to be reset and reused by one thread.
+ * Strings are escaped the same way json-simple escapes them, so the output
+ * matches what {@code JSONObject.toJSONString()} used to produce.
+ */
+public class JsonWriter {
+	private static final int MAX_DEPTH = 16;
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+	private byte[] buffer;
+	private int size;
+	private final boolean[] hasElements = new boolean[MAX_DEPTH];
+	private int depth;
+	private boolean afterName;
+
+	public JsonWriter() {
+		this(1024);
+	}
+
+	public JsonWriter(int initialCapacity) {
+		this.buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	public JsonWriter reset() {
+		size = 0;
+		depth = 0;
+		afterName = false;
+		return this;
+	}
+
+	public JsonWriter beginObject() {
+		beforeValue();
+		writeByte('{');
+		push();
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		depth--;
+		writeByte('}');
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		beforeValue();
+		writeByte('[');
+		push();
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		depth--;
+		writeByte(']');
+		return this;
+	}
+
+	public JsonWriter name(String name) {
+		beforeValue();
+		writeString(name);
+		writeByte(':');
+		afterName = true;
+		return this;
+	}
+
+	public JsonWriter value(String value) {
+		beforeValue();
+		if (value == null) {
+			writeAscii("null");
+		} else {
+			writeString(value);
+		}
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		beforeValue();
+		writeAscii(Long.toString(value));
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		beforeValue();
+		writeBytes(value ? TRUE : FALSE, 0, value ? TRUE.length : FALSE.length);
+		return this;
+	}
+
+	/**
+	 * Appends an already serialized JSON fragment, either a value after
+	 * {@link #name} or one or more comma separated object members.
+	 */
+	public JsonWriter raw(byte[] json) {
+		beforeValue();
+		writeBytes(json, 0, json.length);
+		return this;
+	}
+
+	public byte[] buffer() {
+		return buffer;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, size, StandardCharsets.UTF_8);
+	}
+
+	private void push() {
+		hasElements[depth++] = false;
+	}
+
+	private void beforeValue() {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (depth > 0) {
+			if (hasElements[depth - 1]) {
+				writeByte(',');
+			}
+			hasElements[depth - 1] = true;
+		}
+	}
+
+	private void writeString(String value) {
+		ensureCapacity(value.length() + 2);
+		buffer[size++] = '"';
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '"':
+				writeEscape('"');
+				break;
+			case '\\':
+				writeEscape('\\');
+				break;
+			case '\b':
+				writeEscape('b');
+				break;
+			case '\f':
+				writeEscape('f');
+				break;
+			case '\n':
+				writeEscape('n');
+				break;
+			case '\r':
+				writeEscape('r');
+				break;
+			case '\t':
+				writeEscape('t');
+				break;
+			case '/':
+				writeEscape('/');
+				break;
+			default:
+				if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
+					writeUnicodeEscape(ch);
+				} else if (ch < 0x80) {
+					writeByte(ch);
+				} else if (ch < 0x800) {
+					ensureCapacity(2);
+					buffer[size++] = (byte) (0xC0 | (ch >> 6));
+					buffer[size++] = (byte) (0x80 | (ch & 0x3F));
+				} else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+					ensureCapacity(4);
+					buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+					buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+				} else if (Character.isSurrogate(ch)) {
+					// unpaired surrogate, replaced like String.getBytes(UTF_8) does
+					writeByte('?');
+				} else {
+					ensureCapacity(3);
+					buffer[size++] = (byte) (0xE0 | (ch >> 12));
+					buffer[size++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+					buffer[size++] = (byte) (0x80 | (ch & 0x3F));
+				}
+			}
+		}
+		writeByte('"');
+	}
+
+	private void writeEscape(char escaped) {
+		ensureCapacity(2);
+		buffer[size++] = '\\';
+		buffer[size++] = (byte) escaped;
+	}
+
+	private void writeUnicodeEscape(char ch) {
+		ensureCapacity(6);
+		buffer[size++] = '\\';
+		buffer[size++] = 'u';
+		buffer[size++] = HEX[(ch >> 12) & 0xF];
+		buffer[size++] = HEX[(ch >> 8) & 0xF];
+		buffer[size++] = HEX[(ch >> 4) & 0xF];
+		buffer[size++] = HEX[ch & 0xF];
+	}
+
+	private void writeAscii(String value) {
+		ensureCapacity(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer[size++] = (byte) value.charAt(i);
+		}
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+	private void writeBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buffer, size, length);
+		size += length;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (size + additional > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+		}
+	}
+}
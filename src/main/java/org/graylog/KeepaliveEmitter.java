@@ -0,0 +1,222 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Publishes Sensu keepalives for the clients the plugin sent results for, so
+ * clients that only exist in Graylog, like those of "[source]", have a
+ * keepalive state in Sensu. Clients are forgotten when no result arrived for
+ * them within their TTL, or when more than the maximum number are tracked,
+ * least recently used first. One thread sends the keepalives that are due,
+ * batched per broker on a single channel. The first keepalive of a client
+ * comes at a random point of its interval and every following interval is
+ * jittered, so the keepalives of many clients stay spread out. A single
+ * instance, owned by {@link SensuPublisherService}, is shared by all callbacks.
+ */
+public class KeepaliveEmitter {
+	private static final Logger LOG = LoggerFactory.getLogger(KeepaliveEmitter.class);
+
+	public static final int DEFAULT_TTL = 3600;
+	public static final int DEFAULT_MAX_CLIENTS = 10000;
+
+	private static final long TICK_MILLIS = 1000;
+	private static final int MAX_BATCH_SIZE = 100;
+	private static final double JITTER = 0.1;
+
+	private final Random random;
+	private final LruMap clients;
+	private ScheduledExecutorService scheduler;
+	private boolean closed;
+
+	KeepaliveEmitter() {
+		this(DEFAULT_MAX_CLIENTS, new Random());
+	}
+
+	@VisibleForTesting
+	KeepaliveEmitter(int maxClients, Random random) {
+		this.random = random;
+		this.clients = new LruMap(maxClients);
+	}
+
+	/**
+	 * Keeps sending keepalives for the client every {@code intervalSeconds}
+	 * until no result was sent for it for {@code ttlSeconds}.
+	 */
+	public synchronized void track(RabbitMQClient transport, String client, int intervalSeconds, int ttlSeconds) {
+		long now = System.currentTimeMillis();
+		long intervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds));
+		Key key = new Key(transport, client.trim());
+		TrackedClient tracked = clients.get(key);
+		if (tracked == null) {
+			tracked = new TrackedClient(now + (long) (random.nextDouble() * intervalMillis));
+			clients.put(key, tracked);
+		}
+		tracked.intervalMillis = intervalMillis;
+		tracked.expiresAt = now + TimeUnit.SECONDS.toMillis(ttlSeconds);
+	}
+
+	public synchronized int getTrackedCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Sends the keepalives due at {@code now} and forgets expired clients.
+	 *
+	 * @return the number of keepalives published
+	 */
+	@VisibleForTesting
+	int emit(long now) {
+		Map<RabbitMQClient, List<String>> due = new LinkedHashMap<>();
+		synchronized (this) {
+			Iterator<Map.Entry<Key, TrackedClient>> iterator = clients.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Key, TrackedClient> entry = iterator.next();
+				TrackedClient tracked = entry.getValue();
+				if (tracked.expiresAt <= now) {
+					iterator.remove();
+					continue;
+				}
+				if (tracked.nextDue > now) {
+					continue;
+				}
+				double jitter = 1 + JITTER * (2 * random.nextDouble() - 1);
+				tracked.nextDue = now + (long) (tracked.intervalMillis * jitter);
+				List<String> names = due.get(entry.getKey().transport);
+				if (names == null) {
+					names = new ArrayList<>();
+					due.put(entry.getKey().transport, names);
+				}
+				names.add(entry.getKey().client);
+			}
+		}
+
+		int published = 0;
+		long timestamp = now / 1000;
+		JsonWriter writer = new JsonWriter(128);
+		for (Map.Entry<RabbitMQClient, List<String>> broker : due.entrySet()) {
+			List<String> names = broker.getValue();
+			for (int from = 0; from < names.size(); from += MAX_BATCH_SIZE) {
+				List<byte[]> bodies = new ArrayList<>(Math.min(MAX_BATCH_SIZE, names.size() - from));
+				for (String name : names.subList(from, Math.min(names.size(), from + MAX_BATCH_SIZE))) {
+					bodies.add(render(writer, name, timestamp));
+				}
+				try {
+					broker.getKey().sendKeepalives(bodies);
+					published += bodies.size();
+				} catch (Exception e) {
+					LOG.debug("Could not publish {} Sensu keepalive(s)", bodies.size(), e);
+				}
+			}
+		}
+		return published;
+	}
+
+	private static byte[] render(JsonWriter writer, String client, long timestamp) {
+		writer.reset().beginObject();
+		writer.name("name").value(client);
+		writer.name("address").value(client);
+		writer.name("subscriptions").beginArray().endArray();
+		writer.name("timestamp").value(timestamp);
+		writer.endObject();
+		return writer.toByteArray();
+	}
+
+	public synchronized void start() {
+		if (scheduler != null || closed) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("sensu-keepalive-%d").setDaemon(true).build());
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					emit(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					LOG.warn("Sending Sensu keepalives failed", e);
+				}
+			}
+		}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public void close() {
+		ScheduledExecutorService current;
+		synchronized (this) {
+			closed = true;
+			current = scheduler;
+			scheduler = null;
+			clients.clear();
+		}
+		if (current != null) {
+			current.shutdownNow();
+		}
+	}
+
+	/**
+	 * Access ordered map dropping the least recently used client once it
+	 * holds more than the maximum. It is never serialized.
+	 */
+	@SuppressWarnings("serial")
+	private static class LruMap extends LinkedHashMap<Key, TrackedClient> {
+		private final int maxClients;
+
+		private LruMap(int maxClients) {
+			super(16, 0.75f, true);
+			this.maxClients = maxClients;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, TrackedClient> eldest) {
+			return size() > maxClients;
+		}
+	}
+
+	private static class Key {
+		private final RabbitMQClient transport;
+		private final String client;
+
+		private Key(RabbitMQClient transport, String client) {
+			this.transport = transport;
+			this.client = client;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return client.equals(other.client) && transport.equals(other.transport);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(transport, client);
+		}
+	}
+
+	private static class TrackedClient {
+		private long nextDue;
+		private long intervalMillis;
+		private long expiresAt;
+
+		private TrackedClient(long nextDue) {
+			this.nextDue = nextDue;
+		}
+	}
+}
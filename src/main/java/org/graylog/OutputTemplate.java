@@ -0,0 +1,376 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.graylog2.plugin.MessageSummary;
+import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
+import org.graylog2.plugin.streams.Stream;
+
+/**
+ * A user defined check output. The template is parsed once into literal and
+ * placeholder segments, so rendering an alert is a single pass over the
+ * segments into one pre-sized buffer. The part between {@code ${messages}}
+ * and {@code ${end}} is repeated for every backlog message, with the same
+ * size limits as {@link BacklogRenderer}: {@code ${message}} is cut to the
+ * message limit and messages that do not fit the output are summarized.
+ * A literal {@code $} is written as {@code $$}.
+ */
+public class OutputTemplate {
+	private static final String SECTION_START = "messages";
+	private static final String SECTION_END = "end";
+	private static final String FIELD_PREFIX = "fields.";
+	private static final String ELLIPSIS = "\u2026";
+	// room for "… 2147483647 more messages omitted\n"
+	private static final int TRAILER_RESERVE = 40;
+	private static final int VALUE_ESTIMATE = 32;
+
+	/**
+	 * Renders one placeholder or literal.
+	 */
+	private interface Segment {
+		void append(StringBuilder output, Context context, MessageSummary message);
+	}
+
+	private enum Placeholder {
+		STREAM_TITLE("stream.title", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.stream.getTitle();
+			}
+		},
+		STREAM_ID("stream.id", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.stream.getId();
+			}
+		},
+		STREAM_DESCRIPTION("stream.description", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.stream.getDescription();
+			}
+		},
+		STREAM_URL("stream.url", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.streamUrl;
+			}
+		},
+		RESULT_DESCRIPTION("result.description", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.result.getResultDescription();
+			}
+		},
+		RESULT_TRIGGERED_AT("result.triggered_at", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.result.getTriggeredAt();
+			}
+		},
+		ALERT_CLIENT("alert.client", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.client;
+			}
+		},
+		ALERT_CHECK("alert.check", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.checkName;
+			}
+		},
+		ALERT_SUPPRESSED("alert.suppressed", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.suppressed;
+			}
+		},
+		ALERT_MESSAGE_COUNT("alert.message_count", false) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return context.messageCount;
+			}
+		},
+		ID("id", true) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return message.getId();
+			}
+		},
+		SOURCE("source", true) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return message.getSource();
+			}
+		},
+		MESSAGE("message", true) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return message.getMessage();
+			}
+		},
+		TIMESTAMP("timestamp", true) {
+			@Override
+			Object value(Context context, MessageSummary message) {
+				return message.getTimestamp();
+			}
+		};
+
+		private final String name;
+		private final boolean perMessage;
+
+		Placeholder(String name, boolean perMessage) {
+			this.name = name;
+			this.perMessage = perMessage;
+		}
+
+		abstract Object value(Context context, MessageSummary message);
+
+		static Placeholder forName(String name) {
+			for (Placeholder placeholder : values()) {
+				if (placeholder.name.equals(name)) {
+					return placeholder;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Segment[] header;
+	private final Segment[] section;
+	private final Segment[] footer;
+	private final int literalLength;
+	private final int sectionLiteralLength;
+	private final boolean usesStreamUrl;
+	private final int maxOutputSize;
+	private final int maxMessageSize;
+
+	private OutputTemplate(List<Segment> header, List<Segment> section, List<Segment> footer, int literalLength,
+			int sectionLiteralLength, boolean usesStreamUrl, int maxOutputSize, int maxMessageSize) {
+		this.header = header.toArray(new Segment[header.size()]);
+		this.section = section == null ? null : section.toArray(new Segment[section.size()]);
+		this.footer = footer.toArray(new Segment[footer.size()]);
+		this.literalLength = literalLength;
+		this.sectionLiteralLength = sectionLiteralLength;
+		this.usesStreamUrl = usesStreamUrl;
+		this.maxOutputSize = maxOutputSize > 0 ? maxOutputSize : Integer.MAX_VALUE;
+		this.maxMessageSize = maxMessageSize > 0 ? maxMessageSize : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a placeholder is unknown, not
+	 *         closed, or a message placeholder is used outside the messages section
+	 */
+	public static OutputTemplate compile(String template, int maxOutputSize, int maxMessageSize) {
+		List<Segment> header = new ArrayList<>();
+		List<Segment> section = null;
+		List<Segment> footer = null;
+		List<Segment> current = header;
+		StringBuilder literal = new StringBuilder();
+		int literalLength = 0;
+		int sectionLiteralLength = 0;
+		boolean usesStreamUrl = false;
+
+		int i = 0;
+		while (i < template.length()) {
+			char ch = template.charAt(i);
+			if (ch != '$' || i + 1 == template.length()) {
+				literal.append(ch);
+				i++;
+				continue;
+			}
+			if (template.charAt(i + 1) == '$') {
+				literal.append('$');
+				i += 2;
+				continue;
+			}
+			if (template.charAt(i + 1) != '{') {
+				literal.append(ch);
+				i++;
+				continue;
+			}
+			int close = template.indexOf('}', i + 2);
+			if (close < 0) {
+				throw new IllegalArgumentException("Placeholder at position " + i + " is not closed");
+			}
+			String name = template.substring(i + 2, close).trim();
+
+			if (current == section) {
+				sectionLiteralLength += literal.length();
+			} else {
+				literalLength += literal.length();
+			}
+			addLiteral(current, literal);
+
+			if (SECTION_START.equals(name)) {
+				if (section != null) {
+					throw new IllegalArgumentException("Only one ${" + SECTION_START + "} section is allowed");
+				}
+				section = new ArrayList<>();
+				current = section;
+			} else if (SECTION_END.equals(name)) {
+				if (current != section) {
+					throw new IllegalArgumentException("${" + SECTION_END + "} at position " + i + " without ${" + SECTION_START + "}");
+				}
+				footer = new ArrayList<>();
+				current = footer;
+			} else if (name.startsWith(FIELD_PREFIX) && name.length() > FIELD_PREFIX.length()) {
+				if (current != section) {
+					throw new IllegalArgumentException("${" + name + "} is only available between ${" + SECTION_START
+							+ "} and ${" + SECTION_END + "}");
+				}
+				current.add(field(name.substring(FIELD_PREFIX.length())));
+			} else {
+				Placeholder placeholder = Placeholder.forName(name);
+				if (placeholder == null) {
+					throw new IllegalArgumentException("Unknown placeholder ${" + name + "}");
+				}
+				if (placeholder.perMessage && current != section) {
+					throw new IllegalArgumentException("${" + name + "} is only available between ${" + SECTION_START
+							+ "} and ${" + SECTION_END + "}");
+				}
+				usesStreamUrl |= placeholder == Placeholder.STREAM_URL;
+				current.add(placeholder == Placeholder.MESSAGE ? message(maxMessageSize) : placeholder(placeholder));
+			}
+			i = close + 1;
+		}
+		if (section != null && footer == null) {
+			throw new IllegalArgumentException("${" + SECTION_START + "} is not closed by ${" + SECTION_END + "}");
+		}
+		literalLength += literal.length();
+		addLiteral(current, literal);
+
+		return new OutputTemplate(header, section, footer == null ? new ArrayList<Segment>() : footer, literalLength,
+				sectionLiteralLength, usesStreamUrl, maxOutputSize, maxMessageSize);
+	}
+
+	/**
+	 * Whether {@code ${stream.url}} is used, so callers only build the URL when needed.
+	 */
+	public boolean usesStreamUrl() {
+		return usesStreamUrl;
+	}
+
+	public String render(Context context, List<MessageSummary> messages) {
+		int capacity = literalLength + (header.length + footer.length) * VALUE_ESTIMATE;
+		if (section != null) {
+			for (int i = 0; i < messages.size() && capacity < maxOutputSize; i++) {
+				String text = messages.get(i).getMessage();
+				capacity += sectionLiteralLength + Math.min(text == null ? 4 : text.length(), maxMessageSize);
+			}
+		}
+		StringBuilder output = new StringBuilder(Math.min(capacity, maxOutputSize) + TRAILER_RESERVE);
+
+		append(output, header, context, null);
+		if (section != null) {
+			appendMessages(output, context, messages);
+		}
+		append(output, footer, context, null);
+		return output.toString();
+	}
+
+	private void appendMessages(StringBuilder output, Context context, List<MessageSummary> messages) {
+		int size = BacklogRenderer.utf8Length(output, 0, output.length());
+		for (int i = 0; i < messages.size(); i++) {
+			int start = output.length();
+			append(output, section, context, messages.get(i));
+			int bytes = BacklogRenderer.utf8Length(output, start, output.length());
+
+			boolean last = i == messages.size() - 1;
+			if (size + bytes > maxOutputSize - (last ? 0 : TRAILER_RESERVE)) {
+				output.setLength(start);
+				output.append(ELLIPSIS).append(' ').append(messages.size() - i).append(" more messages omitted\n");
+				return;
+			}
+			size += bytes;
+		}
+	}
+
+	private static void append(StringBuilder output, Segment[] segments, Context context, MessageSummary message) {
+		for (Segment segment : segments) {
+			segment.append(output, context, message);
+		}
+	}
+
+	private static void addLiteral(List<Segment> segments, StringBuilder literal) {
+		if (literal.length() == 0) {
+			return;
+		}
+		final String text = literal.toString();
+		literal.setLength(0);
+		segments.add(new Segment() {
+			@Override
+			public void append(StringBuilder output, Context context, MessageSummary message) {
+				output.append(text);
+			}
+		});
+	}
+
+	private static Segment placeholder(final Placeholder placeholder) {
+		return new Segment() {
+			@Override
+			public void append(StringBuilder output, Context context, MessageSummary message) {
+				Object value = placeholder.value(context, message);
+				if (value != null) {
+					output.append(value);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The message text, cut to the per-message limit.
+	 */
+	private static Segment message(int maxMessageSize) {
+		final int maxBytes = maxMessageSize > 0 ? maxMessageSize : Integer.MAX_VALUE;
+		return new Segment() {
+			@Override
+			public void append(StringBuilder output, Context context, MessageSummary message) {
+				String text = String.valueOf(message.getMessage());
+				int end = BacklogRenderer.truncate(text, maxBytes);
+				output.append(text, 0, end);
+				if (end < text.length()) {
+					output.append(ELLIPSIS);
+				}
+			}
+		};
+	}
+
+	private static Segment field(final String name) {
+		return new Segment() {
+			@Override
+			public void append(StringBuilder output, Context context, MessageSummary message) {
+				Object value = message.getField(name);
+				if (value != null) {
+					output.append(value);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The alert level values a template can refer to.
+	 */
+	public static class Context {
+		private final Stream stream;
+		private final CheckResult result;
+		private final String checkName;
+		private final String client;
+		private final long suppressed;
+		private final int messageCount;
+		private final String streamUrl;
+
+		public Context(Stream stream, CheckResult result, String checkName, String client, long suppressed,
+				int messageCount, String streamUrl) {
+			this.stream = stream;
+			this.result = result;
+			this.checkName = checkName;
+			this.client = client;
+			this.suppressed = suppressed;
+			this.messageCount = messageCount;
+			this.streamUrl = streamUrl;
+		}
+	}
+}
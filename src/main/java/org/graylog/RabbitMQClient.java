@@ -1,17 +1,17 @@
 package org.graylog;
 
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-
-
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.TimeoutException;
 
-import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class RabbitMQClient {
+public class RabbitMQClient implements SensuTransport {
+	private static final Logger LOG = LoggerFactory.getLogger(RabbitMQClient.class);
 
 	private String userName;
 	private String password;
@@ -19,45 +19,125 @@ public class RabbitMQClient {
 	private String hostName;
 	private int portNumber;
 	private boolean useSSL;
-	
-	
+	private RabbitMQSettings settings;
+	private volatile RabbitMQConnection connection;
+
 	public RabbitMQClient(String userName, String password, String virtualHost, String hostName, int portNumber, boolean useSSL) {
+		this(userName, password, virtualHost, hostName, portNumber, useSSL, new RabbitMQSettings());
+	}
+
+	public RabbitMQClient(String userName, String password, String virtualHost, String hostName, int portNumber, boolean useSSL,
+			RabbitMQSettings settings) {
 		this.userName = userName;
 		this.password = password;
 		this.virtualHost = virtualHost;
 		this.hostName = hostName;
 		this.portNumber = portNumber;
 		this.useSSL = useSSL;
+		this.settings = settings;
+	}
+
+	@Override
+	public Format getFormat() {
+		return Format.RESULT;
+	}
+
+	@Override
+	public void send(byte[] body) throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException{
+		RabbitMQConnection connection = connection();
+		try {
+			connection.publish(body);
+			SensuMetrics.shared().getPublished().mark();
+		} catch (IOException | TimeoutException e) {
+			if (!connection.spool(body)) {
+				SensuMetrics.shared().getFailed().mark();
+				throw e;
+			}
+			SensuMetrics.shared().getSpooled().mark();
+		}
+	}
+
+	@Override
+	public void sendBatch(List<byte[]> bodies) throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException {
+		RabbitMQConnection connection = connection();
+		try {
+			connection.publishBatch(bodies);
+			SensuMetrics.shared().getPublished().mark(bodies.size());
+		} catch (IOException | TimeoutException e) {
+			// bodies written before the failure are on their way, only the tail is spooled
+			int written = e instanceof RabbitMQConnection.PartialBatchException
+					? ((RabbitMQConnection.PartialBatchException) e).getWritten() : 0;
+			SensuMetrics.shared().getPublished().mark(written);
+			int lost = 0;
+			for (byte[] body : bodies.subList(written, bodies.size())) {
+				if (connection.spool(body)) {
+					SensuMetrics.shared().getSpooled().mark();
+				} else {
+					SensuMetrics.shared().getFailed().mark();
+					lost++;
+				}
+			}
+			if (lost > 0) {
+				LOG.warn("{} of {} unsent Sensu result(s) could not be spooled and are lost", lost, bodies.size() - written);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Publishes keepalives for clients of this broker. Keepalives are not
+	 * spooled, a stale one would only mislead Sensu.
+	 */
+	public void sendKeepalives(List<byte[]> bodies) throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException {
+		RabbitMQConnection connection = connection();
+		connection.publishKeepalives(bodies);
+		SensuMetrics.shared().getKeepalives().mark(bodies.size());
+	}
+
+	@Override
+	public boolean spool(byte[] body) {
+		try {
+			return connection().spool(body);
+		} catch (KeyManagementException | NoSuchAlgorithmException e) {
+			return false;
+		}
 	}
-	
-	public void send(String message) throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException{
-		ConnectionFactory factory = new ConnectionFactory();
-		
-		if (useSSL){
-			factory.useSslProtocol("SSL");
+
+	/**
+	 * Looks up the shared connection and applies the settings of this client
+	 * to it, once rather than on every publish.
+	 */
+	private RabbitMQConnection connection() throws KeyManagementException, NoSuchAlgorithmException {
+		RabbitMQConnection current = connection;
+		if (current == null) {
+			current = RabbitMQConnection.forBroker(userName, password, virtualHost, hostName, portNumber, useSSL, settings);
+			current.configure(settings);
+			connection = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Clients are equal when they publish through the same connection, so
+	 * results of different callbacks can be batched together.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof RabbitMQClient)) {
+			return false;
 		}
+		RabbitMQClient other = (RabbitMQClient) o;
+		return portNumber == other.portNumber && useSSL == other.useSSL && Objects.equals(userName, other.userName)
+				&& Objects.equals(password, other.password) && Objects.equals(virtualHost, other.virtualHost)
+				&& Objects.equals(hostName, other.hostName)
+				&& settings.connectionKey().equals(other.settings.connectionKey());
+	}
 
-		factory.setUsername(userName);
-		factory.setPassword(password);
-		factory.setVirtualHost(virtualHost);
-		factory.setHost(hostName);
-		factory.setPort(portNumber);
-		
-		Connection conn = factory.newConnection();
-
-		Channel channel = conn.createChannel();
-
-		channel.exchangeDeclare("keepalives", "direct", false);
-		channel.queueDeclare("keepalives", false, false, true, null);
-		channel.queueBind("keepalives", "keepalives", "");
-		
-		channel.exchangeDeclare("results", "direct", false);
-		channel.queueDeclare("results", false, false, true, null);
-		channel.queueBind("results", "results", "");
-				
-		channel.basicPublish("results", "", null, message.getBytes());
-
-		channel.close();
-		conn.close();
+	@Override
+	public int hashCode() {
+		return Objects.hash(userName, password, virtualHost, hostName, portNumber, useSSL, settings.connectionKey());
 	}
 }
@@ -0,0 +1,861 @@
+package org.graylog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * A long-lived connection to one RabbitMQ broker or cluster with a pool of
+ * channels on top of it. A lost connection is replaced on demand by one to
+ * a healthy cluster node, see {@link ClusterNodes}. Instances are shared by
+ * every callback that uses the same broker coordinates and connection
+ * settings, see
+ * {@link #forBroker(String, String, String, String, int, boolean, RabbitMQSettings)}.
+ */
+public class RabbitMQConnection {
+	private static final Logger LOG = LoggerFactory.getLogger(RabbitMQConnection.class);
+
+	private static final int MAX_PUBLISH_ATTEMPTS = 5;
+	private static final long RETRY_DELAY_MILLIS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+	private static final long SPOOL_REPLAY_INTERVAL_MILLIS = 5000;
+
+	private static final ConcurrentMap<String, RabbitMQConnection> CONNECTIONS = new ConcurrentHashMap<>();
+	private static final Set<File> SPOOL_DIRECTORIES = ConcurrentHashMap.newKeySet();
+
+	private final String name;
+	private final ConnectionFactory factory;
+	private final ClusterNodes nodes;
+	private final BlockingDeque<PooledChannel> idleChannels = new LinkedBlockingDeque<>();
+	private final AtomicInteger openChannels = new AtomicInteger();
+	private final SensuTopology topology = new SensuTopology();
+	private final ConcurrentMap<Channel, ConfirmTracker> confirmTrackers = new ConcurrentHashMap<>();
+	private final Set<byte[]> retrying = ConcurrentHashMap.newKeySet();
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(RabbitMQSettings.DEFAULT_BREAKER_THRESHOLD,
+			RabbitMQSettings.DEFAULT_BREAKER_BACKOFF, RabbitMQSettings.DEFAULT_BREAKER_MAX_BACKOFF);
+	private final ConfirmTracker.Republisher republisher = new ConfirmTracker.Republisher() {
+		@Override
+		public void republish(ConfirmTracker.PendingConfirm pending) {
+			scheduleRetry(pending.getBody(), pending.getAttempt() + 1, 0);
+		}
+	};
+
+	private volatile int channelPoolSize = RabbitMQSettings.DEFAULT_CHANNEL_POOL_SIZE;
+	private volatile long channelIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(RabbitMQSettings.DEFAULT_CHANNEL_IDLE_TIMEOUT);
+	private volatile boolean publisherConfirms;
+	private volatile long confirmTimeoutMillis = RabbitMQSettings.DEFAULT_CONFIRM_TIMEOUT;
+	private volatile int maxUnconfirmed = RabbitMQSettings.DEFAULT_MAX_UNCONFIRMED;
+	private volatile boolean batchConfirms;
+	private volatile long publishTimeoutMillis = RabbitMQSettings.DEFAULT_PUBLISH_TIMEOUT;
+	private volatile String blockedReason;
+	private volatile Connection connection;
+	private volatile SSLContext sslContext;
+	private volatile ResultSpool spool;
+	private volatile boolean closed;
+	private String spoolSettings;
+	private ScheduledExecutorService maintenance;
+
+	@VisibleForTesting
+	RabbitMQConnection(String name, ConnectionFactory factory) {
+		this(name, factory, ClusterNodes.parse(ConnectionFactory.DEFAULT_HOST, ConnectionFactory.DEFAULT_AMQP_PORT));
+	}
+
+	@VisibleForTesting
+	RabbitMQConnection(String name, ConnectionFactory factory, ClusterNodes nodes) {
+		this.name = name;
+		this.factory = factory;
+		this.nodes = nodes;
+	}
+
+	/**
+	 * @param hostName a host or a comma separated list of {@code host[:port]}
+	 *                 cluster nodes, see {@link ClusterNodes#parse(String, int)}
+	 * @param settings the settings of the caller, callers that differ in
+	 *                 their {@link RabbitMQSettings#connectionKey() connection
+	 *                 settings} get connections of their own. They are not
+	 *                 applied here, see {@link #configure(RabbitMQSettings)}.
+	 */
+	public static RabbitMQConnection forBroker(String userName, String password, String virtualHost, String hostName,
+			int portNumber, boolean useSSL, RabbitMQSettings settings) throws KeyManagementException, NoSuchAlgorithmException {
+		String key = userName + '\0' + password + '\0' + virtualHost + '\0' + hostName + '\0' + portNumber + '\0' + useSSL
+				+ '\0' + settings.connectionKey();
+
+		RabbitMQConnection connection = CONNECTIONS.get(key);
+		if (connection == null) {
+			ConnectionFactory factory = new ConnectionFactory();
+			if (useSSL) {
+				SSLContext context = TlsContexts.defaultContext();
+				factory.useSslProtocol(context);
+				factory.setSocketConfigurator(TlsContexts.socketConfigurator(context));
+			}
+			factory.setUsername(userName);
+			factory.setPassword(password);
+			factory.setVirtualHost(virtualHost);
+			// reconnecting is done here, so a failed node can be skipped
+			factory.setAutomaticRecoveryEnabled(false);
+
+			// also names the spool, which may be in the same directory for both confirm modes
+			String name = (userName + "@" + hostName + "_" + portNumber + virtualHost
+					+ (settings.isPublisherConfirms() ? "_confirms" : "")).replaceAll("[^A-Za-z0-9@._-]", "_");
+			RabbitMQConnection created = new RabbitMQConnection(name, factory, ClusterNodes.parse(hostName, portNumber));
+			connection = CONNECTIONS.putIfAbsent(key, created);
+			if (connection == null) {
+				connection = created;
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Closes every shared connection, see {@link #close(long)}. Closed
+	 * connections stay registered, so a late result cannot open a new one.
+	 */
+	public static void closeAll(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (RabbitMQConnection connection : CONNECTIONS.values()) {
+			connection.close(Math.max(0, deadline - System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Waits until the timeout for outstanding publisher confirms, spools
+	 * whatever is still unconfirmed or waiting for a retry, then closes the
+	 * channels, the connection and the spool. Publishing afterwards fails.
+	 */
+	public void close(long timeoutMillis) {
+		closed = true;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			for (ConfirmTracker tracker : confirmTrackers.values()) {
+				tracker.awaitSettled(Long.MAX_VALUE, Math.max(0, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// unconfirmed results are handed to scheduleRetry, which spools them now
+		for (ConfirmTracker tracker : confirmTrackers.values()) {
+			tracker.failAll();
+		}
+
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = maintenance;
+			maintenance = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		for (byte[] body : retrying) {
+			if (retrying.remove(body)) {
+				spoolOrDrop(body);
+			}
+		}
+
+		PooledChannel pooled;
+		while ((pooled = idleChannels.pollFirst()) != null) {
+			invalidateChannel(pooled.channel);
+		}
+		synchronized (this) {
+			if (connection != null && connection.isOpen()) {
+				try {
+					connection.close((int) Math.max(1000, deadline - System.currentTimeMillis()));
+				} catch (IOException | RuntimeException e) {
+					LOG.debug("Closing RabbitMQ connection {} failed", name, e);
+				}
+			}
+			connection = null;
+			if (spool != null) {
+				spool.close();
+				SPOOL_DIRECTORIES.remove(spool.getDirectory().getAbsoluteFile());
+				spool = null;
+			}
+		}
+	}
+
+	/**
+	 * Applies the settings of the most recently initialized callback, once
+	 * per {@link RabbitMQClient}. Shrinking the pool takes effect as surplus
+	 * channels are returned.
+	 */
+	public void configure(RabbitMQSettings settings) {
+		this.channelPoolSize = Math.max(1, settings.getChannelPoolSize());
+		this.channelIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, settings.getChannelIdleTimeout()));
+		this.confirmTimeoutMillis = Math.max(1, settings.getConfirmTimeout());
+		this.maxUnconfirmed = Math.max(1, settings.getMaxUnconfirmed());
+		this.batchConfirms = settings.isBatchConfirms();
+		this.publishTimeoutMillis = Math.max(1, settings.getPublishTimeout());
+		topology.setMode(settings.getTopologyMode());
+		circuitBreaker.configure(settings.getBreakerThreshold(), settings.getBreakerBackoff(), settings.getBreakerMaxBackoff());
+		nodes.setCoolDownMillis(settings.getNodeCoolDown());
+
+		// only affects connections opened from now on, the heartbeat is left
+		// to the broker
+		factory.setConnectionTimeout(Math.max(0, settings.getConnectTimeout()));
+		factory.setHandshakeTimeout(Math.max(0, settings.getHandshakeTimeout()));
+		if (factory.isSSL() && settings.getSslContext() != null && settings.getSslContext() != sslContext) {
+			sslContext = settings.getSslContext();
+			factory.useSslProtocol(sslContext);
+			factory.setSocketConfigurator(TlsContexts.socketConfigurator(sslContext));
+		}
+
+		if (publisherConfirms != settings.isPublisherConfirms()) {
+			publisherConfirms = settings.isPublisherConfirms();
+			// idle channels were opened in the other mode
+			PooledChannel pooled;
+			while ((pooled = idleChannels.pollFirst()) != null) {
+				invalidateChannel(pooled.channel);
+			}
+			if (publisherConfirms && !closed) {
+				startMaintenance();
+			}
+		}
+		configureSpool(settings);
+	}
+
+	/**
+	 * Writes a result that could not be published to the local spool, from
+	 * where it is replayed in order once the broker is reachable again.
+	 *
+	 * @return false if no spool is configured or the spool is not writable
+	 */
+	public boolean spool(byte[] body) {
+		ResultSpool current = spool;
+		if (current == null) {
+			return false;
+		}
+		try {
+			current.append(body);
+			return true;
+		} catch (IOException e) {
+			LOG.warn("Could not spool Sensu result", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Publishes a result on a pooled channel. With publisher confirms the
+	 * call returns as soon as the message is written; unconfirmed messages
+	 * are retried in the background.
+	 */
+	public void publish(byte[] body) throws IOException, TimeoutException {
+		publish(body, 1);
+	}
+
+	private void publish(byte[] body, int attempt) throws IOException, TimeoutException {
+		checkAvailable();
+		boolean published = false;
+		boolean contended = false;
+		try {
+			publishOnChannel(body, attempt);
+			published = true;
+		} catch (ChannelWaitTimeoutException e) {
+			contended = true;
+			throw e;
+		} finally {
+			record(published, contended);
+		}
+	}
+
+	private void publishOnChannel(byte[] body, int attempt) throws IOException, TimeoutException {
+		Channel channel = timedBorrowChannel();
+		boolean published = false;
+		try {
+			topology.ensureDeclared(channel);
+			publish(channel, confirmTrackers.get(channel), body, attempt);
+			published = true;
+		} catch (ShutdownSignalException e) {
+			throw closed(e);
+		} finally {
+			if (published) {
+				returnChannel(channel);
+			} else {
+				invalidateChannel(channel);
+			}
+		}
+	}
+
+	/**
+	 * Publishes a batch of results back to back on a single channel. Each body
+	 * is still a standalone message on the results exchange. With publisher
+	 * confirms and batch confirms enabled, one wait covers the whole batch.
+	 * When the batch fails after some bodies were written, a
+	 * {@link PartialBatchException} tells how many; those are either sent or
+	 * tracked for a confirm and must not be published again.
+	 */
+	public void publishBatch(List<byte[]> bodies) throws IOException, TimeoutException {
+		checkAvailable();
+		boolean published = false;
+		boolean contended = false;
+		try {
+			publishBatchOnChannel(bodies);
+			published = true;
+		} catch (ChannelWaitTimeoutException e) {
+			contended = true;
+			throw e;
+		} finally {
+			record(published, contended);
+		}
+	}
+
+	private void publishBatchOnChannel(List<byte[]> bodies) throws IOException, TimeoutException {
+		Channel channel = timedBorrowChannel();
+		boolean published = false;
+		try {
+			topology.ensureDeclared(channel);
+
+			ConfirmTracker tracker = confirmTrackers.get(channel);
+			long lastDeliveryTag = 0;
+			int written = 0;
+			try {
+				for (byte[] body : bodies) {
+					lastDeliveryTag = publish(channel, tracker, body, 1);
+					written++;
+				}
+			} catch (ShutdownSignalException e) {
+				throw partial(closed(e), written);
+			} catch (IOException e) {
+				throw partial(e, written);
+			}
+			if (tracker != null && batchConfirms) {
+				awaitSettled(tracker, lastDeliveryTag);
+			}
+			published = true;
+		} catch (ShutdownSignalException e) {
+			throw closed(e);
+		} finally {
+			if (published) {
+				returnChannel(channel);
+			} else {
+				invalidateChannel(channel);
+			}
+		}
+	}
+
+	/**
+	 * Publishes client keepalives back to back on a single channel to the
+	 * keepalives exchange. They are not tracked for confirms: a lost
+	 * keepalive is superseded by the next one.
+	 */
+	public void publishKeepalives(List<byte[]> bodies) throws IOException, TimeoutException {
+		checkAvailable();
+		boolean published = false;
+		boolean contended = false;
+		try {
+			Channel channel = timedBorrowChannel();
+			try {
+				topology.ensureDeclared(channel);
+				for (byte[] body : bodies) {
+					basicPublish(channel, SensuTopology.KEEPALIVES, body);
+				}
+				published = true;
+			} catch (ShutdownSignalException e) {
+				throw closed(e);
+			} finally {
+				if (published) {
+					returnChannel(channel);
+				} else {
+					invalidateChannel(channel);
+				}
+			}
+		} catch (ChannelWaitTimeoutException e) {
+			contended = true;
+			throw e;
+		} finally {
+			record(published, contended);
+		}
+	}
+
+	/**
+	 * Fails fast while the broker blocks publishers or the circuit breaker is
+	 * open, instead of letting every alert wait for a timeout.
+	 */
+	private void checkAvailable() throws IOException {
+		if (closed) {
+			throw new IOException("RabbitMQ connection " + name + " is closed");
+		}
+		String blocked = blockedReason;
+		if (blocked != null) {
+			SensuMetrics.shared().getRejected().mark();
+			throw new IOException("RabbitMQ blocked publishing: " + blocked);
+		}
+		if (!circuitBreaker.allowRequest()) {
+			SensuMetrics.shared().getRejected().mark();
+			throw new IOException("RabbitMQ circuit breaker is open, next attempt in "
+					+ circuitBreaker.getRemainingMillis() + "ms");
+		}
+	}
+
+	/**
+	 * Waiting for a pooled channel is local contention and says nothing about
+	 * the broker, so it neither opens nor closes the breaker.
+	 */
+	private void record(boolean published, boolean contended) {
+		if (contended) {
+			return;
+		}
+		if (published) {
+			circuitBreaker.recordSuccess();
+		} else {
+			circuitBreaker.recordFailure();
+		}
+	}
+
+	private long publish(Channel channel, ConfirmTracker tracker, byte[] body, int attempt) throws IOException, TimeoutException {
+		if (tracker == null) {
+			basicPublish(channel, body);
+			return 0;
+		}
+		awaitConfirmCapacity(tracker);
+		long deliveryTag = channel.getNextPublishSeqNo();
+		tracker.track(deliveryTag, body, attempt);
+		try {
+			basicPublish(channel, body);
+		} catch (IOException | RuntimeException e) {
+			tracker.forget(deliveryTag);
+			throw e;
+		}
+		return deliveryTag;
+	}
+
+	private void basicPublish(Channel channel, byte[] body) throws IOException {
+		basicPublish(channel, SensuTopology.RESULTS, body);
+	}
+
+	private void basicPublish(Channel channel, String exchange, byte[] body) throws IOException {
+		Timer.Context time = SensuMetrics.shared().getPublishTime().time();
+		try {
+			channel.basicPublish(exchange, "", null, body);
+		} finally {
+			time.stop();
+		}
+	}
+
+	private Channel timedBorrowChannel() throws IOException, TimeoutException {
+		Timer.Context time = SensuMetrics.shared().getAcquireTime().time();
+		try {
+			return borrowChannel();
+		} catch (ShutdownSignalException e) {
+			throw closed(e);
+		} finally {
+			time.stop();
+		}
+	}
+
+	/**
+	 * A connection that is down or recovering fails with an unchecked
+	 * {@link ShutdownSignalException}; callers spool on IOException, so the
+	 * result must not slip past them.
+	 */
+	private static IOException partial(IOException e, int written) {
+		return written == 0 ? e : new PartialBatchException(written, e);
+	}
+
+	private static IOException closed(ShutdownSignalException e) {
+		return new IOException("RabbitMQ connection is closed: " + e.getMessage(), e);
+	}
+
+	public Channel borrowChannel() throws IOException, TimeoutException {
+		evictIdleChannels();
+
+		PooledChannel pooled = idleChannels.pollFirst();
+		while (pooled != null) {
+			if (pooled.channel.isOpen()) {
+				return pooled.channel;
+			}
+			releaseChannelSlot(pooled.channel);
+			pooled = idleChannels.pollFirst();
+		}
+
+		if (openChannels.incrementAndGet() <= channelPoolSize) {
+			try {
+				return openChannel();
+			} catch (IOException | TimeoutException | RuntimeException e) {
+				openChannels.decrementAndGet();
+				throw e;
+			}
+		}
+		openChannels.decrementAndGet();
+
+		try {
+			pooled = idleChannels.pollFirst(publishTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a RabbitMQ channel");
+		}
+		if (pooled == null) {
+			throw new ChannelWaitTimeoutException("No RabbitMQ channel became available within " + publishTimeoutMillis + "ms");
+		}
+		if (!pooled.channel.isOpen()) {
+			releaseChannelSlot(pooled.channel);
+			return borrowChannel();
+		}
+		return pooled.channel;
+	}
+
+	public SensuTopology getTopology() {
+		return topology;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public ClusterNodes getNodes() {
+		return nodes;
+	}
+
+	public void returnChannel(Channel channel) {
+		if (!channel.isOpen() || openChannels.get() > channelPoolSize
+				|| publisherConfirms != confirmTrackers.containsKey(channel)) {
+			invalidateChannel(channel);
+			return;
+		}
+		idleChannels.offerFirst(new PooledChannel(channel, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Closes a channel that is in an unknown state after a failed operation
+	 * instead of handing it out again.
+	 */
+	public void invalidateChannel(Channel channel) {
+		try {
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		} catch (IOException | TimeoutException | RuntimeException e) {
+			// the channel is discarded either way
+		}
+		releaseChannelSlot(channel);
+	}
+
+	@VisibleForTesting
+	void evictIdleChannels() {
+		long deadline = System.currentTimeMillis() - channelIdleTimeoutMillis;
+		PooledChannel oldest = idleChannels.peekLast();
+		while (oldest != null && oldest.lastUsed < deadline) {
+			if (idleChannels.removeLastOccurrence(oldest)) {
+				invalidateChannel(oldest.channel);
+			}
+			oldest = idleChannels.peekLast();
+		}
+	}
+
+	@VisibleForTesting
+	int getOpenChannels() {
+		return openChannels.get();
+	}
+
+	@VisibleForTesting
+	int getIdleChannels() {
+		return idleChannels.size();
+	}
+
+	@VisibleForTesting
+	ConfirmTracker getConfirmTracker(Channel channel) {
+		return confirmTrackers.get(channel);
+	}
+
+	private Channel openChannel() throws IOException, TimeoutException {
+		final Channel channel = getConnection().createChannel();
+		final ConfirmTracker tracker;
+		if (publisherConfirms) {
+			channel.confirmSelect();
+			tracker = new ConfirmTracker(republisher);
+			channel.addConfirmListener(tracker);
+			confirmTrackers.put(channel, tracker);
+		} else {
+			tracker = null;
+		}
+		channel.addShutdownListener(new ShutdownListener() {
+			@Override
+			public void shutdownCompleted(ShutdownSignalException cause) {
+				topology.handleChannelShutdown(cause);
+				if (tracker != null) {
+					// delivery tags start over on a recovered channel
+					tracker.failAll();
+				}
+			}
+		});
+		return channel;
+	}
+
+	private void releaseChannelSlot(Channel channel) {
+		confirmTrackers.remove(channel);
+		openChannels.decrementAndGet();
+	}
+
+	private void awaitConfirmCapacity(ConfirmTracker tracker) throws IOException, TimeoutException {
+		try {
+			if (!tracker.awaitCapacity(maxUnconfirmed, confirmTimeoutMillis)) {
+				throw new TimeoutException("More than " + maxUnconfirmed + " publishes are waiting for a confirm");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+		}
+	}
+
+	private void awaitSettled(ConfirmTracker tracker, long deliveryTag) throws IOException {
+		try {
+			if (!tracker.awaitSettled(deliveryTag, confirmTimeoutMillis)) {
+				// still tracked, the timeout sweep will publish these again
+				LOG.debug("Batch up to delivery tag {} was not confirmed within {}ms", deliveryTag, confirmTimeoutMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+		}
+	}
+
+	/**
+	 * Opens the spool on the first configuration. The spool settings are part
+	 * of the connection key, so a later configuration asking for a different
+	 * spool is a mistake and rejected: swapping the spool would close it under
+	 * results that are being appended or replayed.
+	 */
+	private synchronized void configureSpool(RabbitMQSettings settings) {
+		if (closed) {
+			return;
+		}
+		String directory = settings.getSpoolDirectory();
+		String requested = directory == null || directory.trim().isEmpty() ? "" : directory.trim() + '\0'
+				+ settings.getSpoolMaxSize() + '\0' + settings.getSpoolRetention();
+		if (spoolSettings != null) {
+			if (!requested.equals(spoolSettings)) {
+				LOG.warn("Ignoring different spool settings for RabbitMQ connection {}, its spool is already configured", name);
+			}
+			return;
+		}
+		spoolSettings = requested;
+		if (requested.isEmpty()) {
+			return;
+		}
+
+		File spoolDirectory = new File(directory.trim(), name).getAbsoluteFile();
+		if (!SPOOL_DIRECTORIES.add(spoolDirectory)) {
+			LOG.error("Not spooling for RabbitMQ connection {}, {} is used by another connection with different spool settings",
+					name, spoolDirectory);
+			return;
+		}
+		try {
+			spool = new ResultSpool(spoolDirectory,
+					settings.getSpoolMaxSize() * 1024L * 1024L, TimeUnit.HOURS.toMillis(settings.getSpoolRetention()));
+			startMaintenance();
+		} catch (IOException e) {
+			SPOOL_DIRECTORIES.remove(spoolDirectory);
+			LOG.error("Could not open Sensu result spool in {}", directory, e);
+		}
+	}
+
+	private void replaySpool() {
+		ResultSpool current = spool;
+		if (current == null) {
+			return;
+		}
+		if (!current.isEmpty()) {
+			int replayed = current.replay(new ResultSpool.Sink() {
+				@Override
+				public void replay(byte[] body) throws Exception {
+					publish(body);
+				}
+			});
+			if (replayed > 0) {
+				LOG.info("Replayed {} spooled Sensu result(s)", replayed);
+			}
+		}
+		current.flush();
+	}
+
+	private void scheduleRetry(final byte[] body, final int attempt, long delayMillis) {
+		if (closed || attempt > MAX_PUBLISH_ATTEMPTS) {
+			spoolOrDrop(body);
+			return;
+		}
+		SensuMetrics.shared().getRetried().mark();
+		retrying.add(body);
+		startMaintenance().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!retrying.remove(body)) {
+					// spooled by close
+					return;
+				}
+				try {
+					publish(body, attempt);
+				} catch (IOException | TimeoutException | RuntimeException e) {
+					LOG.debug("Retrying Sensu result failed, attempt {}", attempt, e);
+					scheduleRetry(body, attempt + 1, CircuitBreaker.backoffMillis(RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS, attempt - 1));
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void spoolOrDrop(byte[] body) {
+		if (!spool(body)) {
+			SensuMetrics.shared().getDropped().mark();
+			LOG.warn("Giving up on unconfirmed Sensu result, it could not be spooled");
+		}
+	}
+
+	private synchronized ScheduledExecutorService startMaintenance() {
+		if (maintenance == null) {
+			ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("sensu-rabbitmq-maintenance-%d").build();
+			maintenance = Executors.newSingleThreadScheduledExecutor(threadFactory);
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (ConfirmTracker tracker : confirmTrackers.values()) {
+						tracker.expire(confirmTimeoutMillis);
+					}
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						replaySpool();
+					} catch (RuntimeException e) {
+						LOG.warn("Replaying the Sensu result spool failed", e);
+					}
+				}
+			}, SPOOL_REPLAY_INTERVAL_MILLIS, SPOOL_REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return maintenance;
+	}
+
+	private Connection getConnection() throws IOException, TimeoutException {
+		Connection current = connection;
+		if (current != null && current.isOpen()) {
+			return current;
+		}
+		synchronized (this) {
+			if (connection != null && connection.isOpen()) {
+				return connection;
+			}
+			// channels of the lost connection are closed and get replaced
+			// by the pool, unconfirmed results are published again on them
+			connection = connect();
+			blockedReason = null;
+			topology.invalidate();
+			return connection;
+		}
+	}
+
+	private Connection connect() throws IOException, TimeoutException {
+		Exception lastFailure = null;
+		for (final Address address : nodes.connectOrder()) {
+			Connection created;
+			try {
+				created = factory.newConnection(new Address[] { address });
+			} catch (IOException | TimeoutException e) {
+				LOG.warn("Could not connect to RabbitMQ node {}: {}", address, e.getMessage());
+				nodes.markDown(address);
+				lastFailure = e;
+				continue;
+			}
+			nodes.markUp(address);
+
+			created.addShutdownListener(new ShutdownListener() {
+				@Override
+				public void shutdownCompleted(ShutdownSignalException cause) {
+					if (!cause.isInitiatedByApplication()) {
+						LOG.warn("Lost connection to RabbitMQ node {}: {}", address, cause.getMessage());
+						nodes.markDown(address);
+					}
+				}
+			});
+			created.addBlockedListener(new BlockedListener() {
+				@Override
+				public void handleBlocked(String reason) throws IOException {
+					LOG.warn("RabbitMQ blocked publishing on {}: {}", name, reason);
+					blockedReason = reason;
+				}
+
+				@Override
+				public void handleUnblocked() throws IOException {
+					LOG.info("RabbitMQ unblocked publishing on {}", name);
+					blockedReason = null;
+				}
+			});
+			return created;
+		}
+		if (lastFailure == null) {
+			throw new IOException("no RabbitMQ nodes configured");
+		}
+		if (lastFailure instanceof TimeoutException) {
+			throw (TimeoutException) lastFailure;
+		}
+		throw (IOException) lastFailure;
+	}
+
+	private static class PooledChannel {
+		private final Channel channel;
+		private final long lastUsed;
+
+		private PooledChannel(Channel channel, long lastUsed) {
+			this.channel = channel;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/**
+	 * No pooled channel was returned within the publish timeout.
+	 */
+	public static class ChannelWaitTimeoutException extends TimeoutException {
+		private static final long serialVersionUID = 1L;
+
+		ChannelWaitTimeoutException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A batch failed after its first {@link #getWritten()} bodies were
+	 * already written to the channel.
+	 */
+	public static class PartialBatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int written;
+
+		PartialBatchException(int written, IOException cause) {
+			super(cause.getMessage(), cause);
+			this.written = written;
+		}
+
+		public int getWritten() {
+			return written;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package org.graylog;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Tuning settings for a shared {@link RabbitMQConnection}. The broker
+ * coordinates and the {@link #connectionKey() confirm and spool settings}
+ * identify the connection, the other settings are applied to it by every
+ * callback that uses it.
+ */
+public class RabbitMQSettings {
+	public static final int DEFAULT_CHANNEL_POOL_SIZE = 4;
+	public static final int DEFAULT_CHANNEL_IDLE_TIMEOUT = 60;
+	public static final int DEFAULT_CONFIRM_TIMEOUT = 5000;
+	public static final int DEFAULT_MAX_UNCONFIRMED = 1000;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+	public static final int DEFAULT_PUBLISH_TIMEOUT = 10000;
+	public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+	public static final int DEFAULT_BREAKER_BACKOFF = 1000;
+	public static final int DEFAULT_BREAKER_MAX_BACKOFF = 60000;
+
+	private int channelPoolSize = DEFAULT_CHANNEL_POOL_SIZE;
+	private int channelIdleTimeout = DEFAULT_CHANNEL_IDLE_TIMEOUT;
+	private SensuTopology.Mode topologyMode = SensuTopology.Mode.DECLARE;
+	private boolean publisherConfirms;
+	private int confirmTimeout = DEFAULT_CONFIRM_TIMEOUT;
+	private int maxUnconfirmed = DEFAULT_MAX_UNCONFIRMED;
+	private boolean batchConfirms;
+	private String spoolDirectory;
+	private int spoolMaxSize = ResultSpool.DEFAULT_MAX_SIZE;
+	private int spoolRetention = ResultSpool.DEFAULT_RETENTION;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+	private int publishTimeout = DEFAULT_PUBLISH_TIMEOUT;
+	private int breakerThreshold = DEFAULT_BREAKER_THRESHOLD;
+	private int breakerBackoff = DEFAULT_BREAKER_BACKOFF;
+	private int breakerMaxBackoff = DEFAULT_BREAKER_MAX_BACKOFF;
+	private int nodeCoolDown = ClusterNodes.DEFAULT_COOL_DOWN;
+	private SSLContext sslContext;
+
+	public int getChannelPoolSize() {
+		return channelPoolSize;
+	}
+
+	public RabbitMQSettings setChannelPoolSize(int channelPoolSize) {
+		this.channelPoolSize = channelPoolSize;
+		return this;
+	}
+
+	public int getChannelIdleTimeout() {
+		return channelIdleTimeout;
+	}
+
+	public RabbitMQSettings setChannelIdleTimeout(int channelIdleTimeout) {
+		this.channelIdleTimeout = channelIdleTimeout;
+		return this;
+	}
+
+	public SensuTopology.Mode getTopologyMode() {
+		return topologyMode;
+	}
+
+	public RabbitMQSettings setTopologyMode(SensuTopology.Mode topologyMode) {
+		this.topologyMode = topologyMode;
+		return this;
+	}
+
+	public boolean isPublisherConfirms() {
+		return publisherConfirms;
+	}
+
+	public RabbitMQSettings setPublisherConfirms(boolean publisherConfirms) {
+		this.publisherConfirms = publisherConfirms;
+		return this;
+	}
+
+	public int getConfirmTimeout() {
+		return confirmTimeout;
+	}
+
+	public RabbitMQSettings setConfirmTimeout(int confirmTimeout) {
+		this.confirmTimeout = confirmTimeout;
+		return this;
+	}
+
+	public int getMaxUnconfirmed() {
+		return maxUnconfirmed;
+	}
+
+	public RabbitMQSettings setMaxUnconfirmed(int maxUnconfirmed) {
+		this.maxUnconfirmed = maxUnconfirmed;
+		return this;
+	}
+
+	public boolean isBatchConfirms() {
+		return batchConfirms;
+	}
+
+	public RabbitMQSettings setBatchConfirms(boolean batchConfirms) {
+		this.batchConfirms = batchConfirms;
+		return this;
+	}
+
+	public String getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	public RabbitMQSettings setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+		return this;
+	}
+
+	public int getSpoolMaxSize() {
+		return spoolMaxSize;
+	}
+
+	public RabbitMQSettings setSpoolMaxSize(int spoolMaxSize) {
+		this.spoolMaxSize = spoolMaxSize;
+		return this;
+	}
+
+	public int getSpoolRetention() {
+		return spoolRetention;
+	}
+
+	public RabbitMQSettings setSpoolRetention(int spoolRetention) {
+		this.spoolRetention = spoolRetention;
+		return this;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public RabbitMQSettings setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	public RabbitMQSettings setHandshakeTimeout(int handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+		return this;
+	}
+
+	public int getPublishTimeout() {
+		return publishTimeout;
+	}
+
+	public RabbitMQSettings setPublishTimeout(int publishTimeout) {
+		this.publishTimeout = publishTimeout;
+		return this;
+	}
+
+	public int getBreakerThreshold() {
+		return breakerThreshold;
+	}
+
+	public RabbitMQSettings setBreakerThreshold(int breakerThreshold) {
+		this.breakerThreshold = breakerThreshold;
+		return this;
+	}
+
+	public int getBreakerBackoff() {
+		return breakerBackoff;
+	}
+
+	public RabbitMQSettings setBreakerBackoff(int breakerBackoff) {
+		this.breakerBackoff = breakerBackoff;
+		return this;
+	}
+
+	public int getBreakerMaxBackoff() {
+		return breakerMaxBackoff;
+	}
+
+	public RabbitMQSettings setBreakerMaxBackoff(int breakerMaxBackoff) {
+		this.breakerMaxBackoff = breakerMaxBackoff;
+		return this;
+	}
+
+	public int getNodeCoolDown() {
+		return nodeCoolDown;
+	}
+
+	public RabbitMQSettings setNodeCoolDown(int nodeCoolDown) {
+		this.nodeCoolDown = nodeCoolDown;
+		return this;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * The context for SSL connections, see {@link TlsContexts}. Without one
+	 * the connection keeps its default context.
+	 */
+	public RabbitMQSettings setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		return this;
+	}
+
+	/**
+	 * The settings that need a connection of their own: channels are opened
+	 * either in confirm mode or not, and a spool belongs to one connection.
+	 */
+	String connectionKey() {
+		String directory = spoolDirectory == null ? "" : spoolDirectory.trim();
+		return publisherConfirms + "\0" + directory + '\0' + spoolMaxSize + '\0' + spoolRetention;
+	}
+}
@@ -0,0 +1,444 @@
+package org.graylog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Append-only spool on local disk for results that could not be published.
+ * Records are written to fixed-size, memory-mapped segment files and carry
+ * a CRC32 of their payload. Every segment starts with a small header holding
+ * its write offset, read offset and last write time, so recovery only reads
+ * the segment headers instead of scanning records. Once everything is
+ * replayed the last segment is rewound and reused, older segments are
+ * unmapped and deleted.
+ */
+public class ResultSpool implements Closeable {
+	private static final Logger LOG = LoggerFactory.getLogger(ResultSpool.class);
+
+	public static final int DEFAULT_MAX_SIZE = 100;
+	public static final int DEFAULT_RETENTION = 24;
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spool";
+
+	private static final int WRITE_OFFSET = 0;
+	private static final int READ_OFFSET = 4;
+	private static final int LAST_WRITE = 8;
+	private static final int SEGMENT_HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int REPLAY_BATCH_SIZE = 64;
+
+	public interface Sink {
+		void replay(byte[] body) throws Exception;
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final long maxBytes;
+	private final long retentionMillis;
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private final Object replayLock = new Object();
+	private long nextSegmentId;
+	private long droppedRecords;
+
+	public ResultSpool(File directory, long maxBytes, long retentionMillis) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, maxBytes, retentionMillis);
+	}
+
+	@VisibleForTesting
+	ResultSpool(File directory, int segmentSize, long maxBytes, long retentionMillis) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxBytes = Math.max(segmentSize, maxBytes);
+		this.retentionMillis = retentionMillis;
+		recover();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized void append(byte[] body) throws IOException {
+		int recordSize = RECORD_HEADER_SIZE + body.length;
+		if (recordSize > segmentSize - SEGMENT_HEADER_SIZE) {
+			throw new IOException("Result of " + body.length + " bytes does not fit in a spool segment");
+		}
+
+		Segment tail = segments.peekLast();
+		if (tail == null || tail.remaining() < recordSize) {
+			tail = openSegment(nextSegmentId++, true);
+			segments.addLast(tail);
+			enforceMaxSize();
+		}
+		tail.append(body);
+	}
+
+	/**
+	 * Hands spooled results to the sink in the order they were written and
+	 * stops at the first one the sink fails to take. Records are read in
+	 * small batches under the lock and handed to the sink after releasing
+	 * it, so a slow sink does not block {@link #append(byte[])}.
+	 *
+	 * @return the number of results replayed
+	 */
+	public int replay(Sink sink) {
+		synchronized (replayLock) {
+			int replayed = 0;
+			while (true) {
+				Segment head;
+				List<Record> batch;
+				synchronized (this) {
+					applyRetention();
+					head = segments.peekFirst();
+					if (head == null) {
+						return replayed;
+					}
+					batch = head.read(REPLAY_BATCH_SIZE);
+					countSkipped(head);
+					if (batch.isEmpty()) {
+						if (segments.size() == 1) {
+							// appends go on in the active segment, keep it mapped
+							head.rewind();
+							return replayed;
+						}
+						segments.pollFirst();
+						head.delete();
+						continue;
+					}
+				}
+
+				int sent = 0;
+				Exception failure = null;
+				for (Record record : batch) {
+					try {
+						sink.replay(record.body);
+					} catch (Exception e) {
+						failure = e;
+						break;
+					}
+					sent++;
+				}
+
+				synchronized (this) {
+					// the segment may have been dropped while the lock was released
+					if (sent > 0 && segments.peekFirst() == head) {
+						head.advanceTo(batch.get(sent - 1).end);
+					}
+				}
+				replayed += sent;
+				if (failure != null) {
+					LOG.debug("Replaying spooled Sensu result failed, will retry later", failure);
+					return replayed;
+				}
+			}
+		}
+	}
+
+	private void countSkipped(Segment segment) {
+		int skipped = segment.skippedRecords;
+		if (skipped > 0) {
+			segment.skippedRecords = 0;
+			droppedRecords += skipped;
+			SensuMetrics.shared().getDropped().mark(skipped);
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.readOffset() < segment.writeOffset()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	public synchronized long getDroppedRecords() {
+		return droppedRecords;
+	}
+
+	public synchronized void flush() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		flush();
+		for (Segment segment : segments) {
+			unmap(segment.buffer);
+		}
+		segments.clear();
+	}
+
+	private void recover() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create spool directory " + directory);
+		}
+
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+
+		for (String name : names) {
+			long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+			Segment segment = openSegment(id, false);
+			if (!segment.hasValidHeader()) {
+				LOG.warn("Deleting spool segment {} with a damaged header", name);
+				segment.delete();
+			} else if (segment.readOffset() >= segment.writeOffset()) {
+				segment.delete();
+			} else {
+				segments.addLast(segment);
+			}
+		}
+		if (!segments.isEmpty()) {
+			LOG.info("Recovered {} spool segment(s) with unsent Sensu results from {}", segments.size(), directory);
+		}
+	}
+
+	private Segment openSegment(long id, boolean create) throws IOException {
+		File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (create) {
+				raf.setLength(segmentSize);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			if (create) {
+				buffer.putInt(WRITE_OFFSET, SEGMENT_HEADER_SIZE);
+				buffer.putInt(READ_OFFSET, SEGMENT_HEADER_SIZE);
+				buffer.putLong(LAST_WRITE, System.currentTimeMillis());
+			}
+			return new Segment(file, buffer);
+		}
+	}
+
+	private void enforceMaxSize() {
+		while (segments.size() > 1 && (long) segments.size() * segmentSize > maxBytes) {
+			dropOldest("spool is full");
+		}
+	}
+
+	private void applyRetention() {
+		long deadline = System.currentTimeMillis() - retentionMillis;
+		// a rewound segment holds nothing to drop and stays in use
+		while (!segments.isEmpty() && segments.peekFirst().lastWrite() < deadline
+				&& segments.peekFirst().readOffset() < segments.peekFirst().writeOffset()) {
+			dropOldest("results are older than the retention period");
+		}
+	}
+
+	private void dropOldest(String reason) {
+		Segment oldest = segments.pollFirst();
+		int dropped = oldest.countUnread();
+		droppedRecords += dropped;
+		SensuMetrics.shared().getDropped().mark(dropped);
+		oldest.delete();
+		LOG.warn("Dropped {} spooled Sensu result(s), {}", dropped, reason);
+	}
+
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int skippedRecords;
+
+		private Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		private boolean hasValidHeader() {
+			if (buffer.capacity() < SEGMENT_HEADER_SIZE) {
+				return false;
+			}
+			int readOffset = readOffset();
+			int writeOffset = writeOffset();
+			return readOffset >= SEGMENT_HEADER_SIZE && readOffset <= writeOffset && writeOffset <= buffer.capacity();
+		}
+
+		private int writeOffset() {
+			return buffer.getInt(WRITE_OFFSET);
+		}
+
+		private int readOffset() {
+			return buffer.getInt(READ_OFFSET);
+		}
+
+		private long lastWrite() {
+			return buffer.getLong(LAST_WRITE);
+		}
+
+		private int remaining() {
+			return buffer.capacity() - writeOffset();
+		}
+
+		private void append(byte[] body) {
+			int offset = writeOffset();
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset);
+			record.putInt(body.length);
+			record.putInt((int) crc.getValue());
+			record.put(body);
+			// the header is updated last, a torn record is never visible
+			buffer.putLong(LAST_WRITE, System.currentTimeMillis());
+			buffer.putInt(WRITE_OFFSET, offset + RECORD_HEADER_SIZE + body.length);
+		}
+
+		/**
+		 * Reads up to {@code max} intact records from the read offset without
+		 * consuming them. A record with a bad checksum but a plausible length
+		 * is skipped on its own; a length that points outside the written part
+		 * leaves no way to find the next record, so the rest of the segment
+		 * is skipped. Damaged records are only skipped at the start of a
+		 * batch and consumed right away, so each is counted once.
+		 */
+		private List<Record> read(int max) {
+			List<Record> records = new ArrayList<>();
+			int offset = readOffset();
+			int end = writeOffset();
+			while (records.size() < max && offset + RECORD_HEADER_SIZE <= end) {
+				int length = buffer.getInt(offset);
+				if (length < 0 || offset + RECORD_HEADER_SIZE + length > end) {
+					if (!records.isEmpty()) {
+						break;
+					}
+					LOG.warn("Skipping the rest of corrupt spool segment {} from offset {}", file, offset);
+					skippedRecords++;
+					advanceTo(end);
+					break;
+				}
+
+				byte[] body = new byte[length];
+				ByteBuffer record = buffer.duplicate();
+				record.position(offset + RECORD_HEADER_SIZE);
+				record.get(body);
+				int next = offset + RECORD_HEADER_SIZE + length;
+				CRC32 crc = new CRC32();
+				crc.update(body, 0, length);
+				if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+					if (!records.isEmpty()) {
+						break;
+					}
+					LOG.warn("Skipping spooled Sensu result with bad checksum in {} at offset {}", file, offset);
+					skippedRecords++;
+					advanceTo(next);
+				} else {
+					records.add(new Record(body, next));
+				}
+				offset = next;
+			}
+			return records;
+		}
+
+		private void advanceTo(int offset) {
+			buffer.putInt(READ_OFFSET, offset);
+		}
+
+		/**
+		 * Starts over at the beginning of a fully replayed segment. The write
+		 * offset is reset first: a crash in between leaves a header recovery
+		 * discards, never records that would be replayed twice.
+		 */
+		private void rewind() {
+			if (writeOffset() == SEGMENT_HEADER_SIZE) {
+				return;
+			}
+			buffer.putInt(WRITE_OFFSET, SEGMENT_HEADER_SIZE);
+			buffer.putInt(READ_OFFSET, SEGMENT_HEADER_SIZE);
+		}
+
+		private int countUnread() {
+			int count = 0;
+			int offset = readOffset();
+			int end = writeOffset();
+			while (offset + RECORD_HEADER_SIZE <= end) {
+				int length = buffer.getInt(offset);
+				if (length < 0) {
+					break;
+				}
+				offset += RECORD_HEADER_SIZE + length;
+				count++;
+			}
+			return count;
+		}
+
+		private void delete() {
+			unmap(buffer);
+			if (!file.delete()) {
+				LOG.warn("Could not delete spool segment {}", file);
+			}
+		}
+	}
+
+	/**
+	 * Releases the mapping right away instead of when the buffer is garbage
+	 * collected, so retired segments do not hold on to address space and file
+	 * handles. The buffer must not be used afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				// Java 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+				return;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.debug("Could not unmap spool segment, it is released once garbage collected", e);
+		}
+	}
+
+	private static class Record {
+		private final byte[] body;
+		private final int end;
+
+		private Record(byte[] body, int end) {
+			this.body = body;
+			this.end = end;
+		}
+	}
+}
@@ -2,15 +2,24 @@ package org.graylog;
 
 import java.io.IOException;
 import java.net.URI;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import javax.inject.Inject;
+import javax.net.ssl.SSLContext;
+
 import org.graylog2.plugin.MessageSummary;
 import org.graylog2.plugin.Tools;
 
@@ -28,12 +37,20 @@ import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.streams.Stream;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
+
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
 public class SensuAlarmCallback implements AlarmCallback {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuAlarmCallback.class);
+
 	private static final String CHECK_NAME = "check_name";
 	private static final String CHECK_CLIENT = "check_client";
 	private static final String CHECK_HANDLERS = "check_handlers";
@@ -41,6 +58,32 @@ public class SensuAlarmCallback implements AlarmCallback {
 	private static final String CHECK_SUBSCRIBERS = "check_subscribers";
 	private static final String CHECK_TAGS = "check_tags";
 
+	private static final String ASYNC_ENABLED = "async_enabled";
+	private static final String ASYNC_QUEUE_SIZE = "async_queue_size";
+	private static final String ASYNC_OVERFLOW_POLICY = "async_overflow_policy";
+	private static final String ASYNC_BLOCK_TIMEOUT = "async_block_timeout";
+	private static final String ASYNC_SENDER_THREADS = "async_sender_threads";
+	private static final String BATCH_SIZE = "batch_size";
+	private static final String BATCH_WINDOW = "batch_window";
+	private static final String RABBITMQ_BATCH_CONFIRMS = "rabbitmq_batch_confirms";
+	private static final String SPOOL_DIRECTORY = "spool_directory";
+	private static final String SPOOL_MAX_SIZE = "spool_max_size";
+	private static final String SPOOL_RETENTION = "spool_retention";
+	private static final String OUTPUT_MAX_SIZE = "output_max_size";
+	private static final String MESSAGE_MAX_SIZE = "message_max_size";
+	private static final String OUTPUT_TEMPLATE = "output_template";
+	private static final String BACKLOG_SUMMARY_TOP = "backlog_summary_top";
+	private static final String SUPPRESSION_RATE = "suppression_rate";
+	private static final String SUPPRESSION_BURST = "suppression_burst";
+	private static final String DEDUP_WINDOW = "dedup_window";
+	private static final String AGGREGATION_WINDOW = "aggregation_window";
+	private static final String AGGREGATION_KEY = "aggregation_key";
+	private static final String AUTO_RESOLVE_AFTER = "auto_resolve_after";
+	private static final String KEEPALIVE_INTERVAL = "keepalive_interval";
+	private static final String KEEPALIVE_TTL = "keepalive_ttl";
+	private static final String FAN_OUT_MAX_SOURCES = "fan_out_max_sources";
+	private static final String FAN_OUT_MAX_IN_FLIGHT = "fan_out_max_in_flight";
+
 	private static final String TRANSPORT_EMAIL_WEB_INTERFACE_URL = "transport_email_web_interface_url";
 
 	private static final String RABBITMQ_USER = "rabbitmq_user";
@@ -49,38 +92,151 @@ public class SensuAlarmCallback implements AlarmCallback {
 	private static final String RABBITMQ_HOSTNAME = "rabbitmq_hostname";
 	private static final String RABBITMQ_PORT = "rabbitmq_port";
 	private static final String RABBITMQ_USE_SSL = "rabbitmq_use_ssl";
-
+	private static final String RABBITMQ_CHANNEL_POOL_SIZE = "rabbitmq_channel_pool_size";
+	private static final String RABBITMQ_CHANNEL_IDLE_TIMEOUT = "rabbitmq_channel_idle_timeout";
+	private static final String RABBITMQ_TOPOLOGY = "rabbitmq_topology";
+	private static final String RABBITMQ_PUBLISHER_CONFIRMS = "rabbitmq_publisher_confirms";
+	private static final String RABBITMQ_CONFIRM_TIMEOUT = "rabbitmq_confirm_timeout";
+	private static final String RABBITMQ_MAX_UNCONFIRMED = "rabbitmq_max_unconfirmed";
+	private static final String RABBITMQ_CONNECT_TIMEOUT = "rabbitmq_connect_timeout";
+	private static final String RABBITMQ_HANDSHAKE_TIMEOUT = "rabbitmq_handshake_timeout";
+	private static final String RABBITMQ_PUBLISH_TIMEOUT = "rabbitmq_publish_timeout";
+	private static final String RABBITMQ_BREAKER_THRESHOLD = "rabbitmq_breaker_threshold";
+	private static final String RABBITMQ_BREAKER_BACKOFF = "rabbitmq_breaker_backoff";
+	private static final String RABBITMQ_BREAKER_MAX_BACKOFF = "rabbitmq_breaker_max_backoff";
+	private static final String RABBITMQ_NODE_COOL_DOWN = "rabbitmq_node_cool_down";
+	private static final String RABBITMQ_SSL_PROTOCOL = "rabbitmq_ssl_protocol";
+	private static final String RABBITMQ_SSL_TRUSTSTORE = "rabbitmq_ssl_truststore";
+	private static final String RABBITMQ_SSL_TRUSTSTORE_PASSWORD = "rabbitmq_ssl_truststore_password";
+	private static final String RABBITMQ_SSL_KEYSTORE = "rabbitmq_ssl_keystore";
+	private static final String RABBITMQ_SSL_KEYSTORE_PASSWORD = "rabbitmq_ssl_keystore_password";
+
+	private static final String TRANSPORT = "transport";
+	private static final String TRANSPORT_RABBITMQ = "rabbitmq";
+	private static final String TRANSPORT_SENSU_CLIENT = "sensu_client";
+	private static final String CLIENT_SOCKET_HOST = "client_socket_host";
+	private static final String CLIENT_SOCKET_PORT = "client_socket_port";
+	private static final String CLIENT_SOCKET_PROTOCOL = "client_socket_protocol";
+	private static final String TRANSPORT_SENSU_GO = "sensu_go";
+	private static final String SENSU_GO_URL = "sensu_go_url";
+	private static final String SENSU_GO_NAMESPACE = "sensu_go_namespace";
+	private static final String SENSU_GO_API_KEY = "sensu_go_api_key";
+	private static final String SENSU_GO_MAX_IN_FLIGHT = "sensu_go_max_in_flight";
+	private static final String SENSU_GO_TIMEOUT = "sensu_go_timeout";
+
+	/** Settings that must never leave the server, not even hashed. */
+	static final Set<String> CREDENTIAL_FIELDS = ImmutableSet.of(RABBITMQ_PASSWORD, RABBITMQ_SSL_TRUSTSTORE_PASSWORD,
+			RABBITMQ_SSL_KEYSTORE_PASSWORD, SENSU_GO_API_KEY);
+
+	private final SensuPublisherService publisherService;
 	private Configuration configuration;
-	private RabbitMQClient client;
-	private SensuResultFactory resultFactory;
+	private SensuTransport transport;
+	private AsyncPublisher asyncPublisher;
+	private CheckTemplate template;
+	private CheckTemplate resolveTemplate;
+	private String namespace = SensuGoTransport.DEFAULT_NAMESPACE;
+	private BacklogRenderer backlogRenderer;
+	private OutputTemplate outputTemplate;
+	private BacklogSummarizer summarizer;
+	private AlertSuppressor suppressor;
+	private int suppressionRate;
+	private int suppressionBurst;
+	private int dedupWindow;
+	private AlertAggregator aggregator;
+	private String aggregationKey;
+	private int aggregationWindow;
+	private int maxSources;
+	private int maxInFlight;
+	private AutoResolver.Owner autoResolveOwner;
+	private int autoResolveAfter;
+	private KeepaliveEmitter keepaliveEmitter;
+	private int keepaliveInterval;
+	private int keepaliveTtl;
+
+	private final AlertAggregator.Emitter emitter = new AlertAggregator.Emitter() {
+		@Override
+		public void emit(AlertAggregator.Aggregate aggregate) throws AlarmCallbackException {
+			Timer.Context renderTime = SensuMetrics.shared().getRenderTime().time();
+			String output = backlogRenderer.renderMessages(aggregate.getSummary(), aggregate.getMessages());
+			renderTime.stop();
+			publish(serialize(aggregate.getCheckName(), output, aggregate.getClient()));
+			published(aggregate.getStreamId(), aggregate.getCheckName(), aggregate.getClient());
+		}
+	};
+
+	private final AutoResolver.Resolution resolution = new AutoResolver.Resolution() {
+		@Override
+		public void resolve(String client, String checkName) throws AlarmCallbackException {
+			publish(serialize(resolveTemplate, checkName,
+					"Resolved: no alert within " + autoResolveAfter + " seconds.", client));
+		}
+	};
+
+	private String checkName;
+	private String clientName;
+
+	@VisibleForTesting
+	SensuAlarmCallback() {
+		this(new SensuPublisherService());
+	}
+
+	@Inject
+	public SensuAlarmCallback(SensuPublisherService publisherService) {
+		this.publisherService = publisherService;
+	}
 
 	@Override
 	public void call(Stream stream, CheckResult result) throws AlarmCallbackException {
-		String title = "Stream \"" + stream.getTitle() + "\" raised alert. \n";
-		String alert_description = "Alert description: " + result.getResultDescription() + "\n";
-		String time = "Triggered at: " + result.getTriggeredAt() + "\n";
-
-		String streamURL = "Stream URL: Parameter transport_email_web_interface_url not set in Sensu Alarm Callback Plugin\n\n";
-		if (!isNullOrEmpty(configuration.getString(TRANSPORT_EMAIL_WEB_INTERFACE_URL))) {
-			streamURL = "Stream URL: " + buildStreamDetailsURL(
-					URI.create(configuration.getString(TRANSPORT_EMAIL_WEB_INTERFACE_URL)), result, stream) + "\n";
+		// if set to [stream], set the value of check_name to the stream title.
+		String check_name = checkName;
+		if ("[stream]".equals(check_name)) {
+			//remove whitespaces because of compatibility
+			check_name = stream.getTitle().replace(" ", "-");
 		}
 
-		String messageBacklog = "Last messages accounting for this alert: \n";
-		if (result.getMatchingMessages().size() == 0) {
-			messageBacklog += "No message backlog available.\n";
-		} else {
+		if (template == null) {
+			throw new AlarmCallbackException(CHECK_SEVERITY + " is mandatory and must be not be null or empty.");
+		}
 
-			for (MessageSummary message : result.getMatchingMessages()) {
-				messageBacklog += message.getMessage() + "\n\n\n";
+		String summary = null;
+		String streamURL = null;
+		if (outputTemplate == null) {
+			summary = "Stream \"" + stream.getTitle() + "\" raised alert. \n"
+					+ "Alert description: " + result.getResultDescription() + "\n"
+					+ "Triggered at: " + result.getTriggeredAt() + "\n";
+			streamURL = "Stream URL: Parameter transport_email_web_interface_url not set in Sensu Alarm Callback Plugin\n\n";
+			if (!isNullOrEmpty(configuration.getString(TRANSPORT_EMAIL_WEB_INTERFACE_URL))) {
+				streamURL = "Stream URL: " + buildStreamDetailsURL(
+						URI.create(configuration.getString(TRANSPORT_EMAIL_WEB_INTERFACE_URL)), result, stream) + "\n";
 			}
+		} else if (outputTemplate.usesStreamUrl() && !isNullOrEmpty(configuration.getString(TRANSPORT_EMAIL_WEB_INTERFACE_URL))) {
+			streamURL = buildStreamDetailsURL(URI.create(configuration.getString(TRANSPORT_EMAIL_WEB_INTERFACE_URL)), result, stream);
 		}
 
-		String output = title + alert_description + time + streamURL + messageBacklog;
+		// if set to [sources], publish one result per source of the backlog.
+		if ("[sources]".equals(clientName)) {
+			Map<String, List<MessageSummary>> sources = SourceFanOut.groupBySource(result.getMatchingMessages(), maxSources);
+			if (sources.isEmpty()) {
+				sources.put(SourceFanOut.OVERFLOW_CLIENT, result.getMatchingMessages());
+			}
+
+			List<byte[]> sensuResults = new ArrayList<>(sources.size());
+			Map<byte[], String> clients = new IdentityHashMap<>(sources.size());
+			for (Map.Entry<String, List<MessageSummary>> source : sources.entrySet()) {
+				byte[] sensuResult = createResult(stream, result, check_name, source.getKey(), source.getValue(),
+						summary, streamURL);
+				if (sensuResult != null) {
+					sensuResults.add(sensuResult);
+					clients.put(sensuResult, source.getKey());
+				}
+			}
+			publishAll(Strings.nullToEmpty(stream.getId()), check_name, sensuResults, clients);
+			return;
+		}
 
 		// if set to [source], try to extract the source from the first message
 		// of the backlog and use it for the client name.
-		String client_name = configuration.getString(CHECK_CLIENT);
+		String client_name = clientName;
 		if ("[source]".equals(client_name)) {
 			if (result.getMatchingMessages().size() > 0) {
 				MessageSummary message = result.getMatchingMessages().get(0);
@@ -91,32 +247,160 @@ public class SensuAlarmCallback implements AlarmCallback {
 			}
 		}
 
-		// if set to [stream], set the value of check_name to the stream title.
-		String check_name = configuration.getString(CHECK_NAME);
-		if ("[stream]".equals(check_name)) {
-			check_name = stream.getTitle();
+		byte[] sensuResult = createResult(stream, result, check_name, client_name, result.getMatchingMessages(),
+				summary, streamURL);
+		if (sensuResult != null) {
+			publish(sensuResult);
+			published(Strings.nullToEmpty(stream.getId()), check_name, client_name);
 		}
-		
-		//remove whitespaces because of compatibility
-		check_name = check_name.replace(" ", "-");
-		
+	}
+
+	/**
+	 * Renders the result for one client, or returns null when it is
+	 * suppressed or handed to the aggregator. Without an output template the
+	 * summary and stream URL lines are passed in, with one the stream URL
+	 * alone, or null if the template does not use it.
+	 */
+	private byte[] createResult(Stream stream, CheckResult result, String check_name, String client_name,
+			List<MessageSummary> messages, String summary, String streamURL) {
+		long suppressed = 0;
+		if (suppressor != null) {
+			long fingerprint = AlertSuppressor.fingerprint(template.getStatus(), result.getResultDescription(), messages);
+			suppressed = suppressor.tryAcquire(client_name, check_name, fingerprint, suppressionRate, suppressionBurst,
+					dedupWindow);
+			if (suppressed == AlertSuppressor.SUPPRESSED) {
+				return null;
+			}
+		}
+
+		if (aggregator != null) {
+			List<String> texts = new ArrayList<>(messages.size());
+			for (MessageSummary message : messages) {
+				texts.add(message.getMessage());
+			}
+			// the aggregator is shared by the plugin, only alerts for the same destination are merged
+			List<Object> key = Arrays.<Object>asList(transport, namespace,
+					isNullOrEmpty(aggregationKey) ? client_name : aggregationKey);
+			// a closed aggregator takes no more alerts, they are published on their own
+			if (aggregator.add(key, new AlertAggregator.Alert(client_name, check_name, Strings.nullToEmpty(stream.getId()),
+					stream.getTitle(), template.getStatus(), texts, emitter), TimeUnit.SECONDS.toMillis(aggregationWindow))) {
+				// the aggregator publishes the alert when its window closes
+				return null;
+			}
+		}
+
+		SensuMetrics metrics = SensuMetrics.shared();
+		metrics.getBacklogLength().update(messages.size());
+		Timer.Context renderTime = metrics.getRenderTime().time();
+		String output;
+		if (outputTemplate != null) {
+			output = outputTemplate.render(new OutputTemplate.Context(stream, result, check_name, client_name, suppressed,
+					messages.size(), streamURL), messages);
+		} else {
+			String suppressedNote = suppressed > 0 ? "Suppressed: " + suppressed + " similar alert(s) since the last result.\n" : "";
+			if (summarizer != null) {
+				output = summarizer.summarize(summary + suppressedNote + streamURL, messages);
+			} else {
+				output = backlogRenderer.render(summary + suppressedNote + streamURL, messages);
+			}
+		}
+		renderTime.stop();
+
+		return serialize(check_name, output, client_name);
+	}
+
+	private byte[] serialize(String check_name, String output, String client_name) {
+		return serialize(template, check_name, output, client_name);
+	}
+
+	private byte[] serialize(CheckTemplate checkTemplate, String check_name, String output, String client_name) {
+		SensuMetrics metrics = SensuMetrics.shared();
 		long timestamp = new DateTime().getMillis()/1000;
-		
-		String sensuResult = resultFactory.createResult(check_name, Integer.parseInt(configuration.getString(CHECK_SEVERITY)), output,
-				configuration.getString(CHECK_HANDLERS), timestamp, client_name,			
-				configuration.getString(CHECK_SUBSCRIBERS), configuration.getString(CHECK_TAGS));
 
+		Timer.Context serializeTime = metrics.getSerializeTime().time();
+		byte[] sensuResult;
+		SensuTransport.Format format = transport.getFormat();
+		if (format == SensuTransport.Format.EVENT) {
+			sensuResult = checkTemplate.renderEvent(check_name, output, timestamp, client_name, namespace);
+		} else if (format == SensuTransport.Format.CHECK) {
+			sensuResult = checkTemplate.renderCheck(check_name, output, timestamp, client_name);
+		} else {
+			sensuResult = checkTemplate.render(check_name, output, timestamp, client_name);
+		}
+		serializeTime.stop();
+
+		metrics.getPayloadSize().update(sensuResult.length);
+		return sensuResult;
+	}
+
+	/**
+	 * Pushes back the automatic resolve of a client/check and keeps the
+	 * client alive once its result was handed over for publishing.
+	 * Suppressed alerts do not count, and of an aggregation window only the
+	 * client/check of the emitted roll-up does. Keepalives are only sent for
+	 * the clients made up from message sources with "[source]" or
+	 * "[sources]"; a client configured by name is a real Sensu client with
+	 * keepalives of its own. They are only sent by the RabbitMQ transport,
+	 * which publishes RESULT messages; the CHECK and EVENT transports have no
+	 * keepalive queue to send them to.
+	 */
+	private void published(String streamId, String check_name, String client_name) {
+		if (autoResolveOwner != null) {
+			publisherService.getAutoResolver().schedule(autoResolveOwner, streamId,
+					client_name, check_name, TimeUnit.SECONDS.toMillis(autoResolveAfter));
+		}
+		if (keepaliveEmitter != null && transport instanceof RabbitMQClient
+				&& ("[source]".equals(clientName) || "[sources]".equals(clientName))) {
+			keepaliveEmitter.track((RabbitMQClient) transport, client_name, keepaliveInterval, keepaliveTtl);
+		}
+	}
+
+	private void publishAll(final String streamId, final String check_name, List<byte[]> sensuResults,
+			final Map<byte[], String> clients) throws AlarmCallbackException {
+		List<Exception> failures;
 		try {
-			client.send(sensuResult);
+			failures = SourceFanOut.sendAll(publisherService.getFanOutExecutor(), sensuResults,
+					asyncPublisher != null ? 1 : maxInFlight,
+					new SourceFanOut.Sender() {
+						@Override
+						public void send(byte[] sensuResult) throws AlarmCallbackException {
+							publish(sensuResult);
+							published(streamId, check_name, clients.get(sensuResult));
+						}
+					});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AlarmCallbackException("Interrupted while publishing Sensu results.");
+		}
+		if (!failures.isEmpty()) {
+			throw new AlarmCallbackException(failures.size() + " of " + sensuResults.size()
+					+ " Sensu results could not be published: " + failures.get(0).getMessage());
+		}
+	}
+
+	private void publish(byte[] sensuResult) throws AlarmCallbackException {
+		if (asyncPublisher != null) {
+			try {
+				if (!asyncPublisher.publish(transport, sensuResult)) {
+					throw new AlarmCallbackException(asyncPublisher.isClosed()
+							? "Sensu result dropped, the asynchronous publisher is shut down."
+							: "Sensu result dropped, the asynchronous publish queue is full.");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AlarmCallbackException("Interrupted while queueing Sensu result.");
+			}
+			return;
+		}
+
+		try {
+			transport.send(sensuResult);
 		} catch (KeyManagementException | NoSuchAlgorithmException | IOException | TimeoutException e) {
-			e.printStackTrace();
+			LOG.error("Could not publish Sensu result", e);
 			throw new AlarmCallbackException(e.getMessage());
 		}
-
 	}
 
-	
-
 	@Override
 	public void checkConfiguration() throws ConfigurationException {
 		if (configuration.getString(CHECK_HANDLERS).contains(",")) {
@@ -155,17 +439,66 @@ public class SensuAlarmCallback implements AlarmCallback {
 		if (!configuration.stringIsSet(CHECK_SEVERITY)) {
 			throw new ConfigurationException(CHECK_SEVERITY + " is mandatory and must be not be null or empty.");
 		}
-		if (!configuration.stringIsSet(RABBITMQ_USER)) {
-			throw new ConfigurationException(RABBITMQ_USER + " is mandatory and must be not be null or empty.");
+		String transportName = configuration.stringIsSet(TRANSPORT) ? configuration.getString(TRANSPORT) : TRANSPORT_RABBITMQ;
+		if (TRANSPORT_SENSU_CLIENT.equals(transportName)) {
+			if (configuration.stringIsSet(CLIENT_SOCKET_PROTOCOL)) {
+				try {
+					SensuClientSocketTransport.Protocol.fromString(configuration.getString(CLIENT_SOCKET_PROTOCOL));
+				} catch (IllegalArgumentException e) {
+					throw new ConfigurationException(CLIENT_SOCKET_PROTOCOL + " must be one of tcp or udp.");
+				}
+			}
+		} else if (TRANSPORT_SENSU_GO.equals(transportName)) {
+			if (!configuration.stringIsSet(SENSU_GO_URL)) {
+				throw new ConfigurationException(SENSU_GO_URL + " is mandatory and must be not be null or empty.");
+			}
+			try {
+				SensuGoTransport.parseUrl(configuration.getString(SENSU_GO_URL));
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException(SENSU_GO_URL + " must be an http or https URL.");
+			}
+		} else if (TRANSPORT_RABBITMQ.equals(transportName)) {
+			if (!configuration.stringIsSet(RABBITMQ_USER)) {
+				throw new ConfigurationException(RABBITMQ_USER + " is mandatory and must be not be null or empty.");
+			}
+			if (!configuration.stringIsSet(RABBITMQ_VIRTUAL_HOST)) {
+				throw new ConfigurationException(RABBITMQ_VIRTUAL_HOST + " is mandatory and must be not be null or empty.");
+			}
+			if (!configuration.stringIsSet(RABBITMQ_HOSTNAME)) {
+				throw new ConfigurationException(RABBITMQ_HOSTNAME + " is mandatory and must be not be null or empty.");
+			}
+			if (!configuration.intIsSet(RABBITMQ_PORT)) {
+				throw new ConfigurationException(RABBITMQ_PORT + " is mandatory and must be not be null or empty.");
+			}
+			try {
+				ClusterNodes.parse(configuration.getString(RABBITMQ_HOSTNAME), configuration.getInt(RABBITMQ_PORT));
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException(RABBITMQ_HOSTNAME + " is not a valid host list: " + e.getMessage());
+			}
+			if (configuration.stringIsSet(RABBITMQ_TOPOLOGY)) {
+				try {
+					SensuTopology.Mode.fromString(configuration.getString(RABBITMQ_TOPOLOGY));
+				} catch (IllegalArgumentException e) {
+					throw new ConfigurationException(RABBITMQ_TOPOLOGY + " must be one of declare, passive or skip.");
+				}
+			}
+		} else {
+			throw new ConfigurationException(TRANSPORT + " must be one of rabbitmq, sensu_client or sensu_go.");
 		}
-		if (!configuration.stringIsSet(RABBITMQ_VIRTUAL_HOST)) {
-			throw new ConfigurationException(RABBITMQ_VIRTUAL_HOST + " is mandatory and must be not be null or empty.");
+		if (configuration.getInt(BACKLOG_SUMMARY_TOP, 0) > BacklogSummarizer.MAX_TOP) {
+			throw new ConfigurationException(BACKLOG_SUMMARY_TOP + " must not be larger than " + BacklogSummarizer.MAX_TOP + ".");
 		}
-		if (!configuration.stringIsSet(RABBITMQ_HOSTNAME)) {
-			throw new ConfigurationException(RABBITMQ_HOSTNAME + " is mandatory and must be not be null or empty.");
+		if (configuration.stringIsSet(ASYNC_OVERFLOW_POLICY)) {
+			try {
+				AsyncPublisher.OverflowPolicy.fromString(configuration.getString(ASYNC_OVERFLOW_POLICY));
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException(ASYNC_OVERFLOW_POLICY + " must be one of drop_oldest, drop_newest or block.");
+			}
 		}
-		if (!configuration.intIsSet(RABBITMQ_PORT)) {
-			throw new ConfigurationException(RABBITMQ_PORT + " is mandatory and must be not be null or empty.");
+		try {
+			compileOutputTemplate();
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException(OUTPUT_TEMPLATE + " is not a valid template: " + e.getMessage());
 		}
 	}
 
@@ -174,7 +507,8 @@ public class SensuAlarmCallback implements AlarmCallback {
 		return Maps.transformEntries(configuration.getSource(), new Maps.EntryTransformer<String, Object, Object>() {
 			@Override
 			public Object transformEntry(String key, Object value) {
-				if (RABBITMQ_PASSWORD.equals(key)) {
+				if (RABBITMQ_PASSWORD.equals(key) || SENSU_GO_API_KEY.equals(key) || RABBITMQ_SSL_TRUSTSTORE_PASSWORD.equals(key)
+						|| RABBITMQ_SSL_KEYSTORE_PASSWORD.equals(key)) {
 					return "****";
 				}
 				return value;
@@ -190,24 +524,133 @@ public class SensuAlarmCallback implements AlarmCallback {
 	@Override
 	public ConfigurationRequest getRequestedConfiguration() {
 		final ConfigurationRequest configurationRequest = new ConfigurationRequest();
+
+		Map<String, String> transports = new HashMap<String, String>();
+		transports.put(TRANSPORT_RABBITMQ, "RabbitMQ (Sensu transport)");
+		transports.put(TRANSPORT_SENSU_CLIENT, "Local Sensu client socket");
+		transports.put(TRANSPORT_SENSU_GO, "Sensu Go events API");
+
+		configurationRequest.addField(new DropdownField(TRANSPORT, "Transport", TRANSPORT_RABBITMQ, transports,
+				"Publish results to RabbitMQ, hand them to the socket of a Sensu client running next to Graylog, or post them as events to a Sensu Go backend.",
+				ConfigurationField.Optional.OPTIONAL));
+
+		Map<String, String> protocols = new HashMap<String, String>();
+		protocols.put("tcp", "TCP, wait for the client to accept every result");
+		protocols.put("udp", "UDP, fire and forget");
+
+		configurationRequest.addField(new TextField(CLIENT_SOCKET_HOST, "Sensu Client Host", SensuClientSocketTransport.DEFAULT_HOST,
+				"With the Sensu client transport, the host the Sensu client socket listens on.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(CLIENT_SOCKET_PORT, "Sensu Client Port", SensuClientSocketTransport.DEFAULT_PORT,
+				"With the Sensu client transport, the port the Sensu client socket listens on.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new DropdownField(CLIENT_SOCKET_PROTOCOL, "Sensu Client Protocol", "tcp", protocols,
+				"With the Sensu client transport, how results are sent to the Sensu client socket.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(SENSU_GO_URL, "Sensu Go Backend URL", "",
+				"With the Sensu Go transport, the URL of the backend API, e.g. http://sensu.example.com:8080.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(SENSU_GO_NAMESPACE, "Sensu Go Namespace", SensuGoTransport.DEFAULT_NAMESPACE,
+				"With the Sensu Go transport, the namespace events are created in.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(SENSU_GO_API_KEY, "Sensu Go API Key", "",
+				"With the Sensu Go transport, the API key to authenticate with.",
+				ConfigurationField.Optional.OPTIONAL, TextField.Attribute.IS_PASSWORD));
+		configurationRequest.addField(new NumberField(SENSU_GO_MAX_IN_FLIGHT, "Sensu Go Max In-Flight Events", SensuGoTransport.DEFAULT_MAX_IN_FLIGHT,
+				"With the Sensu Go transport, how many events are posted at the same time, each over its own keep-alive connection.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(SENSU_GO_TIMEOUT, "Sensu Go Timeout", SensuGoTransport.DEFAULT_TIMEOUT,
+				"With the Sensu Go transport, the milliseconds to wait for the backend to accept an event before retrying it.",
+				ConfigurationField.Optional.OPTIONAL));
 		configurationRequest.addField(new TextField(RABBITMQ_HOSTNAME, "RabbitMQ Host", "",
-				"The hostname or IP address of the RabbitMQ server.", ConfigurationField.Optional.NOT_OPTIONAL));
+				"The hostname or IP address of the RabbitMQ server, or a comma separated list of host[:port] cluster nodes. Required with the RabbitMQ transport.",
+				ConfigurationField.Optional.OPTIONAL));
 		configurationRequest.addField(new NumberField(RABBITMQ_PORT, "RabbitMQ Port", 5671,
-				"The port on which RabbitMQ listens.", ConfigurationField.Optional.NOT_OPTIONAL));
+				"The port on which RabbitMQ listens. Required with the RabbitMQ transport.",
+				ConfigurationField.Optional.OPTIONAL));
 		configurationRequest.addField(new TextField(RABBITMQ_USER, "RabbitMQ User", "sensu",
-				"The user to connect to RabbitMQ.", ConfigurationField.Optional.NOT_OPTIONAL));
+				"The user to connect to RabbitMQ. Required with the RabbitMQ transport.",
+				ConfigurationField.Optional.OPTIONAL));
 		configurationRequest.addField(
 				new TextField(RABBITMQ_PASSWORD, "RabbitMQ Password", "", "The password to connect to RabbitMQ.",
 						ConfigurationField.Optional.OPTIONAL, TextField.Attribute.IS_PASSWORD));
 		configurationRequest.addField(new TextField(RABBITMQ_VIRTUAL_HOST, "RabbitMQ Virtual Host", "/sensu",
-				"The VHost for Sensu on RabbitMQ.", ConfigurationField.Optional.NOT_OPTIONAL));
+				"The VHost for Sensu on RabbitMQ. Required with the RabbitMQ transport.",
+				ConfigurationField.Optional.OPTIONAL));
 		configurationRequest.addField(
 				new BooleanField(RABBITMQ_USE_SSL, "Use SSL", false, "Enable to use SSL for connecting to RabbitMQ"));
+		configurationRequest.addField(new TextField(RABBITMQ_SSL_PROTOCOL, "RabbitMQ SSL Protocol", TlsContexts.DEFAULT_PROTOCOL,
+				"The TLS protocol version to connect with.", ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(RABBITMQ_SSL_TRUSTSTORE, "RabbitMQ SSL Truststore", "",
+				"Path to a JKS or PKCS12 (.p12) truststore with the certificates the broker certificate is verified against. If not set, any broker certificate is accepted.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(RABBITMQ_SSL_TRUSTSTORE_PASSWORD, "RabbitMQ SSL Truststore Password", "",
+				"The password of the truststore.", ConfigurationField.Optional.OPTIONAL, TextField.Attribute.IS_PASSWORD));
+		configurationRequest.addField(new TextField(RABBITMQ_SSL_KEYSTORE, "RabbitMQ SSL Keystore", "",
+				"Path to a JKS or PKCS12 (.p12) keystore with the client certificate, for brokers that require one.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(RABBITMQ_SSL_KEYSTORE_PASSWORD, "RabbitMQ SSL Keystore Password", "",
+				"The password of the keystore and its key.", ConfigurationField.Optional.OPTIONAL, TextField.Attribute.IS_PASSWORD));
+		configurationRequest.addField(new NumberField(RABBITMQ_CHANNEL_POOL_SIZE, "RabbitMQ Channel Pool Size",
+				RabbitMQSettings.DEFAULT_CHANNEL_POOL_SIZE,
+				"The maximum number of channels kept open on the shared connection to RabbitMQ.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_CHANNEL_IDLE_TIMEOUT, "RabbitMQ Channel Idle Timeout",
+				RabbitMQSettings.DEFAULT_CHANNEL_IDLE_TIMEOUT,
+				"The number of seconds after which an unused channel is closed.",
+				ConfigurationField.Optional.OPTIONAL));
+
+		Map<String, String> topologyModes = new HashMap<String, String>();
+		topologyModes.put("declare", "Declare exchanges and queues");
+		topologyModes.put("passive", "Verify existing exchanges and queues");
+		topologyModes.put("skip", "Skip declaration (Sensu owns the topology)");
+
+		configurationRequest.addField(new DropdownField(RABBITMQ_TOPOLOGY, "RabbitMQ Topology", "declare", topologyModes,
+				"How the keepalives and results exchanges and queues are set up on a new connection.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new BooleanField(RABBITMQ_PUBLISHER_CONFIRMS, "Use publisher confirms", false,
+				"Let RabbitMQ confirm every result and retry results that are rejected or not confirmed in time."));
+		configurationRequest.addField(new NumberField(RABBITMQ_CONFIRM_TIMEOUT, "RabbitMQ Confirm Timeout",
+				RabbitMQSettings.DEFAULT_CONFIRM_TIMEOUT,
+				"The number of milliseconds after which an unconfirmed result is published again.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_MAX_UNCONFIRMED, "RabbitMQ Max Unconfirmed",
+				RabbitMQSettings.DEFAULT_MAX_UNCONFIRMED,
+				"The maximum number of unconfirmed results in flight per channel.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_CONNECT_TIMEOUT, "RabbitMQ Connect Timeout",
+				RabbitMQSettings.DEFAULT_CONNECT_TIMEOUT,
+				"The number of milliseconds to wait for a TCP connection to RabbitMQ, 0 to wait indefinitely.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_HANDSHAKE_TIMEOUT, "RabbitMQ Handshake Timeout",
+				RabbitMQSettings.DEFAULT_HANDSHAKE_TIMEOUT,
+				"The number of milliseconds to wait for the AMQP handshake once connected, 0 to wait indefinitely.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_PUBLISH_TIMEOUT, "RabbitMQ Publish Timeout",
+				RabbitMQSettings.DEFAULT_PUBLISH_TIMEOUT,
+				"The number of milliseconds to wait for a free channel.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_BREAKER_THRESHOLD, "RabbitMQ Circuit Breaker Threshold",
+				RabbitMQSettings.DEFAULT_BREAKER_THRESHOLD,
+				"The number of consecutive publish failures after which results fail fast or go to the spool, 0 to disable.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_BREAKER_BACKOFF, "RabbitMQ Circuit Breaker Backoff",
+				RabbitMQSettings.DEFAULT_BREAKER_BACKOFF,
+				"The number of milliseconds the circuit breaker stays open the first time, doubling on every failed probe.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_BREAKER_MAX_BACKOFF, "RabbitMQ Circuit Breaker Max Backoff",
+				RabbitMQSettings.DEFAULT_BREAKER_MAX_BACKOFF,
+				"The maximum number of milliseconds the circuit breaker stays open.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(RABBITMQ_NODE_COOL_DOWN, "RabbitMQ Node Cool-Down",
+				ClusterNodes.DEFAULT_COOL_DOWN,
+				"The number of milliseconds a failed cluster node is skipped while other nodes are available.",
+				ConfigurationField.Optional.OPTIONAL));
 		configurationRequest.addField(new TextField(CHECK_NAME, "Check title", "",
 				"The name of the check as shown in Sensu. Enter \"[stream]\" to use the stream name. Whitespaces will be replaced with dashes.",
 				ConfigurationField.Optional.NOT_OPTIONAL));
 		configurationRequest.addField(new TextField(CHECK_CLIENT, "Check client", "",
-				"The name of the client as shown in Sensu. Enter \"[source]\" to try to fetch the source from the first message of the backlog.", ConfigurationField.Optional.NOT_OPTIONAL));
+				"The name of the client as shown in Sensu. Enter \"[source]\" to try to fetch the source from the first message of the backlog, or \"[sources]\" to send one result per source of the backlog.", ConfigurationField.Optional.NOT_OPTIONAL));
 		configurationRequest.addField(new TextField(CHECK_HANDLERS, "Sensu handlers", "default",
 				"The handler(s) in Sensu that takes care of this result (comma separated if multiple handlers).",
 				ConfigurationField.Optional.NOT_OPTIONAL));
@@ -226,6 +669,92 @@ public class SensuAlarmCallback implements AlarmCallback {
 
 		configurationRequest.addField(new DropdownField(CHECK_SEVERITY, "Severity", "0", levels,
 				"The severity of the event.", ConfigurationField.Optional.NOT_OPTIONAL));
+		configurationRequest.addField(new TextField(OUTPUT_TEMPLATE, "Output template", "",
+				"Replaces the default check output. Placeholders: ${stream.title}, ${stream.id}, ${stream.description}, "
+						+ "${stream.url}, ${result.description}, ${result.triggered_at}, ${alert.client}, ${alert.check}, "
+						+ "${alert.suppressed}, ${alert.message_count}. The text between ${messages} and ${end} is repeated "
+						+ "for every backlog message and can use ${message}, ${source}, ${timestamp}, ${id} and ${fields.<name>}.",
+				ConfigurationField.Optional.OPTIONAL, TextField.Attribute.TEXTAREA));
+		configurationRequest.addField(new NumberField(OUTPUT_MAX_SIZE, "Max output size", BacklogRenderer.DEFAULT_MAX_OUTPUT_SIZE,
+				"The maximum size in bytes of the check output. Backlog messages that do not fit are left out. 0 disables the limit.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(MESSAGE_MAX_SIZE, "Max message size", BacklogRenderer.DEFAULT_MAX_MESSAGE_SIZE,
+				"The maximum size in bytes of a single backlog message in the check output. 0 disables the limit.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(BACKLOG_SUMMARY_TOP, "Backlog summary", 0,
+				"Lists the given number of most frequent backlog messages with their counts and the number of sources, "
+						+ "instead of every message. Messages that only differ in numbers count as the same. 0 lists every message, "
+						+ "at most " + BacklogSummarizer.MAX_TOP + ".",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(SUPPRESSION_RATE, "Rate limit", 0,
+				"The maximum number of results per minute for the same client and check. 0 disables rate limiting.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(SUPPRESSION_BURST, "Rate limit burst", AlertSuppressor.DEFAULT_BURST,
+				"The number of results for the same client and check let through back to back before the rate limit applies.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(DEDUP_WINDOW, "Deduplication window", 0,
+				"The number of seconds during which a result with the same status and backlog as a previous one is dropped. 0 disables deduplication.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(AUTO_RESOLVE_AFTER, "Auto resolve after", 0,
+				"The number of seconds without a new alert for the same client and check after which an OK result is sent. 0 disables automatic resolves.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(KEEPALIVE_INTERVAL, "Keepalive interval", 0,
+				"With the RabbitMQ transport and check client \"[source]\" or \"[sources]\", the number of seconds between keepalives sent for every client results were sent for, so those clients have a keepalive state in Sensu. 0 disables keepalives.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(KEEPALIVE_TTL, "Keepalive TTL", KeepaliveEmitter.DEFAULT_TTL,
+				"The number of seconds after the last result for a client after which no more keepalives are sent for it.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(FAN_OUT_MAX_SOURCES, "Max sources", SourceFanOut.DEFAULT_MAX_SOURCES,
+				"With check client \"[sources]\", the maximum number of sources getting a result of their own. Messages of further sources are sent as one result for client \"graylog\".",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(FAN_OUT_MAX_IN_FLIGHT, "Max results in flight", SourceFanOut.DEFAULT_MAX_IN_FLIGHT,
+				"With check client \"[sources]\", the maximum number of results of one alert published at the same time.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(AGGREGATION_WINDOW, "Aggregation window", 0,
+				"The number of seconds alerts with the same aggregation key are collected and sent as one result with the highest severity. 0 disables aggregation.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new TextField(AGGREGATION_KEY, "Aggregation key", "",
+				"Alerts of all callbacks publishing to the same destination with the same key are aggregated together. Leave empty to aggregate by check client.",
+				ConfigurationField.Optional.OPTIONAL));
+
+		configurationRequest.addField(new BooleanField(ASYNC_ENABLED, "Publish asynchronously", false,
+				"Queue results in memory and publish them from background threads instead of blocking the alert check. The queue is shared by all callbacks, its settings below are taken from the callback of the most recent alert."));
+		configurationRequest.addField(new NumberField(ASYNC_QUEUE_SIZE, "Asynchronous queue size",
+				AsyncPublisher.DEFAULT_QUEUE_SIZE, "The maximum number of results waiting to be published.",
+				ConfigurationField.Optional.OPTIONAL));
+
+		Map<String, String> overflowPolicies = new HashMap<String, String>();
+		overflowPolicies.put("drop_oldest", "Drop oldest result");
+		overflowPolicies.put("drop_newest", "Drop newest result");
+		overflowPolicies.put("block", "Block with timeout");
+
+		configurationRequest.addField(new DropdownField(ASYNC_OVERFLOW_POLICY, "Asynchronous overflow policy", "drop_oldest",
+				overflowPolicies, "What to do with a new result when the asynchronous queue is full.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(ASYNC_BLOCK_TIMEOUT, "Asynchronous block timeout",
+				AsyncPublisher.DEFAULT_BLOCK_TIMEOUT,
+				"The number of milliseconds to wait for free space in the queue when the overflow policy is \"Block with timeout\".",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(ASYNC_SENDER_THREADS, "Asynchronous sender threads",
+				AsyncPublisher.DEFAULT_SENDER_THREADS, "The number of threads publishing queued results.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(BATCH_SIZE, "Batch size", AsyncPublisher.DEFAULT_BATCH_SIZE,
+				"The maximum number of queued results published together on one channel. Only used when publishing asynchronously, 1 disables batching.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(BATCH_WINDOW, "Batch window", AsyncPublisher.DEFAULT_BATCH_WINDOW,
+				"The number of milliseconds to wait for more results before publishing a batch.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new BooleanField(RABBITMQ_BATCH_CONFIRMS, "Wait for confirms per batch", false,
+				"With publisher confirms enabled, wait once for the whole batch to be confirmed before publishing the next one."));
+		configurationRequest.addField(new TextField(SPOOL_DIRECTORY, "Spool directory", "",
+				"Local directory where results that cannot be published are kept until RabbitMQ is reachable again. Leave empty to disable spooling.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(SPOOL_MAX_SIZE, "Spool max size", ResultSpool.DEFAULT_MAX_SIZE,
+				"The maximum disk space in MB used by the spool. The oldest results are dropped when it is full.",
+				ConfigurationField.Optional.OPTIONAL));
+		configurationRequest.addField(new NumberField(SPOOL_RETENTION, "Spool retention", ResultSpool.DEFAULT_RETENTION,
+				"The number of hours after which spooled results are dropped.",
+				ConfigurationField.Optional.OPTIONAL));
 
 		// this has to be added because the global config containing the mail
 		// stream url is not accessible in the plugin API.
@@ -241,21 +770,196 @@ public class SensuAlarmCallback implements AlarmCallback {
 	public void initialize(Configuration config) throws AlarmCallbackConfigurationException {
 		this.configuration = config;
 
-		setClient(new RabbitMQClient(configuration.getString(RABBITMQ_USER), configuration.getString(RABBITMQ_PASSWORD),
+		if (TRANSPORT_SENSU_CLIENT.equals(configuration.getString(TRANSPORT))) {
+			setTransport(createClientSocketTransport());
+		} else if (TRANSPORT_SENSU_GO.equals(configuration.getString(TRANSPORT))) {
+			setTransport(createSensuGoTransport());
+		} else {
+			setTransport(createRabbitMQClient());
+		}
+
+		compileTemplate();
+		backlogRenderer = new BacklogRenderer(configuration.getInt(OUTPUT_MAX_SIZE, BacklogRenderer.DEFAULT_MAX_OUTPUT_SIZE),
+				configuration.getInt(MESSAGE_MAX_SIZE, BacklogRenderer.DEFAULT_MAX_MESSAGE_SIZE));
+		int summaryTop = configuration.getInt(BACKLOG_SUMMARY_TOP, 0);
+		summarizer = summaryTop > 0 ? new BacklogSummarizer(summaryTop,
+				configuration.getInt(OUTPUT_MAX_SIZE, BacklogRenderer.DEFAULT_MAX_OUTPUT_SIZE),
+				configuration.getInt(MESSAGE_MAX_SIZE, BacklogRenderer.DEFAULT_MAX_MESSAGE_SIZE)) : null;
+		try {
+			outputTemplate = compileOutputTemplate();
+		} catch (IllegalArgumentException e) {
+			throw new AlarmCallbackConfigurationException("Invalid " + OUTPUT_TEMPLATE + ": " + e.getMessage());
+		}
+
+		suppressionRate = configuration.getInt(SUPPRESSION_RATE, 0);
+		suppressionBurst = configuration.getInt(SUPPRESSION_BURST, AlertSuppressor.DEFAULT_BURST);
+		dedupWindow = configuration.getInt(DEDUP_WINDOW, 0);
+		setSuppressor(suppressionRate > 0 || dedupWindow > 0 ? publisherService.getSuppressor() : null);
+
+		aggregationWindow = configuration.getInt(AGGREGATION_WINDOW, 0);
+		aggregationKey = configuration.getString(AGGREGATION_KEY);
+		setAggregator(aggregationWindow > 0 ? publisherService.getAggregator() : null);
+
+		maxSources = configuration.getInt(FAN_OUT_MAX_SOURCES, SourceFanOut.DEFAULT_MAX_SOURCES);
+		maxInFlight = configuration.getInt(FAN_OUT_MAX_IN_FLIGHT, SourceFanOut.DEFAULT_MAX_IN_FLIGHT);
+
+		// an OK result has nothing to resolve
+		autoResolveAfter = configuration.getInt(AUTO_RESOLVE_AFTER, 0);
+		autoResolveOwner = autoResolveAfter > 0 && template != null && template.getStatus() != 0
+				? publisherService.getAutoResolver().owner(configuration.getSource(), resolution) : null;
+
+		keepaliveInterval = configuration.getInt(KEEPALIVE_INTERVAL, 0);
+		keepaliveTtl = configuration.getInt(KEEPALIVE_TTL, KeepaliveEmitter.DEFAULT_TTL);
+		setKeepaliveEmitter(keepaliveInterval > 0 && transport instanceof RabbitMQClient
+				? publisherService.getKeepaliveEmitter() : null);
+
+		if (configuration.getBoolean(ASYNC_ENABLED)) {
+			AsyncPublisher.OverflowPolicy overflowPolicy;
+			try {
+				overflowPolicy = AsyncPublisher.OverflowPolicy.fromString(configuration.getString(ASYNC_OVERFLOW_POLICY));
+			} catch (IllegalArgumentException e) {
+				throw new AlarmCallbackConfigurationException("Unknown " + ASYNC_OVERFLOW_POLICY + ": " + configuration.getString(ASYNC_OVERFLOW_POLICY));
+			}
+			AsyncPublisher publisher = publisherService.getAsyncPublisher();
+			publisher.configure(configuration.getInt(ASYNC_QUEUE_SIZE, AsyncPublisher.DEFAULT_QUEUE_SIZE), overflowPolicy,
+					configuration.getInt(ASYNC_BLOCK_TIMEOUT, AsyncPublisher.DEFAULT_BLOCK_TIMEOUT),
+					configuration.getInt(ASYNC_SENDER_THREADS, AsyncPublisher.DEFAULT_SENDER_THREADS));
+			publisher.configureBatching(configuration.getInt(BATCH_SIZE, AsyncPublisher.DEFAULT_BATCH_SIZE),
+					configuration.getInt(BATCH_WINDOW, AsyncPublisher.DEFAULT_BATCH_WINDOW));
+			setAsyncPublisher(publisher);
+		} else {
+			setAsyncPublisher(null);
+		}
+	}
+
+	private RabbitMQClient createRabbitMQClient() throws AlarmCallbackConfigurationException {
+		SensuTopology.Mode topologyMode;
+		try {
+			topologyMode = SensuTopology.Mode.fromString(configuration.getString(RABBITMQ_TOPOLOGY));
+		} catch (IllegalArgumentException e) {
+			throw new AlarmCallbackConfigurationException("Unknown " + RABBITMQ_TOPOLOGY + ": " + configuration.getString(RABBITMQ_TOPOLOGY));
+		}
+
+		RabbitMQSettings settings = new RabbitMQSettings()
+				.setChannelPoolSize(configuration.getInt(RABBITMQ_CHANNEL_POOL_SIZE, RabbitMQSettings.DEFAULT_CHANNEL_POOL_SIZE))
+				.setChannelIdleTimeout(configuration.getInt(RABBITMQ_CHANNEL_IDLE_TIMEOUT, RabbitMQSettings.DEFAULT_CHANNEL_IDLE_TIMEOUT))
+				.setTopologyMode(topologyMode)
+				.setPublisherConfirms(configuration.getBoolean(RABBITMQ_PUBLISHER_CONFIRMS))
+				.setConfirmTimeout(configuration.getInt(RABBITMQ_CONFIRM_TIMEOUT, RabbitMQSettings.DEFAULT_CONFIRM_TIMEOUT))
+				.setMaxUnconfirmed(configuration.getInt(RABBITMQ_MAX_UNCONFIRMED, RabbitMQSettings.DEFAULT_MAX_UNCONFIRMED))
+				.setConnectTimeout(configuration.getInt(RABBITMQ_CONNECT_TIMEOUT, RabbitMQSettings.DEFAULT_CONNECT_TIMEOUT))
+				.setHandshakeTimeout(configuration.getInt(RABBITMQ_HANDSHAKE_TIMEOUT, RabbitMQSettings.DEFAULT_HANDSHAKE_TIMEOUT))
+				.setPublishTimeout(configuration.getInt(RABBITMQ_PUBLISH_TIMEOUT, RabbitMQSettings.DEFAULT_PUBLISH_TIMEOUT))
+				.setBreakerThreshold(configuration.getInt(RABBITMQ_BREAKER_THRESHOLD, RabbitMQSettings.DEFAULT_BREAKER_THRESHOLD))
+				.setBreakerBackoff(configuration.getInt(RABBITMQ_BREAKER_BACKOFF, RabbitMQSettings.DEFAULT_BREAKER_BACKOFF))
+				.setBreakerMaxBackoff(configuration.getInt(RABBITMQ_BREAKER_MAX_BACKOFF, RabbitMQSettings.DEFAULT_BREAKER_MAX_BACKOFF))
+				.setNodeCoolDown(configuration.getInt(RABBITMQ_NODE_COOL_DOWN, ClusterNodes.DEFAULT_COOL_DOWN))
+				.setSslContext(configuration.getBoolean(RABBITMQ_USE_SSL) ? createSslContext() : null)
+				.setBatchConfirms(configuration.getBoolean(RABBITMQ_BATCH_CONFIRMS))
+				.setSpoolDirectory(configuration.getString(SPOOL_DIRECTORY))
+				.setSpoolMaxSize(configuration.getInt(SPOOL_MAX_SIZE, ResultSpool.DEFAULT_MAX_SIZE))
+				.setSpoolRetention(configuration.getInt(SPOOL_RETENTION, ResultSpool.DEFAULT_RETENTION));
+
+		return new RabbitMQClient(configuration.getString(RABBITMQ_USER), configuration.getString(RABBITMQ_PASSWORD),
 				configuration.getString(RABBITMQ_VIRTUAL_HOST), configuration.getString(RABBITMQ_HOSTNAME),
-				configuration.getInt(RABBITMQ_PORT), configuration.getBoolean(RABBITMQ_USE_SSL)));
-		
-		setResultFactory(new SensuResultFactory());
+				configuration.getInt(RABBITMQ_PORT), configuration.getBoolean(RABBITMQ_USE_SSL), settings);
+	}
+
+	private SSLContext createSslContext() throws AlarmCallbackConfigurationException {
+		try {
+			return TlsContexts.forStores(configuration.getString(RABBITMQ_SSL_PROTOCOL),
+					configuration.getString(RABBITMQ_SSL_TRUSTSTORE), configuration.getString(RABBITMQ_SSL_TRUSTSTORE_PASSWORD),
+					configuration.getString(RABBITMQ_SSL_KEYSTORE), configuration.getString(RABBITMQ_SSL_KEYSTORE_PASSWORD));
+		} catch (IOException | GeneralSecurityException e) {
+			throw new AlarmCallbackConfigurationException("Cannot set up SSL for RabbitMQ: " + e.getMessage());
+		}
+	}
+
+	private SensuClientSocketTransport createClientSocketTransport() throws AlarmCallbackConfigurationException {
+		SensuClientSocketTransport.Protocol protocol;
+		try {
+			protocol = SensuClientSocketTransport.Protocol.fromString(configuration.getString(CLIENT_SOCKET_PROTOCOL));
+		} catch (IllegalArgumentException e) {
+			throw new AlarmCallbackConfigurationException("Unknown " + CLIENT_SOCKET_PROTOCOL + ": " + configuration.getString(CLIENT_SOCKET_PROTOCOL));
+		}
+		String host = configuration.stringIsSet(CLIENT_SOCKET_HOST) ? configuration.getString(CLIENT_SOCKET_HOST).trim()
+				: SensuClientSocketTransport.DEFAULT_HOST;
+		return SensuClientSocketTransport.forClient(host,
+				configuration.getInt(CLIENT_SOCKET_PORT, SensuClientSocketTransport.DEFAULT_PORT), protocol);
+	}
+
+	private SensuGoTransport createSensuGoTransport() throws AlarmCallbackConfigurationException {
+		namespace = configuration.stringIsSet(SENSU_GO_NAMESPACE) ? configuration.getString(SENSU_GO_NAMESPACE).trim()
+				: SensuGoTransport.DEFAULT_NAMESPACE;
+		SensuGoTransport transport;
+		try {
+			transport = SensuGoTransport.forBackend(configuration.getString(SENSU_GO_URL), namespace,
+					configuration.getString(SENSU_GO_API_KEY), publisherService.getRetryScheduler());
+		} catch (IllegalArgumentException e) {
+			throw new AlarmCallbackConfigurationException("Invalid " + SENSU_GO_URL + ": " + configuration.getString(SENSU_GO_URL));
+		}
+		transport.configure(configuration.getInt(SENSU_GO_MAX_IN_FLIGHT, SensuGoTransport.DEFAULT_MAX_IN_FLIGHT),
+				configuration.getInt(SENSU_GO_TIMEOUT, SensuGoTransport.DEFAULT_TIMEOUT));
+		return transport;
 	}
 
 	@VisibleForTesting
-	void setClient(RabbitMQClient client) {
-		this.client = client;
+	void setTransport(SensuTransport transport) {
+		this.transport = transport;
 	}
 	
 	@VisibleForTesting
-	void setResultFactory(SensuResultFactory resultFactory) {
-		this.resultFactory = resultFactory;
+	void setSuppressor(AlertSuppressor suppressor) {
+		this.suppressor = suppressor;
+	}
+
+	@VisibleForTesting
+	void setAggregator(AlertAggregator aggregator) {
+		this.aggregator = aggregator;
+	}
+
+	@VisibleForTesting
+	void setAsyncPublisher(AsyncPublisher asyncPublisher) {
+		this.asyncPublisher = asyncPublisher;
+	}
+
+	@VisibleForTesting
+	void setKeepaliveEmitter(KeepaliveEmitter keepaliveEmitter) {
+		this.keepaliveEmitter = keepaliveEmitter;
+	}
+
+	AutoResolver.Resolution getResolution() {
+		return resolution;
+	}
+
+	private OutputTemplate compileOutputTemplate() {
+		if (!configuration.stringIsSet(OUTPUT_TEMPLATE)) {
+			return null;
+		}
+		return OutputTemplate.compile(configuration.getString(OUTPUT_TEMPLATE),
+				configuration.getInt(OUTPUT_MAX_SIZE, BacklogRenderer.DEFAULT_MAX_OUTPUT_SIZE),
+				configuration.getInt(MESSAGE_MAX_SIZE, BacklogRenderer.DEFAULT_MAX_MESSAGE_SIZE));
+	}
+
+	private void compileTemplate() throws AlarmCallbackConfigurationException {
+		String name = configuration.getString(CHECK_NAME);
+		checkName = "[stream]".equals(name) || name == null ? name : name.replace(" ", "-");
+		clientName = configuration.getString(CHECK_CLIENT);
+
+		String severity = configuration.getString(CHECK_SEVERITY);
+		if (isNullOrEmpty(severity)) {
+			// reported by checkConfiguration()
+			template = null;
+			return;
+		}
+		try {
+			template = new CheckTemplate(Integer.parseInt(severity), configuration.getString(CHECK_HANDLERS),
+					configuration.getString(CHECK_SUBSCRIBERS), configuration.getString(CHECK_TAGS));
+			resolveTemplate = new CheckTemplate(0, configuration.getString(CHECK_HANDLERS),
+					configuration.getString(CHECK_SUBSCRIBERS), configuration.getString(CHECK_TAGS));
+		} catch (NumberFormatException e) {
+			throw new AlarmCallbackConfigurationException("Invalid " + CHECK_SEVERITY + ": " + severity);
+		}
 	}
 
 	protected String buildStreamDetailsURL(URI baseUri, CheckResult checkResult, Stream stream) {
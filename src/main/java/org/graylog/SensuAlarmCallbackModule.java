@@ -3,6 +3,8 @@ package org.graylog;
 import org.graylog2.plugin.PluginConfigBean;
 import org.graylog2.plugin.PluginModule;
 
+import com.google.inject.Scopes;
+
 import java.util.Collections;
 import java.util.Set;
 
@@ -11,11 +13,15 @@ public class SensuAlarmCallbackModule extends PluginModule {
 
 	@Override
     public Set<? extends PluginConfigBean> getConfigBeans() {
-        return Collections.emptySet();
+        return Collections.singleton(new SensuPluginConfiguration());
     }
 
     @Override
     protected void configure() {       
     	addAlarmCallback(SensuAlarmCallback.class);
+    	bind(SensuMetricsRegistration.class).asEagerSingleton();
+    	addConfigBeans();
+    	bind(SensuPublisherService.class).in(Scopes.SINGLETON);
+    	addInitializer(SensuPublisherService.class);
     }
 }
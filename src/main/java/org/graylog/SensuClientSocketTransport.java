@@ -0,0 +1,258 @@
+package org.graylog;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Hands results to the socket of a local Sensu client, which forwards them
+ * to the Sensu server over its own transport. Over TCP one channel is kept
+ * open and every result waits for the client to answer "ok". Over UDP
+ * results are fire and forget, a datagram that does not fit into the socket
+ * buffer is dropped instead of blocking the caller. Instances are shared by
+ * every callback that uses the same socket, see
+ * {@link #forClient(String, int, Protocol)}.
+ */
+public class SensuClientSocketTransport implements SensuTransport {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuClientSocketTransport.class);
+
+	public static final String DEFAULT_HOST = "localhost";
+	public static final int DEFAULT_PORT = 3030;
+
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+	private static final long CONNECT_TIMEOUT_MILLIS = 1000;
+	private static final long REPLY_TIMEOUT_MILLIS = 1000;
+	private static final String OK = "ok";
+	private static final String INVALID = "invalid";
+
+	private static final ConcurrentMap<String, SensuClientSocketTransport> TRANSPORTS = new ConcurrentHashMap<>();
+
+	public enum Protocol {
+		TCP, UDP;
+
+		public static Protocol fromString(String protocol) {
+			if (protocol == null || protocol.trim().isEmpty()) {
+				return TCP;
+			}
+			return valueOf(protocol.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final Protocol protocol;
+	private final ByteBuffer reply = ByteBuffer.allocate(16);
+	private SocketChannel tcpChannel;
+	private Selector selector;
+	private DatagramChannel udpChannel;
+
+	@VisibleForTesting
+	SensuClientSocketTransport(String host, int port, Protocol protocol) {
+		this.host = host;
+		this.port = port;
+		this.protocol = protocol;
+	}
+
+	public static SensuClientSocketTransport forClient(String host, int port, Protocol protocol) {
+		String key = host + '\0' + port + '\0' + protocol;
+		SensuClientSocketTransport transport = TRANSPORTS.get(key);
+		if (transport == null) {
+			SensuClientSocketTransport created = new SensuClientSocketTransport(host, port, protocol);
+			transport = TRANSPORTS.putIfAbsent(key, created);
+			if (transport == null) {
+				transport = created;
+			}
+		}
+		return transport;
+	}
+
+	@Override
+	public Format getFormat() {
+		return Format.CHECK;
+	}
+
+	@Override
+	public synchronized void send(byte[] result) throws IOException {
+		try {
+			if (protocol == Protocol.UDP) {
+				sendDatagram(result);
+			} else {
+				sendTcp(result);
+			}
+		} catch (IOException e) {
+			close();
+			SensuMetrics.shared().getFailed().mark();
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized void sendBatch(List<byte[]> results) throws IOException {
+		for (byte[] result : results) {
+			send(result);
+		}
+	}
+
+	@Override
+	public boolean spool(byte[] result) {
+		return false;
+	}
+
+	/**
+	 * Closes the sockets of every shared transport.
+	 */
+	public static void closeAll() {
+		for (SensuClientSocketTransport transport : TRANSPORTS.values()) {
+			transport.close();
+		}
+	}
+
+	public synchronized void close() {
+		closeQuietly(tcpChannel);
+		closeQuietly(selector);
+		closeQuietly(udpChannel);
+		tcpChannel = null;
+		selector = null;
+		udpChannel = null;
+	}
+
+	private void sendDatagram(byte[] result) throws IOException {
+		if (result.length > MAX_DATAGRAM_SIZE) {
+			throw new IOException("Result of " + result.length + " bytes does not fit into a UDP datagram");
+		}
+		if (udpChannel == null) {
+			udpChannel = DatagramChannel.open();
+			udpChannel.configureBlocking(false);
+			udpChannel.connect(new InetSocketAddress(host, port));
+		}
+		if (udpChannel.write(ByteBuffer.wrap(result)) == 0) {
+			SensuMetrics.shared().getDropped().mark();
+			LOG.debug("Dropped Sensu result, the UDP socket buffer is full");
+			return;
+		}
+		SensuMetrics.shared().getPublished().mark();
+	}
+
+	private void sendTcp(byte[] result) throws IOException {
+		boolean reused = tcpChannel != null && !peerClosed();
+		if (!reused) {
+			connect();
+		}
+		long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MILLIS;
+		try {
+			write(result, deadline);
+		} catch (IOException e) {
+			if (!reused) {
+				throw e;
+			}
+			// the client may have closed the idle connection just now
+			LOG.debug("Sensu client socket went away, reconnecting", e);
+			connect();
+			deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MILLIS;
+			write(result, deadline);
+		}
+		// once written the client may have taken the result, so it is not
+		// sent again if only the answer gets lost
+		awaitReply(deadline);
+		SensuMetrics.shared().getPublished().mark();
+	}
+
+	private void connect() throws IOException {
+		close();
+		tcpChannel = SocketChannel.open();
+		selector = Selector.open();
+		tcpChannel.configureBlocking(false);
+		tcpChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		tcpChannel.register(selector, 0);
+
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		if (!tcpChannel.connect(new InetSocketAddress(host, port))) {
+			while (!tcpChannel.finishConnect()) {
+				await(SelectionKey.OP_CONNECT, deadline);
+			}
+		}
+	}
+
+	private void write(byte[] result, long deadline) throws IOException {
+		ByteBuffer out = ByteBuffer.wrap(result);
+		while (out.hasRemaining()) {
+			if (tcpChannel.write(out) == 0) {
+				await(SelectionKey.OP_WRITE, deadline);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the client's answer to the result just written.
+	 */
+	private void awaitReply(long deadline) throws IOException {
+		reply.clear();
+		while (true) {
+			int read = tcpChannel.read(reply);
+			if (read < 0) {
+				throw new EOFException("Sensu client closed the connection without answering");
+			}
+			String answer = new String(reply.array(), 0, reply.position(), StandardCharsets.US_ASCII).trim();
+			if (OK.equals(answer)) {
+				return;
+			} else if (INVALID.equals(answer)) {
+				throw new IOException("Sensu client rejected the result as invalid");
+			} else if (!OK.startsWith(answer) && !INVALID.startsWith(answer) || !reply.hasRemaining()) {
+				throw new IOException("Unexpected answer from Sensu client: " + answer);
+			}
+			await(SelectionKey.OP_READ, deadline);
+		}
+	}
+
+	/**
+	 * Checks an idle connection before reusing it and discards anything
+	 * the client sent in the meantime.
+	 */
+	private boolean peerClosed() {
+		try {
+			reply.clear();
+			return tcpChannel.read(reply) < 0;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private void await(int operation, long deadline) throws IOException {
+		SelectionKey key = tcpChannel.keyFor(selector);
+		key.interestOps(operation);
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0 || selector.select(remaining) == 0) {
+			throw new SocketTimeoutException("Sensu client at " + host + ":" + port + " did not respond within "
+					+ (operation == SelectionKey.OP_CONNECT ? CONNECT_TIMEOUT_MILLIS : REPLY_TIMEOUT_MILLIS) + "ms");
+		}
+		selector.selectedKeys().clear();
+	}
+
+	private static void closeQuietly(AutoCloseable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (Exception e) {
+			// discarded either way
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package org.graylog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Posts results as events to the events API of a Sensu Go backend. Requests
+ * go out concurrently over a pool of keep-alive connections, bounded by the
+ * number of events in flight, so a batch costs about one round trip instead
+ * of one per result. Events the backend answers with 429 or a 5xx status, or
+ * that fail on the wire, are retried with backoff. Instances are shared by
+ * every callback that posts to the same backend, see
+ * {@link #forBackend(String, String, String, ScheduledExecutorService)}.
+ */
+public class SensuGoTransport implements SensuTransport {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuGoTransport.class);
+
+	public static final String DEFAULT_NAMESPACE = "default";
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+	public static final int DEFAULT_TIMEOUT = 10000;
+
+	@VisibleForTesting
+	static final int MAX_ATTEMPTS = 4;
+	private static final long RETRY_BACKOFF_MILLIS = 500;
+	private static final long MAX_RETRY_BACKOFF_MILLIS = 10000;
+	private static final long KEEP_ALIVE_MINUTES = 5;
+	private static final MediaType JSON = MediaType.parse("application/json");
+
+	private static final ConcurrentMap<String, SensuGoTransport> TRANSPORTS = new ConcurrentHashMap<>();
+
+	private final HttpUrl eventsUrl;
+	private final String namespace;
+	private final String authorization;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService retries;
+	private final Dispatcher dispatcher;
+	private final ConnectionPool connectionPool;
+	private volatile OkHttpClient client;
+	private volatile long timeoutMillis;
+	private volatile boolean closed;
+
+	@VisibleForTesting
+	SensuGoTransport(HttpUrl backend, String namespace, String apiKey, ScheduledExecutorService retries) {
+		this.namespace = namespace;
+		this.retries = retries;
+		// addPathSegments is not in the okhttp version Graylog ships
+		this.eventsUrl = backend.newBuilder().addPathSegment("api").addPathSegment("core").addPathSegment("v2")
+				.addPathSegment("namespaces").addPathSegment(namespace).addPathSegment("events").build();
+		this.authorization = apiKey == null || apiKey.trim().isEmpty() ? null : "Key " + apiKey.trim();
+		this.executor = Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setNameFormat("sensu-go-http-%d").setDaemon(true).build());
+		this.dispatcher = new Dispatcher(executor);
+		this.connectionPool = new ConnectionPool(DEFAULT_MAX_IN_FLIGHT, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+		configure(DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param retries schedules retried events, owned by {@link SensuPublisherService}
+	 * @throws IllegalArgumentException if the URL is not an http or https URL
+	 */
+	public static SensuGoTransport forBackend(String url, String namespace, String apiKey,
+			ScheduledExecutorService retries) {
+		HttpUrl backend = parseUrl(url);
+		String key = backend + "\0" + namespace + "\0" + apiKey;
+		SensuGoTransport transport = TRANSPORTS.get(key);
+		if (transport == null) {
+			SensuGoTransport created = new SensuGoTransport(backend, namespace, apiKey, retries);
+			transport = TRANSPORTS.putIfAbsent(key, created);
+			if (transport == null) {
+				transport = created;
+			}
+		}
+		return transport;
+	}
+
+	public static HttpUrl parseUrl(String url) {
+		HttpUrl backend = url == null ? null : HttpUrl.parse(url.trim());
+		if (backend == null) {
+			throw new IllegalArgumentException("Not an http or https URL: " + url);
+		}
+		return backend;
+	}
+
+	/**
+	 * Bounds the events posted at the same time and how long a single
+	 * attempt may take. Waiting callers give up after every attempt timed out.
+	 */
+	public synchronized void configure(int maxInFlight, long timeoutMillis) {
+		maxInFlight = Math.max(1, maxInFlight);
+		dispatcher.setMaxRequests(maxInFlight);
+		dispatcher.setMaxRequestsPerHost(maxInFlight);
+		this.timeoutMillis = Math.max(1, timeoutMillis);
+		this.client = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.connectionPool(connectionPool)
+				.connectTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS)
+				.readTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS)
+				.writeTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	/**
+	 * Stops the HTTP threads and closes idle connections of every shared
+	 * transport. Events sent afterwards fail.
+	 */
+	public static void closeAll() {
+		for (SensuGoTransport transport : TRANSPORTS.values()) {
+			transport.close();
+		}
+	}
+
+	@VisibleForTesting
+	void close() {
+		closed = true;
+		executor.shutdown();
+		connectionPool.evictAll();
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	@VisibleForTesting
+	HttpUrl getEventsUrl() {
+		return eventsUrl;
+	}
+
+	@Override
+	public Format getFormat() {
+		return Format.EVENT;
+	}
+
+	@Override
+	public void send(byte[] event) throws IOException, TimeoutException {
+		checkOpen();
+		await(Collections.singletonList(post(event)));
+	}
+
+	@Override
+	public void sendBatch(List<byte[]> events) throws IOException, TimeoutException {
+		checkOpen();
+		List<SettableFuture<Void>> posted = new ArrayList<>(events.size());
+		for (byte[] event : events) {
+			posted.add(post(event));
+		}
+		await(posted);
+	}
+
+	/**
+	 * The backend is the only place events are kept.
+	 */
+	@Override
+	public boolean spool(byte[] event) {
+		return false;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			SensuMetrics.shared().getFailed().mark();
+			throw new IOException("Sensu Go transport for " + eventsUrl + " is closed");
+		}
+	}
+
+	private SettableFuture<Void> post(byte[] event) {
+		Request.Builder request = new Request.Builder().url(eventsUrl).post(RequestBody.create(JSON, event));
+		if (authorization != null) {
+			request.header("Authorization", authorization);
+		}
+		SettableFuture<Void> result = SettableFuture.create();
+		enqueue(request.build(), result, 1);
+		return result;
+	}
+
+	private void enqueue(final Request request, final SettableFuture<Void> result, final int attempt) {
+		if (result.isDone()) {
+			// the caller gave up waiting
+			return;
+		}
+		if (closed) {
+			result.setException(new IOException("Sensu Go transport for " + eventsUrl + " is closed"));
+			return;
+		}
+		client.newCall(request).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				retry(request, result, attempt, e, 0);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) {
+				try {
+					if (response.isSuccessful()) {
+						result.set(null);
+						return;
+					}
+					IOException e = new IOException("Sensu Go backend answered " + response.code() + " "
+							+ response.message() + " for " + eventsUrl);
+					if (response.code() == 429 || response.code() >= 500) {
+						retry(request, result, attempt, e, retryAfterMillis(response.header("Retry-After")));
+					} else {
+						result.setException(e);
+					}
+				} finally {
+					response.body().close();
+				}
+			}
+		});
+	}
+
+	private void retry(final Request request, final SettableFuture<Void> result, final int attempt, IOException e,
+			long retryAfterMillis) {
+		if (attempt >= MAX_ATTEMPTS) {
+			result.setException(e);
+			return;
+		}
+		SensuMetrics.shared().getRetried().mark();
+		long delay = Math.min(MAX_RETRY_BACKOFF_MILLIS,
+				Math.max(retryAfterMillis, CircuitBreaker.backoffMillis(RETRY_BACKOFF_MILLIS, MAX_RETRY_BACKOFF_MILLIS, attempt - 1)));
+		LOG.debug("Posting Sensu Go event failed, attempt {} of {}, retrying in {}ms", attempt, MAX_ATTEMPTS, delay, e);
+		try {
+			retries.schedule(new Runnable() {
+				@Override
+				public void run() {
+					enqueue(request, result, attempt + 1);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException rejected) {
+			// the retry scheduler was shut down with the server
+			result.setException(e);
+		}
+	}
+
+	/**
+	 * Waits for every posted event and fails if one of them was not accepted.
+	 */
+	private void await(List<SettableFuture<Void>> posted) throws IOException, TimeoutException {
+		SensuMetrics metrics = SensuMetrics.shared();
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(MAX_ATTEMPTS * (timeoutMillis + MAX_RETRY_BACKOFF_MILLIS));
+		IOException failure = null;
+		int failed = 0;
+		try {
+			for (SettableFuture<Void> result : posted) {
+				try {
+					result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+					metrics.getPublished().mark();
+				} catch (ExecutionException e) {
+					metrics.getFailed().mark();
+					failed++;
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+								: new IOException(e.getCause());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(posted);
+			throw new InterruptedIOException("Interrupted while posting Sensu Go events");
+		} catch (TimeoutException e) {
+			cancel(posted);
+			throw new TimeoutException("Sensu Go backend at " + eventsUrl + " did not accept the events in time");
+		}
+		if (failure != null && posted.size() > 1) {
+			throw new IOException(failed + " of " + posted.size() + " Sensu Go events were not accepted", failure);
+		} else if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static void cancel(List<SettableFuture<Void>> posted) {
+		for (SettableFuture<Void> result : posted) {
+			if (result.cancel(false)) {
+				SensuMetrics.shared().getFailed().mark();
+			}
+		}
+	}
+
+	/**
+	 * Retry-After in seconds. The HTTP date form is not worth parsing here,
+	 * the regular backoff applies instead.
+	 */
+	@VisibleForTesting
+	static long retryAfterMillis(String retryAfter) {
+		if (retryAfter == null) {
+			return 0;
+		}
+		try {
+			return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
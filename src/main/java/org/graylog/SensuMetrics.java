@@ -0,0 +1,126 @@
+package org.graylog;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.Map;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of the rendering and publishing hot path. A single set is shared
+ * by all callbacks and connections and registered in the Graylog server's
+ * registry by {@link SensuMetricsRegistration}.
+ */
+public class SensuMetrics implements MetricSet {
+	private static final SensuMetrics SHARED = new SensuMetrics();
+
+	private final MetricRegistry registry = new MetricRegistry();
+
+	private final Timer renderTime = registry.timer(name(SensuAlarmCallback.class, "render-time"));
+	private final Timer serializeTime = registry.timer(name(SensuAlarmCallback.class, "serialize-time"));
+	private final Histogram payloadSize = registry.histogram(name(SensuAlarmCallback.class, "payload-size"));
+	private final Histogram backlogLength = registry.histogram(name(SensuAlarmCallback.class, "backlog-length"));
+
+	private final Timer acquireTime = registry.timer(name(RabbitMQConnection.class, "channel-acquire-time"));
+	private final Timer publishTime = registry.timer(name(RabbitMQConnection.class, "publish-time"));
+	private final Timer confirmTime = registry.timer(name(RabbitMQConnection.class, "confirm-time"));
+	private final Timer tlsHandshakeTime = registry.timer(name(RabbitMQConnection.class, "tls-handshake-time"));
+	private final Meter tlsSessionsResumed = registry.meter(name(RabbitMQConnection.class, "tls-sessions-resumed"));
+
+	private final Meter published = registry.meter(name(RabbitMQClient.class, "published"));
+	private final Meter failed = registry.meter(name(RabbitMQClient.class, "failed"));
+	private final Meter spooled = registry.meter(name(RabbitMQClient.class, "spooled"));
+	private final Meter retried = registry.meter(name(RabbitMQConnection.class, "retried"));
+	private final Meter rejected = registry.meter(name(RabbitMQConnection.class, "rejected"));
+	private final Meter dropped = registry.meter(name(SensuAlarmCallback.class, "dropped"));
+	private final Meter keepalives = registry.meter(name(KeepaliveEmitter.class, "keepalives"));
+
+	public static SensuMetrics shared() {
+		return SHARED;
+	}
+
+	@Override
+	public Map<String, Metric> getMetrics() {
+		return registry.getMetrics();
+	}
+
+	public Timer getRenderTime() {
+		return renderTime;
+	}
+
+	public Timer getSerializeTime() {
+		return serializeTime;
+	}
+
+	public Histogram getPayloadSize() {
+		return payloadSize;
+	}
+
+	public Histogram getBacklogLength() {
+		return backlogLength;
+	}
+
+	public Timer getAcquireTime() {
+		return acquireTime;
+	}
+
+	public Timer getPublishTime() {
+		return publishTime;
+	}
+
+	public Timer getConfirmTime() {
+		return confirmTime;
+	}
+
+	/**
+	 * Every TLS handshake with a broker, full or resumed.
+	 */
+	public Timer getTlsHandshakeTime() {
+		return tlsHandshakeTime;
+	}
+
+	public Meter getTlsSessionsResumed() {
+		return tlsSessionsResumed;
+	}
+
+	public Meter getPublished() {
+		return published;
+	}
+
+	public Meter getFailed() {
+		return failed;
+	}
+
+	public Meter getSpooled() {
+		return spooled;
+	}
+
+	public Meter getRetried() {
+		return retried;
+	}
+
+	/**
+	 * Publishes failed fast because the broker blocked publishers or the
+	 * circuit breaker was open.
+	 */
+	public Meter getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Results lost for good: dropped by the asynchronous queue or the spool,
+	 * or given up on after all retries without a spool to fall back to.
+	 */
+	public Meter getDropped() {
+		return dropped;
+	}
+
+	public Meter getKeepalives() {
+		return keepalives;
+	}
+}
@@ -0,0 +1,27 @@
+package org.graylog;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Registers the shared {@link SensuMetrics} in the Graylog server's metric
+ * registry, so they show up in the metrics API and JMX.
+ */
+@Singleton
+public class SensuMetricsRegistration {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuMetricsRegistration.class);
+
+	@Inject
+	public SensuMetricsRegistration(MetricRegistry metricRegistry) {
+		try {
+			metricRegistry.registerAll(SensuMetrics.shared());
+		} catch (IllegalArgumentException e) {
+			LOG.debug("Sensu metrics are already registered", e);
+		}
+	}
+}
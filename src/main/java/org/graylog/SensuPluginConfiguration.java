@@ -0,0 +1,48 @@
+package org.graylog;
+
+import java.io.File;
+
+import org.graylog2.plugin.PluginConfigBean;
+
+import com.github.joschi.jadconfig.Parameter;
+import com.github.joschi.jadconfig.ValidationException;
+import com.github.joschi.jadconfig.Validator;
+import com.github.joschi.jadconfig.validators.PositiveIntegerValidator;
+
+/**
+ * Server wide settings of the plugin, read from the Graylog server
+ * configuration file.
+ */
+public class SensuPluginConfiguration implements PluginConfigBean {
+	public static final String SHUTDOWN_TIMEOUT = "sensu_shutdown_timeout";
+	public static final String AUTO_RESOLVE_SNAPSHOT = "sensu_auto_resolve_snapshot";
+
+	/** Seconds to keep sending queued results when the server shuts down. */
+	@Parameter(value = SHUTDOWN_TIMEOUT, validator = PositiveIntegerValidator.class)
+	private int shutdownTimeout = SensuPublisherService.DEFAULT_SHUTDOWN_TIMEOUT;
+
+	/** Absolute path of the file keeping pending auto resolves across restarts, empty to disable. */
+	@Parameter(value = AUTO_RESOLVE_SNAPSHOT, validator = AbsolutePathValidator.class)
+	private String autoResolveSnapshot = "";
+
+	public int getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public String getAutoResolveSnapshot() {
+		return autoResolveSnapshot;
+	}
+
+	/**
+	 * Accepts an empty value or an absolute path, so the file does not
+	 * depend on the working directory of the server.
+	 */
+	public static class AbsolutePathValidator implements Validator<String> {
+		@Override
+		public void validate(String name, String value) throws ValidationException {
+			if (value != null && !value.trim().isEmpty() && !new File(value.trim()).isAbsolute()) {
+				throw new ValidationException("Parameter " + name + " must be an absolute path, was " + value);
+			}
+		}
+	}
+}
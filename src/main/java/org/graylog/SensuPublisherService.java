@@ -0,0 +1,181 @@
+package org.graylog;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.graylog2.alarmcallbacks.AlarmCallbackConfiguration;
+import org.graylog2.alarmcallbacks.AlarmCallbackConfigurationService;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Owns the publishing machinery shared by all callbacks: the asynchronous
+ * queue and its sender threads, the aggregator, the suppressor, the fan-out
+ * and retry threads, the broker and backend connections, the auto resolver
+ * and the keepalive emitter. It is a singleton injected into every callback
+ * and is started and stopped with the Graylog server. On shutdown, open
+ * aggregation windows are flushed and queued results are drained until the
+ * shutdown timeout has passed; whatever is left goes to the spool before
+ * connections are closed. Pending Sensu Go retries are dropped and counted.
+ */
+@Singleton
+public class SensuPublisherService extends AbstractIdleService {
+	private static final Logger LOG = LoggerFactory.getLogger(SensuPublisherService.class);
+
+	public static final int DEFAULT_SHUTDOWN_TIMEOUT = 10;
+
+	private final AsyncPublisher asyncPublisher = new AsyncPublisher();
+	private final AlertAggregator aggregator = new AlertAggregator();
+	private final AlertSuppressor suppressor = new AlertSuppressor(AlertSuppressor.DEFAULT_MAX_ENTRIES);
+	private final KeepaliveEmitter keepaliveEmitter = new KeepaliveEmitter();
+	private final ExecutorService fanOutExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("sensu-fan-out-%d").setDaemon(true).build());
+	private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("sensu-go-retry-%d").setDaemon(true).build());
+	private final AutoResolver autoResolver = new AutoResolver(new AutoResolver.ResolutionFactory() {
+		@Override
+		public AutoResolver.Resolution create(String streamId, String configurationId) throws Exception {
+			AlarmCallbackConfigurationService configurations = alarmCallbackConfigurations;
+			if (configurations == null) {
+				return null;
+			}
+			for (AlarmCallbackConfiguration stored : configurations.getForStreamId(streamId)) {
+				if (!SensuAlarmCallback.class.getCanonicalName().equals(stored.getType())) {
+					continue;
+				}
+				Configuration configuration = new Configuration(stored.getConfiguration());
+				if (configurationId.equals(AutoResolver.configurationId(configuration.getSource()))) {
+					SensuAlarmCallback callback = new SensuAlarmCallback(SensuPublisherService.this);
+					callback.initialize(configuration);
+					return callback.getResolution();
+				}
+			}
+			return null;
+		}
+	});
+	private volatile AlarmCallbackConfigurationService alarmCallbackConfigurations;
+	private volatile String autoResolveSnapshot = "";
+	private volatile long shutdownTimeoutMillis = TimeUnit.SECONDS.toMillis(DEFAULT_SHUTDOWN_TIMEOUT);
+
+	@Inject
+	public SensuPublisherService() {
+	}
+
+	@Inject
+	public void setShutdownTimeout(@Named(SensuPluginConfiguration.SHUTDOWN_TIMEOUT) int shutdownTimeoutSeconds) {
+		this.shutdownTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, shutdownTimeoutSeconds));
+	}
+
+	@Inject
+	public void setAutoResolveSnapshot(@Named(SensuPluginConfiguration.AUTO_RESOLVE_SNAPSHOT) String autoResolveSnapshot) {
+		this.autoResolveSnapshot = autoResolveSnapshot;
+	}
+
+	/**
+	 * Used to find the callbacks of auto resolves restored after a restart.
+	 */
+	@Inject
+	public void setAlarmCallbackConfigurations(AlarmCallbackConfigurationService alarmCallbackConfigurations) {
+		this.alarmCallbackConfigurations = alarmCallbackConfigurations;
+	}
+
+	public AsyncPublisher getAsyncPublisher() {
+		return asyncPublisher;
+	}
+
+	public AlertAggregator getAggregator() {
+		return aggregator;
+	}
+
+	public AlertSuppressor getSuppressor() {
+		return suppressor;
+	}
+
+	public AutoResolver getAutoResolver() {
+		return autoResolver;
+	}
+
+	public KeepaliveEmitter getKeepaliveEmitter() {
+		return keepaliveEmitter;
+	}
+
+	public ExecutorService getFanOutExecutor() {
+		return fanOutExecutor;
+	}
+
+	public ScheduledExecutorService getRetryScheduler() {
+		return retryScheduler;
+	}
+
+	@Override
+	protected void startUp() {
+		// connections are opened on first use
+		keepaliveEmitter.start();
+		if (autoResolveSnapshot != null && !autoResolveSnapshot.trim().isEmpty()) {
+			File snapshot = new File(autoResolveSnapshot.trim());
+			if (snapshot.isAbsolute()) {
+				autoResolver.restore(snapshot);
+			} else {
+				LOG.warn("Ignoring {} {}, it must be an absolute path", SensuPluginConfiguration.AUTO_RESOLVE_SNAPSHOT,
+						snapshot);
+			}
+		}
+	}
+
+	@Override
+	protected void shutDown() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + shutdownTimeoutMillis;
+
+		// flushing open windows publishes results that register auto resolves
+		// and keepalives, so those are closed after the aggregator
+		aggregator.close();
+		autoResolver.close();
+		keepaliveEmitter.close();
+		List<AsyncPublisher.PendingResult> leftovers = asyncPublisher.shutdown(remaining(deadline));
+		if (!leftovers.isEmpty()) {
+			int spooled = spool(leftovers);
+			LOG.warn("{} Sensu result(s) were not sent within the shutdown timeout, spooled {}, dropped {}",
+					leftovers.size(), spooled, leftovers.size() - spooled);
+		}
+
+		fanOutExecutor.shutdown();
+		List<Runnable> retries = retryScheduler.shutdownNow();
+		if (!retries.isEmpty()) {
+			SensuMetrics.shared().getDropped().mark(retries.size());
+			LOG.warn("{} pending Sensu Go retry(s) were dropped on shutdown", retries.size());
+		}
+		RabbitMQConnection.closeAll(remaining(deadline));
+		SensuGoTransport.closeAll();
+		SensuClientSocketTransport.closeAll();
+	}
+
+	private static int spool(List<AsyncPublisher.PendingResult> leftovers) {
+		SensuMetrics metrics = SensuMetrics.shared();
+		int spooled = 0;
+		for (AsyncPublisher.PendingResult pending : leftovers) {
+			if (pending.getTransport().spool(pending.getBody())) {
+				metrics.getSpooled().mark();
+				spooled++;
+			} else {
+				metrics.getDropped().mark();
+			}
+		}
+		return spooled;
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+}
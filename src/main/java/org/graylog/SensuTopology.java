@@ -0,0 +1,91 @@
+package org.graylog;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Declares (or passively verifies) the "keepalives" and "results" exchanges
+ * and queues Sensu expects, once per connection. The outcome is cached until
+ * the connection recovers or a channel is closed with a 404.
+ */
+public class SensuTopology {
+	public static final String KEEPALIVES = "keepalives";
+	public static final String RESULTS = "results";
+
+	public enum Mode {
+		DECLARE, PASSIVE, SKIP;
+
+		public static Mode fromString(String mode) {
+			if (mode == null || mode.isEmpty()) {
+				return DECLARE;
+			}
+			return valueOf(mode.toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private volatile Mode mode = Mode.DECLARE;
+	private volatile boolean declared;
+
+	public void setMode(Mode mode) {
+		if (this.mode != mode) {
+			this.mode = mode;
+			invalidate();
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public boolean isDeclared() {
+		return declared;
+	}
+
+	public void ensureDeclared(Channel channel) throws IOException {
+		if (declared || mode == Mode.SKIP) {
+			return;
+		}
+		synchronized (this) {
+			if (declared) {
+				return;
+			}
+			if (mode == Mode.PASSIVE) {
+				channel.exchangeDeclarePassive(KEEPALIVES);
+				channel.queueDeclarePassive(KEEPALIVES);
+				channel.exchangeDeclarePassive(RESULTS);
+				channel.queueDeclarePassive(RESULTS);
+			} else {
+				channel.exchangeDeclare(KEEPALIVES, "direct", false);
+				channel.queueDeclare(KEEPALIVES, false, false, true, null);
+				channel.queueBind(KEEPALIVES, KEEPALIVES, "");
+
+				channel.exchangeDeclare(RESULTS, "direct", false);
+				channel.queueDeclare(RESULTS, false, false, true, null);
+				channel.queueBind(RESULTS, RESULTS, "");
+			}
+			declared = true;
+		}
+	}
+
+	public void invalidate() {
+		declared = false;
+	}
+
+	/**
+	 * Forgets the cached topology when the broker closed a channel because an
+	 * exchange or queue did not exist (e.g. it was deleted behind our back).
+	 */
+	public void handleChannelShutdown(ShutdownSignalException cause) {
+		if (cause.isHardError() || cause.isInitiatedByApplication()) {
+			return;
+		}
+		if (cause.getReason() instanceof AMQP.Channel.Close
+				&& ((AMQP.Channel.Close) cause.getReason()).getReplyCode() == AMQP.NOT_FOUND) {
+			invalidate();
+		}
+	}
+}
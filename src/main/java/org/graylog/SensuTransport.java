@@ -0,0 +1,36 @@
+package org.graylog;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The way results leave the plugin. Implementations must be thread safe and
+ * equal when they deliver to the same destination, so queued results of
+ * different callbacks can be sent together.
+ */
+public interface SensuTransport {
+	enum Format {
+		/** A complete result with the client and check, as the Sensu server consumes it. */
+		RESULT,
+		/** Just the check, with the client name as its source, as a Sensu client accepts it. */
+		CHECK,
+		/** A Sensu Go event with a proxy entity, as the Sensu Go events API accepts it. */
+		EVENT
+	}
+
+	Format getFormat();
+
+	void send(byte[] result) throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException;
+
+	void sendBatch(List<byte[]> results) throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException;
+
+	/**
+	 * Keeps a result that was not sent for a later attempt.
+	 *
+	 * @return false if this transport has nowhere to keep it
+	 */
+	boolean spool(byte[] result);
+}
@@ -0,0 +1,113 @@
+package org.graylog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.graylog2.plugin.MessageSummary;
+
+/**
+ * Splits the backlog of an alert by message source so every source gets a
+ * Sensu result of its own, and publishes those results with a bounded number
+ * in flight.
+ */
+public class SourceFanOut {
+	public static final int DEFAULT_MAX_SOURCES = 20;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	/** Client of the result collecting the messages of sources over the limit. */
+	public static final String OVERFLOW_CLIENT = "graylog";
+
+	public interface Sender {
+		void send(byte[] sensuResult) throws Exception;
+	}
+
+	private SourceFanOut() {
+	}
+
+	/**
+	 * Groups messages by source in backlog order. Messages of sources beyond
+	 * the first {@code maxSources} are grouped under {@link #OVERFLOW_CLIENT}.
+	 */
+	public static Map<String, List<MessageSummary>> groupBySource(List<MessageSummary> messages, int maxSources) {
+		Map<String, List<MessageSummary>> groups = new LinkedHashMap<>();
+		List<MessageSummary> overflow = null;
+		for (MessageSummary message : messages) {
+			String source = message.getSource();
+			List<MessageSummary> group = groups.get(source);
+			if (group == null) {
+				if (maxSources > 0 && groups.size() >= maxSources) {
+					if (overflow == null) {
+						overflow = new ArrayList<>();
+					}
+					overflow.add(message);
+					continue;
+				}
+				group = new ArrayList<>();
+				groups.put(source, group);
+			}
+			group.add(message);
+		}
+		if (overflow != null) {
+			List<MessageSummary> group = groups.get(OVERFLOW_CLIENT);
+			if (group == null) {
+				groups.put(OVERFLOW_CLIENT, overflow);
+			} else {
+				group.addAll(overflow);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Sends every result on the executor, at most {@code maxInFlight} at a
+	 * time, and waits until all of them are done.
+	 *
+	 * @return the failures, empty if every result was sent
+	 */
+	public static List<Exception> sendAll(Executor executor, List<byte[]> sensuResults, int maxInFlight,
+			final Sender sender) throws InterruptedException {
+		final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+		if (maxInFlight <= 1 || sensuResults.size() <= 1) {
+			for (byte[] sensuResult : sensuResults) {
+				try {
+					sender.send(sensuResult);
+				} catch (Exception e) {
+					failures.add(e);
+				}
+			}
+			return failures;
+		}
+
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		for (final byte[] sensuResult : sensuResults) {
+			inFlight.acquire();
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sender.send(sensuResult);
+						} catch (Exception e) {
+							failures.add(e);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the executor was shut down with the server
+				failures.add(e);
+				inFlight.release();
+			}
+		}
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+		return failures;
+	}
+}
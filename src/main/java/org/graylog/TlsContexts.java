@@ -0,0 +1,271 @@
+package org.graylog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.rabbitmq.client.DefaultSocketConfigurator;
+import com.rabbitmq.client.SocketConfigurator;
+
+/**
+ * SSL contexts for broker connections, built once per set of stores and
+ * shared by every connection that uses them. Sharing the context shares its
+ * client session cache, so reconnecting to a broker resumes the previous TLS
+ * session instead of doing a full handshake. Contexts built with a truststore
+ * also check that the broker certificate matches the host connected to.
+ */
+public class TlsContexts {
+	private static final Logger LOG = LoggerFactory.getLogger(TlsContexts.class);
+
+	public static final String DEFAULT_PROTOCOL = "TLSv1.2";
+	private static final int SESSION_CACHE_SIZE = 100;
+	private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(24);
+
+	private static final ConcurrentMap<String, StoreContext> CONTEXTS = new ConcurrentHashMap<>();
+	private static final Set<SSLContext> VERIFYING = Collections.synchronizedSet(
+			Collections.newSetFromMap(new WeakHashMap<SSLContext, Boolean>()));
+	private static final AtomicBoolean TRUST_ALL_WARNED = new AtomicBoolean();
+
+	private static final X509TrustManager TRUST_ALL = new X509TrustManager() {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	};
+
+	private static final SocketConfigurator HANDSHAKE_METRICS = new SocketConfigurator() {
+		private final SocketConfigurator defaults = new DefaultSocketConfigurator();
+
+		@Override
+		public void configure(Socket socket) throws IOException {
+			defaults.configure(socket);
+			if (socket instanceof SSLSocket) {
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeTimer());
+			}
+		}
+	};
+
+	private static final SocketConfigurator VERIFY_HOST = new SocketConfigurator() {
+		@Override
+		public void configure(Socket socket) throws IOException {
+			HANDSHAKE_METRICS.configure(socket);
+			if (socket instanceof SSLSocket) {
+				SSLSocket sslSocket = (SSLSocket) socket;
+				SSLParameters parameters = sslSocket.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				sslSocket.setSSLParameters(parameters);
+			}
+		}
+	};
+
+	private TlsContexts() {
+	}
+
+	/**
+	 * Returns the context for the given stores, loading them on first use. A
+	 * store that changed on disk is loaded again and its context replaces the
+	 * previous one, so rotating certificates does not pile up contexts.
+	 * Without a truststore every broker certificate is accepted, as before
+	 * stores were configurable, which is logged once.
+	 *
+	 * @throws IOException if a store cannot be read or its password is wrong
+	 * @throws GeneralSecurityException if the protocol is not supported or a store is invalid
+	 */
+	public static SSLContext forStores(String protocol, String trustStore, String trustStorePassword, String keyStore,
+			String keyStorePassword) throws IOException, GeneralSecurityException {
+		if (Strings.isNullOrEmpty(trustStore) && TRUST_ALL_WARNED.compareAndSet(false, true)) {
+			LOG.warn("No truststore configured, RabbitMQ broker certificates are not verified");
+		}
+		return context(protocol, trustStore, trustStorePassword, keyStore, keyStorePassword);
+	}
+
+	private static SSLContext context(String protocol, String trustStore, String trustStorePassword, String keyStore,
+			String keyStorePassword) throws IOException, GeneralSecurityException {
+		protocol = Strings.isNullOrEmpty(protocol) ? DEFAULT_PROTOCOL : protocol.trim();
+		String key = protocol + '\0' + storeKey(trustStore, trustStorePassword) + '\0' + storeKey(keyStore, keyStorePassword);
+		long trustStoreModified = lastModified(trustStore);
+		long keyStoreModified = lastModified(keyStore);
+
+		StoreContext current = CONTEXTS.get(key);
+		if (current != null && current.trustStoreModified == trustStoreModified
+				&& current.keyStoreModified == keyStoreModified) {
+			return current.context;
+		}
+		SSLContext created = SSLContext.getInstance(protocol);
+		created.init(keyManagers(keyStore, keyStorePassword), trustManagers(trustStore, trustStorePassword), null);
+		enableSessionCache(created);
+		if (!Strings.isNullOrEmpty(trustStore)) {
+			VERIFYING.add(created);
+		}
+		StoreContext loaded = new StoreContext(created, trustStoreModified, keyStoreModified);
+		if (current == null ? CONTEXTS.putIfAbsent(key, loaded) != null : !CONTEXTS.replace(key, current, loaded)) {
+			// loaded by another thread at the same time, share its session cache
+			StoreContext other = CONTEXTS.get(key);
+			return other != null ? other.context : created;
+		}
+		return created;
+	}
+
+	@VisibleForTesting
+	static int getContextCount() {
+		return CONTEXTS.size();
+	}
+
+	/**
+	 * The context used until a callback configured its stores.
+	 */
+	public static SSLContext defaultContext() throws NoSuchAlgorithmException, KeyManagementException {
+		try {
+			return context(DEFAULT_PROTOCOL, null, null, null, null);
+		} catch (NoSuchAlgorithmException | KeyManagementException e) {
+			throw e;
+		} catch (IOException | GeneralSecurityException e) {
+			// no store is read
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Keeps amqp-client's socket defaults and times every TLS handshake.
+	 */
+	public static SocketConfigurator handshakeMetrics() {
+		return HANDSHAKE_METRICS;
+	}
+
+	/**
+	 * The socket configurator for connections using the given context: the
+	 * {@link #handshakeMetrics() handshake metrics}, plus host name
+	 * verification if the context was built with a truststore.
+	 */
+	public static SocketConfigurator socketConfigurator(SSLContext context) {
+		return VERIFYING.contains(context) ? VERIFY_HOST : HANDSHAKE_METRICS;
+	}
+
+	private static void enableSessionCache(SSLContext context) {
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+		}
+	}
+
+	private static KeyManager[] keyManagers(String path, String password) throws IOException, GeneralSecurityException {
+		if (Strings.isNullOrEmpty(path)) {
+			return null;
+		}
+		KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(load(path, password), toChars(password));
+		return factory.getKeyManagers();
+	}
+
+	private static TrustManager[] trustManagers(String path, String password) throws IOException, GeneralSecurityException {
+		if (Strings.isNullOrEmpty(path)) {
+			return new TrustManager[] { TRUST_ALL };
+		}
+		TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(load(path, password));
+		return factory.getTrustManagers();
+	}
+
+	private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+		String lowerCase = path.trim().toLowerCase(Locale.ROOT);
+		KeyStore store = KeyStore.getInstance(lowerCase.endsWith(".p12") || lowerCase.endsWith(".pfx") ? "PKCS12"
+				: KeyStore.getDefaultType());
+		try (InputStream in = new FileInputStream(path.trim())) {
+			store.load(in, toChars(password));
+		}
+		return store;
+	}
+
+	private static String storeKey(String path, String password) {
+		if (Strings.isNullOrEmpty(path)) {
+			return "";
+		}
+		return path.trim() + '\0' + Strings.nullToEmpty(password);
+	}
+
+	private static long lastModified(String path) {
+		return Strings.isNullOrEmpty(path) ? 0 : new File(path.trim()).lastModified();
+	}
+
+	private static char[] toChars(String password) {
+		return password == null ? null : password.toCharArray();
+	}
+
+	/**
+	 * A context and the modification times of the stores it was built from.
+	 */
+	private static class StoreContext {
+		private final SSLContext context;
+		private final long trustStoreModified;
+		private final long keyStoreModified;
+
+		private StoreContext(SSLContext context, long trustStoreModified, long keyStoreModified) {
+			this.context = context;
+			this.trustStoreModified = trustStoreModified;
+			this.keyStoreModified = keyStoreModified;
+		}
+	}
+
+	/**
+	 * Measures from the socket being set up, before it connects, so the time
+	 * includes the TCP connect, which is small next to a full handshake.
+	 */
+	private static class HandshakeTimer implements HandshakeCompletedListener {
+		private final long startedMillis = System.currentTimeMillis();
+		private final long started = System.nanoTime();
+
+		@Override
+		public void handshakeCompleted(HandshakeCompletedEvent event) {
+			SensuMetrics metrics = SensuMetrics.shared();
+			metrics.getTlsHandshakeTime().update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+			SSLSession session = event.getSession();
+			// a resumed session was created by an earlier connection
+			if (session.getCreationTime() < startedMillis) {
+				metrics.getTlsSessionsResumed().mark();
+			}
+			event.getSocket().removeHandshakeCompletedListener(this);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AlertAggregatorTest {
+	private AlertAggregator aggregator;
+	private List<AlertAggregator.Aggregate> emitted;
+	private AlertAggregator.Emitter emitter;
+
+	@Before
+	public void setUp() {
+		aggregator = new AlertAggregator();
+		emitted = new ArrayList<>();
+		emitter = new AlertAggregator.Emitter() {
+			@Override
+			public void emit(AlertAggregator.Aggregate aggregate) {
+				emitted.add(aggregate);
+			}
+		};
+	}
+
+	@Test
+	public void testRollsUpAlertsOfOneWindow() {
+		long now = 1000000L;
+		aggregator.add("client", alert("check-a", "stream a", 1, "disk full", "disk full"), 5000, now);
+		aggregator.add("client", alert("check-b", "stream b", 2, "disk full", "io error"), 5000, now + 1000);
+		aggregator.add("client", alert("check-a", "stream a", 0, "disk full"), 5000, now + 2000);
+
+		assertEquals(0, aggregator.flushDue(now + 4999));
+		assertEquals(1, aggregator.flushDue(now + 5000));
+
+		AlertAggregator.Aggregate aggregate = emitted.get(0);
+		assertEquals(3, aggregate.getAlertCount());
+		assertEquals(2, aggregate.getStatus());
+		assertEquals("check-b", aggregate.getCheckName());
+		assertEquals(Integer.valueOf(2), aggregate.getAlertsPerStream().get("stream a"));
+		assertEquals(Integer.valueOf(1), aggregate.getAlertsPerStream().get("stream b"));
+		assertEquals(Arrays.asList("disk full", "io error"), aggregate.getMessages());
+		assertTrue(aggregate.getSummary().startsWith("Aggregated 3 alert(s) from 2 stream(s) within 5 seconds.\n"));
+	}
+
+	@Test
+	public void testKeysAreAggregatedSeparately() {
+		long now = 1000000L;
+		aggregator.add("first", alert("check", "stream", 1), 5000, now);
+		aggregator.add("second", alert("check", "stream", 1), 5000, now);
+
+		assertEquals(2, aggregator.flushDue(now + 5000));
+		assertEquals(0, aggregator.flushDue(now + 10000));
+	}
+
+	@Test
+	public void testClosedAggregatorRejectsAlerts() {
+		aggregator.add("client", alert("check", "stream", 1), 5000, 1000000L);
+		aggregator.close();
+
+		assertEquals(1, emitted.size());
+		assertFalse(aggregator.add("client", alert("check", "stream", 1), 5000));
+		assertEquals(0, aggregator.flushDue(Long.MAX_VALUE));
+	}
+
+	private AlertAggregator.Alert alert(String check, String stream, int status, String... messages) {
+		return new AlertAggregator.Alert("client", check, "stream-id", stream, status, Arrays.asList(messages), emitter);
+	}
+}
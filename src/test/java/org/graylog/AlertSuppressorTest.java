@@ -0,0 +1,78 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AlertSuppressorTest {
+	private AlertSuppressor suppressor;
+
+	@Before
+	public void setUp() {
+		suppressor = new AlertSuppressor(100);
+	}
+
+	@Test
+	public void testRateLimitAllowsBurstThenRate() {
+		long now = 1000000L;
+
+		// 60 per minute, burst of 2
+		assertEquals(0, suppressor.tryAcquire("client", "check", 1, 60, 2, 0, now));
+		assertEquals(0, suppressor.tryAcquire("client", "check", 2, 60, 2, 0, now));
+		assertEquals(AlertSuppressor.SUPPRESSED, suppressor.tryAcquire("client", "check", 3, 60, 2, 0, now));
+		assertEquals(AlertSuppressor.SUPPRESSED, suppressor.tryAcquire("client", "check", 4, 60, 2, 0, now + 500));
+
+		assertEquals(2, suppressor.tryAcquire("client", "check", 5, 60, 2, 0, now + 1000));
+		assertEquals(0, suppressor.tryAcquire("other", "check", 6, 60, 2, 0, now + 1000));
+	}
+
+	@Test
+	public void testDeduplicatesWithinWindow() {
+		long now = 1000000L;
+
+		assertEquals(0, suppressor.tryAcquire("client", "check", 42, 0, 1, 10, now));
+		assertEquals(AlertSuppressor.SUPPRESSED, suppressor.tryAcquire("client", "check", 42, 0, 1, 10, now + 5000));
+		assertEquals(0, suppressor.tryAcquire("client", "other", 42, 0, 1, 10, now + 5000));
+		assertEquals(AlertSuppressor.SUPPRESSED, suppressor.tryAcquire("client", "check", 42, 0, 1, 10, now + 6000));
+
+		assertEquals(2, suppressor.tryAcquire("client", "check", 42, 0, 1, 10, now + 10001));
+		assertEquals(0, suppressor.tryAcquire("client", "check", 43, 0, 1, 10, now + 10001));
+	}
+
+	@Test
+	public void testRateLimitedAlertDoesNotStartDedupWindow() {
+		long now = 1000000L;
+
+		// 60 per minute, burst of 1, dedup for 10 seconds
+		assertEquals(0, suppressor.tryAcquire("client", "check", 1, 60, 1, 10, now));
+		assertEquals(AlertSuppressor.SUPPRESSED, suppressor.tryAcquire("client", "check", 2, 60, 1, 10, now + 100));
+
+		assertEquals(1, suppressor.tryAcquire("client", "check", 2, 60, 1, 10, now + 1000));
+		assertEquals(AlertSuppressor.SUPPRESSED, suppressor.tryAcquire("client", "check", 2, 60, 1, 10, now + 2000));
+	}
+
+	@Test
+	public void testSweepsExpiredEntries() {
+		long now = 1000000L;
+		suppressor.tryAcquire("client", "check", 42, 60, 1, 1, now);
+		assertEquals(1, suppressor.getTrackedChecks());
+		assertEquals(1, suppressor.getTrackedFingerprints());
+
+		suppressor.tryAcquire("other", "check", 43, 0, 1, 0, now + 60000);
+
+		assertEquals(1, suppressor.getTrackedChecks());
+		assertEquals(0, suppressor.getTrackedFingerprints());
+	}
+
+	@Test
+	public void testFailsOpenWhenFull() {
+		AlertSuppressor small = new AlertSuppressor(1);
+		long now = 1000000L;
+		small.tryAcquire("client", "check", 42, 60, 1, 60, now);
+
+		assertEquals(0, small.tryAcquire("other", "check", 42, 60, 1, 60, now));
+		assertEquals(0, small.tryAcquire("other", "check", 42, 60, 1, 60, now));
+		assertEquals(1, small.getTrackedChecks());
+	}
+}
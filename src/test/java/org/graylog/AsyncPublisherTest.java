@@ -0,0 +1,139 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncPublisherTest {
+	private static final byte[] FIRST = "first".getBytes();
+	private static final byte[] SECOND = "second".getBytes();
+	private static final byte[] THIRD = "third".getBytes();
+	private static final byte[] RESULT = "result".getBytes();
+
+	private AsyncPublisher publisher;
+	private RabbitMQClient client;
+
+	@Before
+	public void setUp() {
+		publisher = new AsyncPublisher();
+		client = mock(RabbitMQClient.class);
+	}
+
+	@Test
+	public void testDropOldestKeepsNewestResults() throws InterruptedException {
+		publisher.configure(2, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 0);
+
+		assertTrue(publisher.publish(client, FIRST));
+		assertTrue(publisher.publish(client, SECOND));
+		assertTrue(publisher.publish(client, THIRD));
+
+		assertEquals(1, publisher.getDropped());
+		assertEquals(3, publisher.getEnqueued());
+		assertSame(SECOND, publisher.take().getBody());
+		assertSame(THIRD, publisher.take().getBody());
+	}
+
+	@Test
+	public void testDropNewestRejectsResult() throws InterruptedException {
+		publisher.configure(1, AsyncPublisher.OverflowPolicy.DROP_NEWEST, 0, 0);
+
+		assertTrue(publisher.publish(client, FIRST));
+		assertFalse(publisher.publish(client, SECOND));
+
+		assertEquals(1, publisher.getDropped());
+		assertSame(FIRST, publisher.take().getBody());
+	}
+
+	@Test
+	public void testBlockGivesUpAfterTimeout() throws InterruptedException {
+		publisher.configure(1, AsyncPublisher.OverflowPolicy.BLOCK, 10, 0);
+
+		assertTrue(publisher.publish(client, FIRST));
+		long start = System.nanoTime();
+		assertFalse(publisher.publish(client, SECOND));
+
+		assertTrue(System.nanoTime() - start >= 10000000L);
+		assertEquals(1, publisher.getDropped());
+	}
+
+	@Test
+	public void testSenderThreadPublishesQueuedResults() throws Exception {
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 1);
+
+		publisher.publish(client, RESULT);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (publisher.getSent() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, publisher.getSent());
+		verify(client).send(RESULT);
+	}
+
+	@Test
+	public void testShutdownReturnsResultsNotSentInTime() throws Exception {
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 0);
+		publisher.publish(client, FIRST);
+		publisher.publish(client, SECOND);
+
+		List<AsyncPublisher.PendingResult> leftovers = publisher.shutdown(0);
+
+		assertEquals(2, leftovers.size());
+		assertSame(FIRST, leftovers.get(0).getBody());
+		assertSame(client, leftovers.get(1).getTransport());
+		assertEquals(0, publisher.getQueueSize());
+		assertNull(publisher.take());
+	}
+
+	@Test
+	public void testPublishAfterShutdownIsRejected() throws Exception {
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 1);
+		publisher.shutdown(1000);
+
+		assertFalse(publisher.publish(client, RESULT));
+
+		verifyZeroInteractions(client);
+		assertEquals(0, publisher.getEnqueued());
+		assertEquals(1, publisher.getDropped());
+	}
+
+	@Test
+	public void testTakeBatchCollectsUpToBatchSize() throws InterruptedException {
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 0);
+		publisher.configureBatching(2, 5);
+
+		publisher.publish(client, FIRST);
+		publisher.publish(client, SECOND);
+		publisher.publish(client, THIRD);
+
+		assertEquals(2, publisher.takeBatch().size());
+		assertEquals(1, publisher.takeBatch().size());
+		assertEquals(0, publisher.getQueueSize());
+	}
+
+	@Test
+	public void testBatchIsPublishedPerBroker() throws Exception {
+		RabbitMQClient sameBroker = new RabbitMQClient("user", "pass", "/sensu", "localhost", 5672, false);
+		RabbitMQClient sameBrokerAgain = new RabbitMQClient("user", "pass", "/sensu", "localhost", 5672, false);
+		assertEquals(sameBroker, sameBrokerAgain);
+
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 0);
+		publisher.configureBatching(10, 0);
+		publisher.publish(client, FIRST);
+		publisher.publish(client, SECOND);
+		publisher.publish(client, THIRD);
+
+		List<AsyncPublisher.PendingResult> batch = publisher.takeBatch();
+		publisher.send(batch);
+
+		verify(client).sendBatch(Arrays.asList(FIRST, SECOND, THIRD));
+		assertEquals(3, publisher.getSent());
+	}
+}
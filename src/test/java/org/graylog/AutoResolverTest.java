@@ -0,0 +1,148 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AutoResolverTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AutoResolver.ResolutionFactory factory;
+	private AutoResolver.Resolution resolution;
+	private AutoResolver resolver;
+	private Map<String, Object> configuration;
+
+	@Before
+	public void setUp() {
+		factory = mock(AutoResolver.ResolutionFactory.class);
+		resolution = mock(AutoResolver.Resolution.class);
+		resolver = new AutoResolver(factory);
+		configuration = new HashMap<>();
+		configuration.put("check_severity", "2");
+		configuration.put("rabbitmq_port", 5671);
+		configuration.put("rabbitmq_use_ssl", true);
+		configuration.put("rabbitmq_password", "s3cret");
+	}
+
+	@After
+	public void tearDown() {
+		resolver.close();
+	}
+
+	@Test
+	public void testResolvesAfterQuietPeriod() throws Exception {
+		long now = System.currentTimeMillis();
+		resolver.schedule(resolver.owner(configuration, resolution), "stream-1", "web-1", "errors", 60000);
+
+		assertEquals(0, resolver.advance(now + 30000));
+		verify(resolution, never()).resolve("web-1", "errors");
+		assertEquals(1, resolver.advance(now + 61000));
+		verify(resolution).resolve("web-1", "errors");
+		assertEquals(0, resolver.getActiveCount());
+	}
+
+	@Test
+	public void testRealertPushesBackDeadline() throws Exception {
+		long now = System.currentTimeMillis();
+		AutoResolver.Owner owner = resolver.owner(configuration, resolution);
+		resolver.schedule(owner, "stream-1", "web-1", "errors", 60000);
+		resolver.schedule(owner, "stream-1", "web-1", "errors", 120000);
+		resolver.schedule(owner, "stream-1", "web-2", "errors", 60000);
+
+		assertEquals(1, resolver.advance(now + 61000));
+		verify(resolution).resolve("web-2", "errors");
+		assertEquals(1, resolver.advance(now + 121000));
+		verify(resolution).resolve("web-1", "errors");
+	}
+
+	@Test
+	public void testCancelledEntriesAreNotResolved() throws Exception {
+		AutoResolver.Owner owner = resolver.owner(configuration, resolution);
+		resolver.schedule(owner, "stream-1", "web-1", "errors", 1000);
+		resolver.cancel(owner, "stream-1", "web-1", "errors");
+
+		assertEquals(0, resolver.advance(System.currentTimeMillis() + 2000));
+		verify(resolution, never()).resolve("web-1", "errors");
+		assertEquals(0, resolver.getOwnerCount());
+	}
+
+	@Test
+	public void testSnapshotRestoresDeadlinesAndOwners() throws Exception {
+		File snapshot = new File(folder.getRoot(), "auto-resolve.snapshot");
+		long now = System.currentTimeMillis();
+		resolver.restore(snapshot);
+		AutoResolver.Owner owner = resolver.owner(configuration, resolution);
+		resolver.schedule(owner, "stream-1", "web-1", "errors", 60000);
+		resolver.schedule(owner, "stream-1", "web-2", "errors", 60000);
+		resolver.close();
+
+		AutoResolver.Resolution restored = mock(AutoResolver.Resolution.class);
+		String snapshotText = new String(Files.readAllBytes(snapshot.toPath()), StandardCharsets.ISO_8859_1);
+		assertFalse(snapshotText.contains("s3cret"));
+		assertFalse(snapshotText.contains("rabbitmq_port"));
+
+		when(factory.create("stream-1", AutoResolver.configurationId(configuration))).thenReturn(restored);
+		AutoResolver next = new AutoResolver(factory);
+		try {
+			next.restore(snapshot);
+			assertEquals(2, next.getActiveCount());
+
+			assertEquals(2, next.advance(now + 61000));
+			verify(factory, times(1)).create("stream-1", AutoResolver.configurationId(configuration));
+			verify(restored).resolve("web-1", "errors");
+			verify(restored).resolve("web-2", "errors");
+			verify(resolution, never()).resolve("web-1", "errors");
+		} finally {
+			next.close();
+		}
+	}
+
+	@Test
+	public void testConfigurationIdIgnoresCredentials() {
+		String id = AutoResolver.configurationId(configuration);
+		Map<String, Object> changed = new HashMap<>(configuration);
+		changed.put("rabbitmq_password", "an0ther");
+		changed.put("sensu_go_api_key", "key");
+		assertEquals(id, AutoResolver.configurationId(changed));
+
+		changed.put("check_severity", "1");
+		assertNotEquals(id, AutoResolver.configurationId(changed));
+	}
+
+	@Test
+	public void testRestoredEntriesWithoutCallbackAreDropped() throws Exception {
+		File snapshot = new File(folder.getRoot(), "auto-resolve.snapshot");
+		long now = System.currentTimeMillis();
+		resolver.restore(snapshot);
+		resolver.schedule(resolver.owner(configuration, resolution), "stream-1", "web-1", "errors", 60000);
+		resolver.close();
+
+		AutoResolver next = new AutoResolver(factory);
+		try {
+			next.restore(snapshot);
+			assertEquals(0, next.advance(now + 61000));
+			verify(factory).create(anyString(), anyString());
+			assertEquals(0, next.getActiveCount());
+			assertEquals(0, next.getOwnerCount());
+		} finally {
+			next.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.graylog2.plugin.MessageSummary;
+import org.junit.Test;
+
+public class BacklogRendererTest {
+
+	@Test
+	public void testRendersFullBacklogWithinLimits() {
+		BacklogRenderer renderer = new BacklogRenderer(0, 0);
+
+		String output = renderer.render("summary\n", messages("first", "second"));
+
+		assertEquals("summary\nLast messages accounting for this alert: \nfirst\n\n\nsecond\n\n\n", output);
+	}
+
+	@Test
+	public void testRendersEmptyBacklog() {
+		BacklogRenderer renderer = new BacklogRenderer(0, 0);
+
+		String output = renderer.render("summary\n", Collections.<MessageSummary> emptyList());
+
+		assertEquals("summary\nLast messages accounting for this alert: \nNo message backlog available.\n", output);
+	}
+
+	@Test
+	public void testTruncatesLongMessages() {
+		BacklogRenderer renderer = new BacklogRenderer(0, 10);
+
+		String output = renderer.render("", messages("0123456789abcdef", "short"));
+
+		assertTrue(output.contains("0123456…\n\n\nshort\n\n\n"));
+	}
+
+	@Test
+	public void testOmitsMessagesBeyondOutputSize() {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			messages.addAll(messages("message number " + i));
+		}
+		BacklogRenderer renderer = new BacklogRenderer(500, 0);
+
+		String output = renderer.render("summary\n", messages);
+
+		assertTrue(output.getBytes(StandardCharsets.UTF_8).length <= 500);
+		assertTrue(output.contains("message number 0\n"));
+		assertTrue(output.matches("(?s).*… \\d+ more messages omitted\n$"));
+	}
+
+	@Test
+	public void testTruncateDoesNotSplitCharacters() {
+		String value = "éé😀😀";
+
+		assertEquals(2, BacklogRenderer.truncate(value, 8));
+		assertEquals(value.length(), BacklogRenderer.truncate(value, 12));
+		assertEquals(12, BacklogRenderer.utf8Length(value, 0, value.length()));
+	}
+
+	private List<MessageSummary> messages(String... texts) {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (String text : texts) {
+			MessageSummary message = mock(MessageSummary.class);
+			when(message.getMessage()).thenReturn(text);
+			messages.add(message);
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,107 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.graylog2.plugin.MessageSummary;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class BacklogSummarizerTest {
+
+	@Test
+	public void testCountsNearIdenticalMessagesTogether() {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			messages.add(message("host-" + (i % 3), "disk full on /dev/sda" + (i % 4) + " at " + i + "ms"));
+		}
+		messages.add(message("host-0", "kernel panic"));
+
+		String output = new BacklogSummarizer(5, 0, 0).summarize("summary\n", messages);
+
+		assertEquals("summary\nMost frequent of 1001 messages from 3 source(s): \n"
+				+ "1000x disk full on /dev/sda0 at 0ms\n1x kernel panic\n", output);
+	}
+
+	@Test
+	public void testMemoryIsBoundedByTopEntries() {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			messages.add(message("host", "frequent"));
+			messages.add(message("host", "rare " + Integer.toHexString(i).replaceAll("[0-9]", "x")));
+		}
+
+		String output = new BacklogSummarizer(2, 0, 0).summarize("", messages);
+
+		String[] lines = output.split("\n");
+		assertEquals(4, lines.length);
+		assertEquals("500x frequent", lines[1]);
+		assertTrue(lines[2], lines[2].startsWith("~"));
+		assertEquals("… and other messages", lines[3]);
+	}
+
+	@Test
+	public void testRanksHeavyHittersAmongEvictions() {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			messages.add(message("host", "rare " + Integer.toHexString(i).replaceAll("[0-9]", "x")));
+			if (i % 2 == 0) {
+				messages.add(message("host", "first"));
+			}
+			if (i % 3 == 0) {
+				messages.add(message("host", "second"));
+			}
+		}
+
+		String[] lines = new BacklogSummarizer(2, 0, 0).summarize("", messages).split("\n");
+
+		assertEquals("150x first", lines[1]);
+		assertEquals("100x second", lines[2]);
+	}
+
+	@Test
+	public void testLongMessagesAreCut() {
+		String output = new BacklogSummarizer(1, 0, 10).summarize("", Collections.singletonList(message("host", "0123456789abc")));
+
+		assertTrue(output, output.endsWith("\n1x 0123456…\n"));
+	}
+
+	@Test
+	public void testOutputIsLimited() {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			messages.add(message("host", Strings.repeat(String.valueOf((char) ('a' + i)), 100)));
+		}
+
+		String output = new BacklogSummarizer(10, 400, 0).summarize("", messages);
+
+		assertTrue(output.getBytes(StandardCharsets.UTF_8).length <= 400);
+		assertTrue(output, output.contains("\n1x ccc"));
+		assertTrue(output, output.endsWith("\n… 7 more distinct messages omitted\n"));
+	}
+
+	@Test
+	public void testEmptyBacklog() {
+		assertEquals("summary\nNo message backlog available.\n",
+				new BacklogSummarizer(5, 0, 0).summarize("summary\n", Collections.<MessageSummary>emptyList()));
+	}
+
+	@Test
+	public void testNormalize() {
+		assertEquals("took #ms on node-#", BacklogSummarizer.normalize("  took 1234ms\ton   node-07 "));
+	}
+
+	private static MessageSummary message(String source, String text) {
+		MessageSummary message = mock(MessageSummary.class);
+		when(message.getSource()).thenReturn(source);
+		when(message.getMessage()).thenReturn(text);
+		return message;
+	}
+}
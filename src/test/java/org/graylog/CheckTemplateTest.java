@@ -2,25 +2,21 @@ package org.graylog;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.junit.Before;
 import org.junit.Test;
 
-public class SensuResultFactoryTest {
-	private SensuResultFactory resultFactory;
-	
-	@Before
-	public void setUp() {
-		resultFactory = new SensuResultFactory();
-	}
-	
+public class CheckTemplateTest {
+
 	@Test
 	public void testCreateResultOneHandlerNoSubscribers() throws ParseException{
 		
-		String result = resultFactory.createResult("check_name", 1, "test_output", "handler", 123456789L, "client", "", "");
+		String result = createResult("check_name", 1, "test_output", "handler", 123456789L, "client", "", "");
 				
 		JSONObject json = (JSONObject) new JSONParser().parse(result);
 		
@@ -40,7 +36,7 @@ public class SensuResultFactoryTest {
 	
 	@Test
 	public void testCreateResultMultipleHandlersOneSubscriber() throws ParseException{
-		String result = resultFactory.createResult("check_name ", 1, " test_output ", " handler1, handler2", 123456789L, "client ", "subscriber", "tag1,tag2");
+		String result = createResult("check_name ", 1, " test_output ", " handler1, handler2", 123456789L, "client ", "subscriber", "tag1,tag2");
 		
 		JSONObject json = (JSONObject) new JSONParser().parse(result);
 		
@@ -65,7 +61,7 @@ public class SensuResultFactoryTest {
 	
 	@Test
 	public void testCreateResultMultipleSubscribers() throws ParseException{
-		String result = resultFactory.createResult("check_name ", 1, " test_output ", " handler1, handler2", 123456789L, "client ", "subscriber1, subscriber2", "");
+		String result = createResult("check_name ", 1, " test_output ", " handler1, handler2", 123456789L, "client ", "subscriber1, subscriber2", "");
 		
 		JSONObject json = (JSONObject) new JSONParser().parse(result);
 		
@@ -86,6 +82,38 @@ public class SensuResultFactoryTest {
 		assertEquals("client", json.get("client"));
 		
 	}
-}
 
-	
+	@Test
+	public void testOutputIsEscapedLikeJsonSimple() throws ParseException {
+		String output = "path /var/log \"quoted\" \\ tab\t\u0001 \u0085 \u2028 caf\u00e9 \u20ac \ud83d\ude00";
+		String result = createResult("check_name", 1, output, "handler", 123456789L, "client", "", "");
+
+		assertTrue(result.contains("\"output\":\"" + JSONValue.escape(output) + "\""));
+		JSONObject check = (JSONObject) ((JSONObject) new JSONParser().parse(result)).get("check");
+		assertEquals(output, check.get("output"));
+	}
+
+	@Test
+	public void testCreateResultBytesIsUtf8() {
+		String output = "caf\u00e9 \u20ac \ud83d\ude00";
+		String expected = createResult("check_name", 1, output, "handler", 123456789L, "client", "", "");
+
+		byte[] first = createResultBytes("check_name", 1, output, "handler", 123456789L, "client", "", "");
+		byte[] second = createResultBytes("check_name", 1, output, "handler", 123456789L, "client", "", "");
+
+		assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), first);
+		assertArrayEquals(first, second);
+	}
+
+	private static String createResult(String name, int status, String output, String handlers, long timestamp,
+			String client, String subscribers, String tags) {
+		JsonWriter writer = new JsonWriter();
+		new CheckTemplate(status, handlers, subscribers, tags).write(writer, name, output, timestamp, client);
+		return writer.toString();
+	}
+
+	private static byte[] createResultBytes(String name, int status, String output, String handlers, long timestamp,
+			String client, String subscribers, String tags) {
+		return new CheckTemplate(status, handlers, subscribers, tags).render(name, output, timestamp, client);
+	}
+}
@@ -0,0 +1,94 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	private final CircuitBreaker breaker = new CircuitBreaker(3, 1000, 8000);
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		assertTrue(breaker.allowRequest(0));
+
+		breaker.recordFailure(0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(0));
+	}
+
+	@Test
+	public void testSuccessResetsFailureCount() {
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		breaker.recordSuccess();
+		breaker.recordFailure(0);
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpenProbeClosesBreaker() {
+		open(0);
+
+		assertTrue(breaker.allowRequest(1000));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// only one probe at a time
+		assertFalse(breaker.allowRequest(1000));
+
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest(1000));
+	}
+
+	@Test
+	public void testFailedProbeBacksOffLonger() {
+		open(0);
+		assertTrue(breaker.allowRequest(1000));
+		breaker.recordFailure(1000);
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		// the second opening lasts between 1000 and 2000ms
+		assertFalse(breaker.allowRequest(1999));
+		assertTrue(breaker.allowRequest(3000));
+	}
+
+	@Test
+	public void testStuckProbeIsReplaced() {
+		open(0);
+		assertTrue(breaker.allowRequest(1000));
+
+		assertFalse(breaker.allowRequest(8999));
+		assertTrue(breaker.allowRequest(9000));
+	}
+
+	@Test
+	public void testDisabledBreakerNeverOpens() {
+		breaker.configure(0, 1000, 8000);
+		for (int i = 0; i < 10; i++) {
+			breaker.recordFailure(0);
+		}
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest(0));
+	}
+
+	@Test
+	public void testBackoffIsJitteredAndCapped() {
+		for (int attempt = 0; attempt < 40; attempt++) {
+			long expected = Math.min(8000, 1000L << Math.min(attempt, 30));
+			long backoff = CircuitBreaker.backoffMillis(1000, 8000, attempt);
+			assertTrue(backoff >= expected / 2);
+			assertTrue(backoff <= expected);
+		}
+	}
+
+	private void open(long now) {
+		for (int i = 0; i < 3; i++) {
+			breaker.recordFailure(now);
+		}
+		// the first opening lasts between 500 and 1000ms
+		assertFalse(breaker.allowRequest(now + 499));
+	}
+}
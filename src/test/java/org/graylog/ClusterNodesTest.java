@@ -0,0 +1,78 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+
+public class ClusterNodesTest {
+	private static final Address NODE1 = new Address("node1", 5671);
+	private static final Address NODE2 = new Address("node2", 5673);
+	private static final Address NODE3 = new Address("node3", 5671);
+
+	@Test
+	public void testParsesHostListWithDefaultPort() {
+		ClusterNodes nodes = ClusterNodes.parse("node1, node2:5673 ,node3", 5671);
+
+		assertEquals(Arrays.asList(NODE1, NODE2, NODE3), nodes.getAddresses());
+	}
+
+	@Test
+	public void testParsesSingleHost() {
+		assertEquals(Arrays.asList(NODE1), ClusterNodes.parse("node1", 5671).getAddresses());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsInvalidPort() {
+		ClusterNodes.parse("node1:amqp", 5671);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsEmptyList() {
+		ClusterNodes.parse(" , ", 5671);
+	}
+
+	@Test
+	public void testFailedNodeIsTriedLastUntilCoolDownPassed() {
+		ClusterNodes nodes = new ClusterNodes(Arrays.asList(NODE1, NODE2, NODE3));
+		nodes.setCoolDownMillis(1000);
+		nodes.markDown(NODE2, 0);
+		nodes.markDown(NODE1, 100);
+
+		List<Address> order = nodes.connectOrder(500);
+		assertEquals(NODE3, order.get(0));
+		assertEquals(Arrays.asList(NODE2, NODE1), order.subList(1, 3));
+
+		assertEquals(NODE1, nodes.connectOrder(1050).get(2));
+		assertEquals(new HashSet<>(Arrays.asList(NODE1, NODE2, NODE3)), new HashSet<>(nodes.connectOrder(1100)));
+	}
+
+	@Test
+	public void testMarkUpEndsCoolDown() {
+		ClusterNodes nodes = new ClusterNodes(Arrays.asList(NODE1, NODE2));
+		nodes.markDown(NODE1, 0);
+		nodes.markUp(NODE1);
+
+		boolean node1First = false;
+		for (int i = 0; i < 100 && !node1First; i++) {
+			node1First = nodes.connectOrder(1).get(0).equals(NODE1);
+		}
+		assertTrue(node1First);
+	}
+
+	@Test
+	public void testHealthyNodesAreSpread() {
+		ClusterNodes nodes = new ClusterNodes(Arrays.asList(NODE1, NODE2, NODE3));
+
+		HashSet<Address> first = new HashSet<>();
+		for (int i = 0; i < 200; i++) {
+			first.add(nodes.connectOrder(0).get(0));
+		}
+		assertEquals(3, first.size());
+	}
+}
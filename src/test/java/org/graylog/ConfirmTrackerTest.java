@@ -0,0 +1,89 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfirmTrackerTest {
+	private List<ConfirmTracker.PendingConfirm> republished;
+	private ConfirmTracker tracker;
+
+	@Before
+	public void setUp() {
+		republished = new ArrayList<>();
+		tracker = new ConfirmTracker(new ConfirmTracker.Republisher() {
+			@Override
+			public void republish(ConfirmTracker.PendingConfirm pending) {
+				republished.add(pending);
+			}
+		});
+	}
+
+	@Test
+	public void testMultipleAckSettlesAllLowerTags() {
+		for (long tag = 1; tag <= 5; tag++) {
+			tracker.track(tag, new byte[] { (byte) tag }, 1);
+		}
+
+		tracker.handleAck(3, true);
+		assertEquals(2, tracker.getOutstanding());
+
+		tracker.handleAck(5, false);
+		assertEquals(1, tracker.getOutstanding());
+		assertTrue(republished.isEmpty());
+	}
+
+	@Test
+	public void testNackRepublishes() {
+		tracker.track(1, new byte[] { 1 }, 1);
+		tracker.track(2, new byte[] { 2 }, 1);
+		tracker.track(3, new byte[] { 3 }, 2);
+
+		tracker.handleNack(2, true);
+
+		assertEquals(1, tracker.getOutstanding());
+		assertEquals(2, republished.size());
+		assertEquals(1, republished.get(0).getBody()[0]);
+		assertEquals(2, republished.get(1).getBody()[0]);
+	}
+
+	@Test
+	public void testExpireRepublishesTimedOutPublishes() throws InterruptedException {
+		tracker.track(1, new byte[] { 1 }, 1);
+		Thread.sleep(20);
+		tracker.track(2, new byte[] { 2 }, 1);
+
+		tracker.expire(10);
+
+		assertEquals(1, tracker.getOutstanding());
+		assertEquals(1, republished.size());
+		assertEquals(1, republished.get(0).getBody()[0]);
+	}
+
+	@Test
+	public void testFailAllRepublishesEverything() {
+		tracker.track(1, new byte[] { 1 }, 1);
+		tracker.track(2, new byte[] { 2 }, 1);
+
+		tracker.failAll();
+
+		assertEquals(0, tracker.getOutstanding());
+		assertEquals(2, republished.size());
+	}
+
+	@Test
+	public void testAwaitSettled() throws InterruptedException {
+		tracker.track(1, new byte[] { 1 }, 1);
+		tracker.track(2, new byte[] { 2 }, 1);
+
+		assertFalse(tracker.awaitSettled(2, 10));
+
+		tracker.handleAck(2, true);
+		assertTrue(tracker.awaitSettled(2, 10));
+		assertTrue(tracker.awaitCapacity(1, 10));
+	}
+}
@@ -0,0 +1,71 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class KeepaliveEmitterTest {
+
+	@Test
+	public void testSendsKeepalivesPerBrokerInBatches() throws Exception {
+		RabbitMQClient first = mock(RabbitMQClient.class);
+		RabbitMQClient second = mock(RabbitMQClient.class);
+		KeepaliveEmitter emitter = new KeepaliveEmitter(1000, new Random(1));
+		for (int i = 0; i < 150; i++) {
+			emitter.track(first, "host-" + i, 20, 3600);
+		}
+		emitter.track(second, " web-1 ", 20, 3600);
+
+		long now = System.currentTimeMillis();
+		assertEquals(151, emitter.emit(now + 20000));
+		assertEquals(0, emitter.emit(now + 20000));
+
+		@SuppressWarnings("unchecked")
+		ArgumentCaptor<List<byte[]>> batches = ArgumentCaptor.forClass((Class<List<byte[]>>) (Class<?>) List.class);
+		verify(first, times(2)).sendKeepalives(batches.capture());
+		assertEquals(100, batches.getAllValues().get(0).size());
+		assertEquals(50, batches.getAllValues().get(1).size());
+		verify(second).sendKeepalives(batches.capture());
+		JSONObject keepalive = (JSONObject) new JSONParser().parse(
+				new String(batches.getValue().get(0), StandardCharsets.UTF_8));
+		assertEquals("web-1", keepalive.get("name"));
+		assertEquals((now + 20000) / 1000, keepalive.get("timestamp"));
+	}
+
+	@Test
+	public void testSpreadsKeepalivesOverTheInterval() {
+		RabbitMQClient transport = mock(RabbitMQClient.class);
+		KeepaliveEmitter emitter = new KeepaliveEmitter(10000, new Random(1));
+		for (int i = 0; i < 1000; i++) {
+			emitter.track(transport, "host-" + i, 100, 3600);
+		}
+
+		int sent = emitter.emit(System.currentTimeMillis() + 10000);
+
+		assertTrue(String.valueOf(sent), sent > 50 && sent < 150);
+	}
+
+	@Test
+	public void testForgetsExpiredAndLeastRecentlyUsedClients() {
+		RabbitMQClient transport = mock(RabbitMQClient.class);
+		KeepaliveEmitter emitter = new KeepaliveEmitter(2, new Random(1));
+		emitter.track(transport, "a", 20, 60);
+		emitter.track(transport, "b", 20, 3600);
+		emitter.track(transport, "a", 20, 60);
+		emitter.track(transport, "c", 20, 3600);
+		assertEquals(2, emitter.getTrackedCount());
+
+		assertEquals(1, emitter.emit(System.currentTimeMillis() + 61000));
+		assertEquals(1, emitter.getTrackedCount());
+	}
+}
@@ -0,0 +1,90 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.graylog2.plugin.MessageSummary;
+import org.graylog2.plugin.alarms.AlertCondition.CheckResult;
+import org.graylog2.plugin.streams.Stream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutputTemplateTest {
+	private OutputTemplate.Context context;
+
+	@Before
+	public void setUp() {
+		Stream stream = mock(Stream.class);
+		when(stream.getTitle()).thenReturn("errors");
+		CheckResult result = mock(CheckResult.class);
+		when(result.getResultDescription()).thenReturn("3 messages");
+		context = new OutputTemplate.Context(stream, result, "graylog_errors", "web-1", 2, 3, null);
+	}
+
+	@Test
+	public void testRendersAlertAndMessageFields() {
+		OutputTemplate template = OutputTemplate.compile(
+				"${stream.title}: ${result.description} on ${alert.client} (${alert.suppressed} suppressed)\n"
+						+ "${messages}[${source}] ${message} ${fields.level}\n${end}-- ${alert.message_count} total",
+				0, 0);
+
+		String output = template.render(context, messages("first", "second"));
+
+		assertEquals("errors: 3 messages on web-1 (2 suppressed)\n[host-0] first 3\n[host-1] second 3\n-- 3 total", output);
+		assertFalse(template.usesStreamUrl());
+	}
+
+	@Test
+	public void testEscapesAndMissingValues() {
+		OutputTemplate template = OutputTemplate.compile("$$${stream.url} costs $5${stream.description}", 0, 0);
+
+		assertEquals("$ costs $5", template.render(context, Collections.<MessageSummary>emptyList()));
+		assertTrue(template.usesStreamUrl());
+	}
+
+	@Test
+	public void testRejectsInvalidTemplates() {
+		for (String invalid : new String[] { "${stream.name}", "${message}", "${messages}${message}", "${end}",
+				"${stream.title", "${messages}${end}${messages}${end}" }) {
+			try {
+				OutputTemplate.compile(invalid, 0, 0);
+				fail("expected " + invalid + " to be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testAppliesSizeLimits() {
+		OutputTemplate template = OutputTemplate.compile("alert\n${messages}${message}\n${end}", 70, 10);
+		List<MessageSummary> messages = messages("éééééééééé", "short");
+		for (int i = 0; i < 10; i++) {
+			messages.add(messages.get(1));
+		}
+
+		String output = template.render(context, messages);
+
+		assertTrue(output, output.startsWith("alert\nééé…\nshort\nshort\n"));
+		assertTrue(output, output.endsWith(" more messages omitted\n"));
+		assertTrue(output.getBytes(StandardCharsets.UTF_8).length <= 70);
+	}
+
+	private List<MessageSummary> messages(String... texts) {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (int i = 0; i < texts.length; i++) {
+			MessageSummary message = mock(MessageSummary.class);
+			when(message.getMessage()).thenReturn(texts[i]);
+			when(message.getSource()).thenReturn("host-" + i);
+			when(message.getField("level")).thenReturn(3);
+			messages.add(message);
+		}
+		return messages;
+	}
+}
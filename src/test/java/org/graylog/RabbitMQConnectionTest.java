@@ -0,0 +1,356 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class RabbitMQConnectionTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ConnectionFactory factory;
+	private Connection amqpConnection;
+	private RabbitMQConnection connection;
+
+	@Before
+	public void setUp() throws IOException, TimeoutException {
+		factory = mock(ConnectionFactory.class);
+		amqpConnection = mock(Connection.class);
+		when(factory.newConnection(any(Address[].class))).thenReturn(amqpConnection);
+		when(amqpConnection.isOpen()).thenReturn(true);
+		when(amqpConnection.createChannel()).thenAnswer(invocation -> openChannel());
+
+		connection = new RabbitMQConnection("test", factory);
+	}
+
+	@Test
+	public void testConnectionIsReusedAcrossSends() throws IOException, TimeoutException {
+		for (int i = 0; i < 5; i++) {
+			connection.returnChannel(connection.borrowChannel());
+		}
+
+		verify(factory, times(1)).newConnection(any(Address[].class));
+		verify(amqpConnection, times(1)).createChannel();
+		assertEquals(1, connection.getOpenChannels());
+		assertEquals(1, connection.getIdleChannels());
+	}
+
+	@Test
+	public void testPoolGrowsUpToConfiguredSize() throws IOException, TimeoutException {
+		connection.configure(new RabbitMQSettings().setChannelPoolSize(2));
+
+		Channel first = connection.borrowChannel();
+		Channel second = connection.borrowChannel();
+		assertNotSame(first, second);
+		assertEquals(2, connection.getOpenChannels());
+
+		connection.returnChannel(first);
+		assertSame(first, connection.borrowChannel());
+		verify(amqpConnection, times(2)).createChannel();
+	}
+
+	@Test
+	public void testInvalidatedChannelIsNotReused() throws IOException, TimeoutException {
+		Channel channel = connection.borrowChannel();
+		connection.invalidateChannel(channel);
+
+		verify(channel).close();
+		assertEquals(0, connection.getOpenChannels());
+		assertNotSame(channel, connection.borrowChannel());
+	}
+
+	@Test
+	public void testIdleChannelsAreEvicted() throws IOException, TimeoutException, InterruptedException {
+		connection.configure(new RabbitMQSettings().setChannelIdleTimeout(0));
+		Channel channel = connection.borrowChannel();
+		connection.returnChannel(channel);
+		Thread.sleep(5);
+
+		connection.evictIdleChannels();
+
+		verify(channel).close();
+		assertEquals(0, connection.getIdleChannels());
+		assertEquals(0, connection.getOpenChannels());
+	}
+
+	@Test
+	public void testPublisherConfirmsTrackDeliveryTags() throws IOException, TimeoutException {
+		connection.configure(new RabbitMQSettings().setPublisherConfirms(true));
+		Channel channel = connection.borrowChannel();
+		when(channel.getNextPublishSeqNo()).thenReturn(7L);
+		connection.returnChannel(channel);
+
+		connection.publish("result".getBytes());
+
+		verify(channel).confirmSelect();
+		ConfirmTracker tracker = connection.getConfirmTracker(channel);
+		assertEquals(1, tracker.getOutstanding());
+
+		tracker.handleAck(7, false);
+		assertEquals(0, tracker.getOutstanding());
+	}
+
+	@Test
+	public void testBatchIsPublishedOnOneChannel() throws IOException, TimeoutException {
+		connection.publishBatch(Arrays.asList("first".getBytes(), "second".getBytes(), "third".getBytes()));
+
+		verify(amqpConnection, times(1)).createChannel();
+		assertEquals(1, connection.getIdleChannels());
+	}
+
+	@Test
+	public void testFailedBatchReportsWrittenBodies() throws IOException, TimeoutException {
+		Channel channel = connection.borrowChannel();
+		Mockito.doNothing().doThrow(new IOException("channel closed")).when(channel)
+				.basicPublish(Mockito.anyString(), Mockito.anyString(), Mockito.any(), Mockito.any(byte[].class));
+		connection.returnChannel(channel);
+
+		try {
+			connection.publishBatch(Arrays.asList("first".getBytes(), "second".getBytes(), "third".getBytes()));
+			fail("the batch must fail");
+		} catch (RabbitMQConnection.PartialBatchException e) {
+			assertEquals(1, e.getWritten());
+		}
+		verify(channel).close();
+	}
+
+	@Test
+	public void testNoNodesFailsWithIOException() throws TimeoutException {
+		RabbitMQConnection empty = new RabbitMQConnection("empty", factory,
+				new ClusterNodes(Collections.<Address>emptyList()));
+		try {
+			empty.borrowChannel();
+			fail("connecting without nodes must fail");
+		} catch (IOException e) {
+			assertEquals("no RabbitMQ nodes configured", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testOpenCircuitBreakerFailsFast() throws IOException, TimeoutException {
+		ConnectionFactory unreachable = mock(ConnectionFactory.class);
+		when(unreachable.newConnection(any(Address[].class))).thenThrow(new IOException("connect timed out"));
+		RabbitMQConnection down = new RabbitMQConnection("down", unreachable);
+		down.configure(new RabbitMQSettings().setBreakerThreshold(2).setBreakerBackoff(60000));
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				down.publish("result".getBytes());
+				fail("publish to an unreachable broker must fail");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+
+		verify(unreachable, times(2)).newConnection(any(Address[].class));
+		assertEquals(CircuitBreaker.State.OPEN, down.getCircuitBreaker().getState());
+	}
+
+	@Test
+	public void testChannelWaitDoesNotOpenCircuitBreaker() throws IOException, TimeoutException {
+		connection.configure(new RabbitMQSettings().setChannelPoolSize(1).setPublishTimeout(1)
+				.setBreakerThreshold(1).setBreakerBackoff(60000));
+		Channel busy = connection.borrowChannel();
+
+		try {
+			connection.publish("result".getBytes());
+			fail("publish must time out while the pool is exhausted");
+		} catch (RabbitMQConnection.ChannelWaitTimeoutException e) {
+			// expected
+		}
+
+		assertEquals(CircuitBreaker.State.CLOSED, connection.getCircuitBreaker().getState());
+		connection.returnChannel(busy);
+		connection.publish("result".getBytes());
+	}
+
+	@Test
+	public void testBlockedConnectionFailsFast() throws IOException, TimeoutException {
+		connection.publish("first".getBytes());
+		ArgumentCaptor<BlockedListener> listener = ArgumentCaptor.forClass(BlockedListener.class);
+		verify(amqpConnection).addBlockedListener(listener.capture());
+
+		listener.getValue().handleBlocked("low on memory");
+		try {
+			connection.publish("second".getBytes());
+			fail("publish must fail while the broker blocks publishers");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("low on memory"));
+		}
+
+		listener.getValue().handleUnblocked();
+		connection.publish("third".getBytes());
+		verify(amqpConnection, times(1)).createChannel();
+	}
+
+	@Test
+	public void testFailedNodeIsSkipped() throws IOException, TimeoutException {
+		Address node1 = new Address("node1", 5672);
+		Address node2 = new Address("node2", 5672);
+		ConnectionFactory cluster = mock(ConnectionFactory.class);
+		AtomicInteger node1Attempts = new AtomicInteger();
+		when(cluster.newConnection(aryEq(new Address[] { node1 }))).thenAnswer(invocation -> {
+			node1Attempts.incrementAndGet();
+			throw new IOException("connection refused");
+		});
+		when(cluster.newConnection(aryEq(new Address[] { node2 }))).thenReturn(amqpConnection);
+		ClusterNodes nodes = new ClusterNodes(Arrays.asList(node1, node2));
+		RabbitMQConnection clustered = new RabbitMQConnection("cluster", cluster, nodes);
+
+		for (int i = 0; i < 5; i++) {
+			clustered.publish("result".getBytes());
+		}
+
+		verify(cluster, times(1)).newConnection(aryEq(new Address[] { node2 }));
+		// node1 is only tried when the shuffle put it first, and then not again
+		assertTrue(node1Attempts.get() <= 1);
+		if (node1Attempts.get() == 1) {
+			assertEquals(node2, nodes.connectOrder().get(0));
+		}
+	}
+
+	@Test
+	public void testLostConnectionMovesToOtherNode() throws IOException, TimeoutException {
+		Address node1 = new Address("node1", 5672);
+		Address node2 = new Address("node2", 5672);
+		Connection first = mock(Connection.class);
+		Connection second = mock(Connection.class);
+		Channel firstChannel = openChannel();
+		when(first.isOpen()).thenReturn(true);
+		when(first.createChannel()).thenReturn(firstChannel);
+		when(second.isOpen()).thenReturn(true);
+		when(second.createChannel()).thenAnswer(invocation -> openChannel());
+		ConnectionFactory cluster = mock(ConnectionFactory.class);
+		when(cluster.newConnection(aryEq(new Address[] { node1 }))).thenReturn(first);
+		when(cluster.newConnection(aryEq(new Address[] { node2 }))).thenReturn(second);
+		ClusterNodes nodes = new ClusterNodes(Arrays.asList(node1, node2));
+		// start on node1
+		nodes.markDown(node2);
+		RabbitMQConnection clustered = new RabbitMQConnection("cluster", cluster, nodes);
+		clustered.publish("first".getBytes());
+		nodes.markUp(node2);
+
+		ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+		verify(first).addShutdownListener(listener.capture());
+		when(first.isOpen()).thenReturn(false);
+		when(firstChannel.isOpen()).thenReturn(false);
+		listener.getValue().shutdownCompleted(new ShutdownSignalException(true, false, null, first));
+		clustered.publish("second".getBytes());
+
+		verify(cluster, times(1)).newConnection(aryEq(new Address[] { node2 }));
+		verify(second, times(1)).createChannel();
+	}
+
+	@Test
+	public void testCloseSpoolsUnconfirmedResults() throws Exception {
+		File spoolDirectory = folder.newFolder("spool");
+		connection.configure(new RabbitMQSettings().setPublisherConfirms(true)
+				.setSpoolDirectory(spoolDirectory.getPath()));
+		connection.publish("unconfirmed".getBytes());
+
+		connection.close(50);
+
+		verify(amqpConnection).close(any(Integer.class));
+		try {
+			connection.publish("late".getBytes());
+			fail("expected a closed connection to refuse results");
+		} catch (IOException e) {
+			assertFalse(connection.spool("late".getBytes()));
+		}
+		final List<String> spooled = new ArrayList<>();
+		ResultSpool spool = new ResultSpool(new File(spoolDirectory, "test"), 1024 * 1024, 3600000);
+		spool.replay(new ResultSpool.Sink() {
+			@Override
+			public void replay(byte[] body) {
+				spooled.add(new String(body));
+			}
+		});
+		spool.close();
+		assertEquals(Arrays.asList("unconfirmed"), spooled);
+	}
+
+	@Test
+	public void testConflictingSpoolSettingsKeepTheOpenSpool() throws Exception {
+		File spoolDirectory = folder.newFolder("spool");
+		connection.configure(new RabbitMQSettings().setSpoolDirectory(spoolDirectory.getPath()));
+		assertTrue(connection.spool("first".getBytes()));
+
+		connection.configure(new RabbitMQSettings().setSpoolDirectory(folder.newFolder("other").getPath()));
+		assertTrue(connection.spool("second".getBytes()));
+		connection.configure(new RabbitMQSettings());
+		assertTrue(connection.spool("third".getBytes()));
+		connection.close(0);
+
+		final List<String> spooled = new ArrayList<>();
+		ResultSpool spool = new ResultSpool(new File(spoolDirectory, "test"), 1024 * 1024, 3600000);
+		spool.replay(new ResultSpool.Sink() {
+			@Override
+			public void replay(byte[] body) {
+				spooled.add(new String(body));
+			}
+		});
+		spool.close();
+		assertEquals(Arrays.asList("first", "second", "third"), spooled);
+	}
+
+	@Test
+	public void testSameBrokerSharesConnection() throws Exception {
+		RabbitMQConnection first = RabbitMQConnection.forBroker("user", "pass", "/sensu", "localhost", 5672, false,
+				new RabbitMQSettings());
+		RabbitMQConnection second = RabbitMQConnection.forBroker("user", "pass", "/sensu", "localhost", 5672, false,
+				new RabbitMQSettings().setChannelPoolSize(8));
+		RabbitMQConnection other = RabbitMQConnection.forBroker("user", "pass", "/sensu", "otherhost", 5672, false,
+				new RabbitMQSettings());
+
+		assertSame(first, second);
+		assertNotSame(first, other);
+	}
+
+	@Test
+	public void testConfirmAndSpoolSettingsGetOwnConnection() throws Exception {
+		RabbitMQConnection plain = RabbitMQConnection.forBroker("user", "pass", "/sensu", "localhost", 5672, false,
+				new RabbitMQSettings());
+		RabbitMQConnection confirming = RabbitMQConnection.forBroker("user", "pass", "/sensu", "localhost", 5672, false,
+				new RabbitMQSettings().setPublisherConfirms(true));
+		RabbitMQConnection spooling = RabbitMQConnection.forBroker("user", "pass", "/sensu", "localhost", 5672, false,
+				new RabbitMQSettings().setSpoolDirectory("/var/spool/sensu"));
+
+		assertNotSame(plain, confirming);
+		assertNotSame(plain, spooling);
+		assertNotSame(confirming, spooling);
+	}
+
+	private Channel openChannel() {
+		Channel channel = mock(Channel.class);
+		when(channel.isOpen()).thenReturn(true);
+		return channel;
+	}
+}
@@ -0,0 +1,203 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultSpoolTest {
+	private static final int SEGMENT_SIZE = 128;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private List<String> replayed;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("spool");
+		replayed = new ArrayList<>();
+	}
+
+	@Test
+	public void testReplaysInOrderAcrossSegments() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		for (int i = 0; i < 10; i++) {
+			spool.append(("result-" + i).getBytes());
+		}
+		assertTrue(spool.getSegmentCount() > 1);
+
+		assertEquals(10, spool.replay(collector(-1)));
+
+		assertEquals("result-0", replayed.get(0));
+		assertEquals("result-9", replayed.get(9));
+		assertTrue(spool.isEmpty());
+		assertEquals(1, spool.getSegmentCount());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void testReplayedSegmentIsReused() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append("first".getBytes());
+		String[] segments = directory.list();
+		assertEquals(1, spool.replay(collector(-1)));
+
+		for (int i = 0; i < 3; i++) {
+			spool.append(("result-" + i).getBytes());
+			assertEquals(1, spool.replay(collector(-1)));
+		}
+
+		assertArrayEquals(segments, directory.list());
+		assertEquals("result-2", replayed.get(replayed.size() - 1));
+	}
+
+	@Test
+	public void testReplayStopsAtFailureAndResumes() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append("first".getBytes());
+		spool.append("second".getBytes());
+		spool.append("third".getBytes());
+
+		assertEquals(1, spool.replay(collector(1)));
+		assertFalse(spool.isEmpty());
+
+		assertEquals(2, spool.replay(collector(-1)));
+		assertEquals("second", replayed.get(1));
+		assertEquals("third", replayed.get(2));
+	}
+
+	@Test
+	public void testRecoversUnreadResultsAfterRestart() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append("first".getBytes());
+		spool.append("second".getBytes());
+		spool.replay(collector(1));
+		spool.close();
+
+		replayed.clear();
+		ResultSpool recovered = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		recovered.append("third".getBytes());
+		recovered.replay(collector(-1));
+
+		assertEquals(2, replayed.size());
+		assertEquals("second", replayed.get(0));
+		assertEquals("third", replayed.get(1));
+	}
+
+	@Test
+	public void testSkipsRecordWithBadChecksum() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append("result".getBytes());
+		spool.close();
+
+		File segment = directory.listFiles()[0];
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(16 + 8);
+			raf.write('X');
+		}
+
+		ResultSpool recovered = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		assertEquals(0, recovered.replay(collector(-1)));
+		assertTrue(replayed.isEmpty());
+	}
+
+	@Test
+	public void testSkipsOnlyTheCorruptRecord() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append("first".getBytes());
+		spool.append("second".getBytes());
+		spool.append("third".getBytes());
+		spool.close();
+
+		File segment = directory.listFiles()[0];
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			// segment header, then the 8 byte header and body of "first"
+			raf.seek(16 + 8 + 5 + 8);
+			raf.write('X');
+		}
+
+		ResultSpool recovered = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		assertEquals(2, recovered.replay(collector(-1)));
+		assertEquals("first", replayed.get(0));
+		assertEquals("third", replayed.get(1));
+		assertEquals(1, recovered.getDroppedRecords());
+	}
+
+	@Test
+	public void testAppendDoesNotWaitForReplay() throws Exception {
+		final ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append("first".getBytes());
+		final Thread[] appender = new Thread[1];
+
+		spool.replay(body -> {
+			if (appender[0] != null) {
+				return;
+			}
+			appender[0] = new Thread(() -> {
+				try {
+					spool.append("second".getBytes());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			appender[0].start();
+			appender[0].join(5000);
+			assertFalse(appender[0].isAlive());
+		});
+
+		assertTrue(spool.isEmpty());
+	}
+
+	@Test
+	public void testDropsOldestSegmentWhenFull() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE, 3600000);
+		for (int i = 0; i < 20; i++) {
+			spool.append(("result-" + i).getBytes());
+		}
+
+		assertEquals(2, spool.getSegmentCount());
+		assertTrue(spool.getDroppedRecords() > 0);
+		spool.replay(collector(-1));
+		assertEquals("result-19", replayed.get(replayed.size() - 1));
+	}
+
+	@Test
+	public void testDropsResultsOlderThanRetention() throws IOException, InterruptedException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 1);
+		spool.append("old".getBytes());
+		Thread.sleep(10);
+
+		assertEquals(0, spool.replay(collector(-1)));
+		assertEquals(1, spool.getDroppedRecords());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsResultLargerThanSegment() throws IOException {
+		ResultSpool spool = new ResultSpool(directory, SEGMENT_SIZE, 1024 * 1024, 3600000);
+		spool.append(new byte[SEGMENT_SIZE]);
+	}
+
+	private ResultSpool.Sink collector(final int failAfter) {
+		return new ResultSpool.Sink() {
+			private int count;
+
+			@Override
+			public void replay(byte[] body) throws Exception {
+				if (failAfter >= 0 && count++ >= failAfter) {
+					throw new IOException("broker down");
+				}
+				replayed.add(new String(body));
+			}
+		};
+	}
+}
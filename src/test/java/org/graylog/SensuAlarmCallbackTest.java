@@ -10,11 +10,18 @@ import org.graylog2.plugin.alarms.callbacks.AlarmCallbackConfigurationException;
 import org.graylog2.plugin.alarms.callbacks.AlarmCallbackException;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationException;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
 import org.graylog2.plugin.streams.Stream;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import com.google.common.collect.ImmutableMap;
@@ -25,10 +32,13 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 public class SensuAlarmCallbackTest {
@@ -105,6 +115,14 @@ public class SensuAlarmCallbackTest {
 		alarmCallback.checkConfiguration();
 	}
 
+	@Test(expected = ConfigurationException.class)
+	public void testBacklogSummaryTopIsLimited() throws AlarmCallbackConfigurationException, ConfigurationException {
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("backlog_summary_top", BacklogSummarizer.MAX_TOP + 1);
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.checkConfiguration();
+	}
+
 	@Test
 	public void testGetName() {
 		assertEquals("Sensu Alarm Callback", alarmCallback.getName());
@@ -112,21 +130,19 @@ public class SensuAlarmCallbackTest {
 
 	@Test
 	public void testCall() throws AlarmCallbackConfigurationException, ConfigurationException, AlarmCallbackException,
-			KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException {
+			KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException, ParseException {
 		DateTime dateTime = new DateTime(2015, 11, 18, 12, 7, DateTimeZone.UTC);
 		
 		final RabbitMQClient client = mock(RabbitMQClient.class);
 		final Stream stream = mockStream();
 		final AlertCondition.CheckResult checkResult = mockCheckResult(dateTime);//mock(AlertCondition.CheckResult.class);
-		final SensuResultFactory resultFactory = mock(SensuResultFactory.class);
 		final AlertCondition alertcondition = mockAlertCondition();
 
 		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
 		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
 
 		alarmCallback.initialize(VALID_CONFIGURATION);
-		alarmCallback.setClient(client);
-		alarmCallback.setResultFactory(resultFactory);
+		alarmCallback.setTransport(client);
 		alarmCallback.checkConfiguration();
 		alarmCallback.call(stream, checkResult);
 
@@ -139,28 +155,33 @@ public class SensuAlarmCallbackTest {
 		
 		String output = title + description + time + streamURL + messageBacklog;
 		
-		verify(resultFactory).createResult(Mockito.eq("test_check_name"), Mockito.eq(2), Mockito.eq(output),
-				Mockito.eq("test_check_handler1,test_check_handler2"), Mockito.anyLong(), Mockito.eq("test_check_client"), Mockito.eq("test_check_subscribers"), Mockito.eq("test_check_tags"));
-
-		verify(client).send(Mockito.anyString());
+		JSONObject json = sentResult(client);
+		JSONObject check = (JSONObject) json.get("check");
+		assertEquals("test_check_client", json.get("client"));
+		assertEquals("test_check_name", check.get("name"));
+		assertEquals(2L, check.get("status"));
+		// the published output is trimmed, as it always was when the result was serialized
+		assertEquals(output.trim(), check.get("output"));
+		assertEquals("test_check_handler1", ((JSONArray) check.get("handlers")).get(0));
+		assertEquals("test_check_handler2", ((JSONArray) check.get("handlers")).get(1));
+		assertEquals("test_check_subscribers", ((JSONArray) check.get("subscribers")).get(0));
+		assertEquals("test_check_tags", ((JSONArray) check.get("tags")).get(0));
 	}
 
 	@Test
 	public void testCallDynamicCheck() throws AlarmCallbackConfigurationException, ConfigurationException, AlarmCallbackException,
-			KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException {
+			KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException, ParseException {
 		DateTime dateTime = new DateTime(2015, 11, 17, 12, 9, DateTimeZone.UTC);
 		
 		final RabbitMQClient client = mock(RabbitMQClient.class);
 		final Stream stream = mockStream();
 		final AlertCondition.CheckResult checkResult = mockCheckResult(dateTime);
-		final SensuResultFactory resultFactory = mock(SensuResultFactory.class);
 		final AlertCondition alertcondition = mockAlertCondition();
 
 		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
 
 		alarmCallback.initialize(VALID_CONFIGURATION_DYNAMIC_CHECK);
-		alarmCallback.setClient(client);
-		alarmCallback.setResultFactory(resultFactory);
+		alarmCallback.setTransport(client);
 		alarmCallback.checkConfiguration();
 		alarmCallback.call(stream, checkResult);
 
@@ -172,12 +193,429 @@ public class SensuAlarmCallbackTest {
 		
 		String output = title + description + time + streamURL + messageBacklog;
 		
-		verify(resultFactory).createResult(Mockito.eq("Stream-title"), Mockito.eq(2), Mockito.eq(output),
-				Mockito.eq("test_check_handler1,test_check_handler2"), Mockito.anyLong(), Mockito.eq("test_source1"), Mockito.eq("test_check_subscribers"), Mockito.eq("test_check_tags"));
-		
-		verify(client).send(Mockito.anyString());
+		JSONObject json = sentResult(client);
+		JSONObject check = (JSONObject) json.get("check");
+		assertEquals("test_source1", json.get("client"));
+		assertEquals("Stream-title", check.get("name"));
+		assertEquals(2L, check.get("status"));
+		// the published output is trimmed, as it always was when the result was serialized
+		assertEquals(output.trim(), check.get("output"));
 	}
 	
+	@Test
+	public void testCallAsync() throws Exception {
+		DateTime dateTime = new DateTime(2015, 11, 18, 12, 7, DateTimeZone.UTC);
+
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		final AsyncPublisher asyncPublisher = mock(AsyncPublisher.class);
+		final Stream stream = mockStream();
+		final AlertCondition.CheckResult checkResult = mockCheckResult(dateTime);
+		final AlertCondition alertcondition = mockAlertCondition();
+
+		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
+		when(asyncPublisher.publish(Mockito.any(SensuTransport.class), Mockito.any(byte[].class))).thenReturn(true);
+
+		alarmCallback.initialize(VALID_CONFIGURATION);
+		alarmCallback.setTransport(client);
+		alarmCallback.setAsyncPublisher(asyncPublisher);
+		alarmCallback.call(stream, checkResult);
+
+		verify(asyncPublisher).publish(Mockito.eq(client), Mockito.any(byte[].class));
+		verify(client, Mockito.never()).send(Mockito.any(byte[].class));
+	}
+
+	@Test(expected = AlarmCallbackException.class)
+	public void testCallAsyncQueueFull() throws Exception {
+		DateTime dateTime = new DateTime(2015, 11, 18, 12, 7, DateTimeZone.UTC);
+
+		final AsyncPublisher asyncPublisher = mock(AsyncPublisher.class);
+		final AlertCondition.CheckResult checkResult = mockCheckResult(dateTime);
+		final AlertCondition alertcondition = mockAlertCondition();
+
+		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
+		when(asyncPublisher.publish(Mockito.any(SensuTransport.class), Mockito.any(byte[].class))).thenReturn(false);
+
+		alarmCallback.initialize(VALID_CONFIGURATION);
+		alarmCallback.setAsyncPublisher(asyncPublisher);
+		alarmCallback.call(mockStream(), checkResult);
+	}
+
+	@Test
+	public void testCallDropsRepeatedResults() throws Exception {
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		final AlertCondition.CheckResult checkResult = mockCheckResult(new DateTime(2015, 11, 18, 12, 7, DateTimeZone.UTC));
+		final AlertCondition alertcondition = mockAlertCondition();
+		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
+
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("dedup_window", 60);
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(client);
+		alarmCallback.setSuppressor(new AlertSuppressor(AlertSuppressor.DEFAULT_MAX_ENTRIES));
+		alarmCallback.call(mockStream(), checkResult);
+		alarmCallback.call(mockStream(), checkResult);
+
+		verify(client, Mockito.times(1)).send(Mockito.any(byte[].class));
+	}
+
+	@Test
+	public void testCallFansOutPerSource() throws Exception {
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		final AlertCondition.CheckResult checkResult = mockCheckResult(new DateTime(2015, 11, 18, 12, 7, DateTimeZone.UTC));
+		final AlertCondition alertcondition = mockAlertCondition();
+		when(checkResult.getTriggeredCondition()).thenReturn(alertcondition);
+
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("check_client", "[sources]");
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(client);
+		alarmCallback.call(mockStream(), checkResult);
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(client, Mockito.times(2)).send(body.capture());
+		List<String> clients = new ArrayList<>();
+		for (byte[] sensuResult : body.getAllValues()) {
+			JSONObject json = (JSONObject) new JSONParser().parse(new String(sensuResult, StandardCharsets.UTF_8));
+			clients.add((String) json.get("client"));
+			String output = (String) ((JSONObject) json.get("check")).get("output");
+			assertEquals(1, output.split("test_message").length - 1);
+		}
+		assertTrue(clients.contains("test_source1"));
+		assertTrue(clients.contains("test_source2"));
+	}
+
+	@Test(expected = AlarmCallbackConfigurationException.class)
+	public void testInitializeRejectsInvalidSeverity() throws AlarmCallbackConfigurationException {
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("check_severity", "critical");
+		alarmCallback.initialize(new Configuration(config));
+	}
+
+	@Test
+	public void testClientSocketTransportGetsCheckOnly() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+		SensuAlarmCallback alarmCallback = new SensuAlarmCallback();
+		alarmCallback.initialize(new Configuration(VALID_CONFIG));
+		alarmCallback.setTransport(transport);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(transport).send(body.capture());
+		JSONObject check = (JSONObject) new JSONParser().parse(new String(body.getValue(), StandardCharsets.UTF_8));
+		assertNull(check.get("client"));
+		assertEquals("test_check_name", check.get("name"));
+		assertEquals("test_check_client", check.get("source"));
+		assertEquals(2L, check.get("status"));
+	}
+
+	@Test
+	public void testSensuGoTransportGetsEvent() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.EVENT);
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("transport", "sensu_go");
+		config.put("sensu_go_url", "http://localhost:8080");
+		config.put("sensu_go_namespace", "ops");
+		SensuAlarmCallback alarmCallback = new SensuAlarmCallback();
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(transport);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(transport).send(body.capture());
+		JSONObject event = (JSONObject) new JSONParser().parse(new String(body.getValue(), StandardCharsets.UTF_8));
+		JSONObject entity = (JSONObject) event.get("entity");
+		assertEquals("proxy", entity.get("entity_class"));
+		assertEquals("test_check_client", ((JSONObject) entity.get("metadata")).get("name"));
+		JSONObject check = (JSONObject) event.get("check");
+		assertEquals("test_check_name", ((JSONObject) check.get("metadata")).get("name"));
+		assertEquals("ops", ((JSONObject) check.get("metadata")).get("namespace"));
+		assertEquals(2L, check.get("status"));
+	}
+
+	@Test
+	public void testOutputTemplateReplacesDefaultOutput() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("output_template", "${stream.title}: ${result.description}\n${messages}${source} ${message}\n${end}");
+		SensuAlarmCallback alarmCallback = new SensuAlarmCallback();
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(transport);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(transport).send(body.capture());
+		JSONObject check = (JSONObject) new JSONParser().parse(new String(body.getValue(), StandardCharsets.UTF_8));
+		assertEquals("Stream title: Result description\ntest_source1 test_message1\ntest_source2 test_message2",
+				check.get("output"));
+	}
+
+	@Test
+	public void testBacklogSummary() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("backlog_summary_top", 1);
+		SensuAlarmCallback alarmCallback = new SensuAlarmCallback();
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(transport);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(transport).send(body.capture());
+		JSONObject check = (JSONObject) new JSONParser().parse(new String(body.getValue(), StandardCharsets.UTF_8));
+		String output = (String) check.get("output");
+		assertTrue(output, output.contains("Most frequent of 2 messages from 2 source(s): \n2x test_message1"));
+	}
+
+	@Test
+	public void testAutoResolveSendsOkResult() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("auto_resolve_after", 60);
+		SensuPublisherService publisherService = new SensuPublisherService();
+		SensuAlarmCallback alarmCallback = new SensuAlarmCallback(publisherService);
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(transport);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+		assertEquals(1, publisherService.getAutoResolver().getActiveCount());
+		alarmCallback.getResolution().resolve("test_check_client", "test_check_name");
+
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(transport, Mockito.times(2)).send(body.capture());
+		JSONObject check = (JSONObject) new JSONParser().parse(new String(body.getValue(), StandardCharsets.UTF_8));
+		assertEquals(0L, check.get("status"));
+		assertEquals("test_check_name", check.get("name"));
+		publisherService.getAutoResolver().close();
+	}
+
+	@Test
+	public void testKeepalivesTrackPublishedRabbitMQClients() throws Exception {
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		KeepaliveEmitter emitter = new KeepaliveEmitter();
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("check_client", "[source]");
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(client);
+		alarmCallback.setKeepaliveEmitter(emitter);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		assertEquals(1, emitter.getTrackedCount());
+		emitter.close();
+	}
+
+	@Test
+	public void testKeepalivesIgnoreConfiguredClients() throws Exception {
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		KeepaliveEmitter emitter = new KeepaliveEmitter();
+		alarmCallback.initialize(new Configuration(VALID_CONFIG));
+		alarmCallback.setTransport(client);
+		alarmCallback.setKeepaliveEmitter(emitter);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		verify(client).send(Mockito.any(byte[].class));
+		assertEquals(0, emitter.getTrackedCount());
+		emitter.close();
+	}
+
+	@Test
+	public void testKeepalivesTrackOnlyTheEmittedAggregateClient() throws Exception {
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		KeepaliveEmitter emitter = new KeepaliveEmitter();
+		AlertAggregator aggregator = new AlertAggregator();
+		for (String checkClient : new String[] { "[source]", "[sources]" }) {
+			Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+			config.put("check_client", checkClient);
+			config.put("aggregation_window", 60);
+			config.put("aggregation_key", "all");
+			SensuAlarmCallback alarmCallback = new SensuAlarmCallback();
+			alarmCallback.initialize(new Configuration(config));
+			alarmCallback.setTransport(client);
+			alarmCallback.setAggregator(aggregator);
+			alarmCallback.setKeepaliveEmitter(emitter);
+			alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+		}
+		assertEquals(0, emitter.getTrackedCount());
+
+		aggregator.close();
+		verify(client).send(Mockito.any(byte[].class));
+		assertEquals(1, emitter.getTrackedCount());
+		emitter.close();
+	}
+
+	@Test
+	public void testKeepalivesAreIgnoredByOtherTransports() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+		KeepaliveEmitter emitter = new KeepaliveEmitter();
+		alarmCallback.initialize(new Configuration(VALID_CONFIG));
+		alarmCallback.setTransport(transport);
+		alarmCallback.setKeepaliveEmitter(emitter);
+
+		alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+
+		verify(transport).send(Mockito.any(byte[].class));
+		assertEquals(0, emitter.getTrackedCount());
+		emitter.close();
+	}
+
+	@Test
+	public void testAsyncSettingsOfLastInitializedCallbackWin() throws Exception {
+		SensuPublisherService publisherService = new SensuPublisherService();
+		Map<String, Object> first = new HashMap<>(VALID_CONFIG);
+		first.put("async_enabled", true);
+		first.put("async_queue_size", 10);
+		first.put("async_overflow_policy", "block");
+		Map<String, Object> second = new HashMap<>(first);
+		second.put("async_queue_size", 20);
+		second.put("async_overflow_policy", "drop_newest");
+
+		try {
+			new SensuAlarmCallback(publisherService).initialize(new Configuration(first));
+			new SensuAlarmCallback(publisherService).initialize(new Configuration(second));
+
+			AsyncPublisher publisher = publisherService.getAsyncPublisher();
+			assertEquals(20, publisher.getCapacity());
+			assertEquals(AsyncPublisher.OverflowPolicy.DROP_NEWEST, publisher.getOverflowPolicy());
+
+			new SensuAlarmCallback(publisherService).initialize(new Configuration(first));
+			assertEquals(10, publisher.getCapacity());
+			assertEquals(AsyncPublisher.OverflowPolicy.BLOCK, publisher.getOverflowPolicy());
+		} finally {
+			publisherService.getAsyncPublisher().shutdown(0);
+		}
+	}
+
+	@Test
+	public void testFailedPublishDoesNotScheduleResolve() throws Exception {
+		SensuTransport transport = mock(SensuTransport.class);
+		when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+		Mockito.doThrow(new IOException("broker down")).when(transport).send(Mockito.any(byte[].class));
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("auto_resolve_after", 60);
+		SensuPublisherService publisherService = new SensuPublisherService();
+		SensuAlarmCallback alarmCallback = new SensuAlarmCallback(publisherService);
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.setTransport(transport);
+
+		try {
+			alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+			fail("publish should have failed");
+		} catch (AlarmCallbackException expected) {
+			assertEquals(0, publisherService.getAutoResolver().getActiveCount());
+		} finally {
+			publisherService.getAutoResolver().close();
+		}
+	}
+
+	@Test
+	public void testAggregatedAlertsResolveOnlyTheEmittedClient() throws Exception {
+		final RabbitMQClient client = mock(RabbitMQClient.class);
+		SensuPublisherService publisherService = new SensuPublisherService();
+		try {
+			for (String checkClient : new String[] { "first_client", "second_client" }) {
+				Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+				config.put("check_client", checkClient);
+				config.put("aggregation_window", 60);
+				config.put("aggregation_key", "all");
+				config.put("auto_resolve_after", 60);
+				SensuAlarmCallback alarmCallback = new SensuAlarmCallback(publisherService);
+				alarmCallback.initialize(new Configuration(config));
+				alarmCallback.setTransport(client);
+				alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+			}
+			assertEquals(0, publisherService.getAutoResolver().getActiveCount());
+
+			publisherService.getAggregator().close();
+			assertEquals(1, publisherService.getAutoResolver().getActiveCount());
+			assertEquals(1, publisherService.getAutoResolver().advance(System.currentTimeMillis() + 120000));
+
+			ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+			verify(client, Mockito.times(2)).send(body.capture());
+			JSONObject aggregate = (JSONObject) new JSONParser().parse(new String(body.getAllValues().get(0), StandardCharsets.UTF_8));
+			JSONObject resolve = (JSONObject) new JSONParser().parse(new String(body.getAllValues().get(1), StandardCharsets.UTF_8));
+			assertEquals("first_client", aggregate.get("client"));
+			assertEquals(2L, ((JSONObject) aggregate.get("check")).get("status"));
+			assertEquals("first_client", resolve.get("client"));
+			assertEquals(0L, ((JSONObject) resolve.get("check")).get("status"));
+		} finally {
+			publisherService.getAutoResolver().close();
+		}
+	}
+
+	@Test
+	public void testAggregationKeepsDestinationsApart() throws Exception {
+		AlertAggregator aggregator = new AlertAggregator();
+		List<SensuTransport> transports = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			SensuTransport transport = mock(SensuTransport.class);
+			when(transport.getFormat()).thenReturn(SensuTransport.Format.CHECK);
+			transports.add(transport);
+			Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+			config.put("check_client", "graylog");
+			config.put("aggregation_window", 60);
+			SensuAlarmCallback alarmCallback = new SensuAlarmCallback();
+			alarmCallback.initialize(new Configuration(config));
+			alarmCallback.setTransport(transport);
+			alarmCallback.setAggregator(aggregator);
+			alarmCallback.call(mockStream(), mockCheckResult(new DateTime(DateTimeZone.UTC)));
+		}
+
+		aggregator.close();
+		for (SensuTransport transport : transports) {
+			verify(transport).send(Mockito.any(byte[].class));
+		}
+	}
+
+	@Test(expected = AlarmCallbackConfigurationException.class)
+	public void testOutputTemplateMustBeValid() throws Exception {
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("output_template", "${messages}${message}");
+		new SensuAlarmCallback().initialize(new Configuration(config));
+	}
+
+	@Test(expected = AlarmCallbackConfigurationException.class)
+	public void testSensuGoTransportNeedsValidUrl() throws Exception {
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("transport", "sensu_go");
+		config.put("sensu_go_url", "sensu.example.com:8080");
+		new SensuAlarmCallback().initialize(new Configuration(config));
+	}
+
+	@Test
+	public void testSensuGoTransportNeedsNoRabbitMQSettings() throws Exception {
+		Map<String, Object> config = new HashMap<>(VALID_CONFIG);
+		config.put("transport", "sensu_go");
+		config.put("sensu_go_url", "http://localhost:8080");
+		config.remove("rabbitmq_port");
+		config.remove("rabbitmq_user");
+		config.remove("rabbitmq_virtual_host");
+		alarmCallback.initialize(new Configuration(config));
+		alarmCallback.checkConfiguration();
+
+		ConfigurationRequest request = alarmCallback.getRequestedConfiguration();
+		assertEquals(ConfigurationField.Optional.OPTIONAL, request.getField("rabbitmq_port").isOptional());
+		assertEquals(ConfigurationField.Optional.OPTIONAL, request.getField("rabbitmq_user").isOptional());
+		assertEquals(ConfigurationField.Optional.OPTIONAL, request.getField("rabbitmq_virtual_host").isOptional());
+	}
+
+	private JSONObject sentResult(RabbitMQClient client)
+			throws KeyManagementException, NoSuchAlgorithmException, IOException, TimeoutException, ParseException {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		verify(client).send(body.capture());
+		return (JSONObject) new JSONParser().parse(new String(body.getValue(), StandardCharsets.UTF_8));
+	}
+
 	private AlertCondition mockAlertCondition() {
 		final String alertConditionId = "alertConditionId";
 		final AlertCondition alertCondition = mock(AlertCondition.class);
@@ -0,0 +1,160 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SensuClientSocketTransportTest {
+	private static final byte[] FIRST = "{\"name\":\"first\"}".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SECOND = "{\"name\":\"second\"}".getBytes(StandardCharsets.UTF_8);
+
+	private ServerSocket server;
+	private final List<String> received = new CopyOnWriteArrayList<>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile String answer = "ok";
+	private volatile boolean closeAfterAnswer;
+	private volatile boolean closeWithoutAnswer;
+	private SensuClientSocketTransport transport;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		transport = new SensuClientSocketTransport("127.0.0.1", server.getLocalPort(), SensuClientSocketTransport.Protocol.TCP);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		transport.close();
+		server.close();
+	}
+
+	@Test
+	public void testResultsShareOneConnection() throws IOException {
+		transport.send(FIRST);
+		transport.sendBatch(Arrays.asList(SECOND, FIRST));
+
+		assertEquals(Arrays.asList("{\"name\":\"first\"}", "{\"name\":\"second\"}", "{\"name\":\"first\"}"), received);
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void testReconnectsWhenClientClosedConnection() throws Exception {
+		closeAfterAnswer = true;
+		transport.send(FIRST);
+		Thread.sleep(50);
+		transport.send(SECOND);
+
+		assertEquals(2, received.size());
+		assertEquals(2, connections.get());
+	}
+
+	@Test
+	public void testResultIsNotSentAgainWhenAnswerIsLost() throws IOException {
+		transport.send(FIRST);
+		closeWithoutAnswer = true;
+		try {
+			transport.send(SECOND);
+			fail("a result without an answer must fail");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertEquals(Arrays.asList("{\"name\":\"first\"}", "{\"name\":\"second\"}"), received);
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void testInvalidResultFails() {
+		answer = "invalid";
+		try {
+			transport.send(FIRST);
+			fail("a rejected result must fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("invalid"));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnreachableClientFails() throws IOException {
+		int port = server.getLocalPort();
+		server.close();
+		new SensuClientSocketTransport("127.0.0.1", port, SensuClientSocketTransport.Protocol.TCP).send(FIRST);
+	}
+
+	@Test
+	public void testUdpSendsOneDatagramPerResult() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			socket.setSoTimeout(2000);
+			SensuClientSocketTransport udp = new SensuClientSocketTransport("127.0.0.1", socket.getLocalPort(),
+					SensuClientSocketTransport.Protocol.UDP);
+			udp.sendBatch(Arrays.asList(FIRST, SECOND));
+
+			DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+			socket.receive(packet);
+			assertEquals("{\"name\":\"first\"}", new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+			socket.receive(packet);
+			assertEquals("{\"name\":\"second\"}", new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+			udp.close();
+		}
+	}
+
+	@Test
+	public void testSharedPerSocket() {
+		assertSame(SensuClientSocketTransport.forClient("localhost", 3030, SensuClientSocketTransport.Protocol.TCP),
+				SensuClientSocketTransport.forClient("localhost", 3030, SensuClientSocketTransport.Protocol.TCP));
+		assertNotSame(SensuClientSocketTransport.forClient("localhost", 3030, SensuClientSocketTransport.Protocol.TCP),
+				SensuClientSocketTransport.forClient("localhost", 3030, SensuClientSocketTransport.Protocol.UDP));
+	}
+
+	/**
+	 * Answers every JSON document like a Sensu client socket does.
+	 */
+	private void serve() {
+		while (!server.isClosed()) {
+			try (Socket socket = server.accept()) {
+				connections.incrementAndGet();
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					received.add(new String(buffer, 0, read, StandardCharsets.UTF_8));
+					if (closeWithoutAnswer) {
+						break;
+					}
+					out.write(answer.getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+					if (closeAfterAnswer) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// closed by the test
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import okhttp3.HttpUrl;
+
+public class SensuGoTransportTest {
+	private static final byte[] EVENT = "{\"check\":{}}".getBytes(StandardCharsets.UTF_8);
+
+	private HttpServer server;
+	private final List<String> paths = new CopyOnWriteArrayList<>();
+	private final List<String> authorizations = new CopyOnWriteArrayList<>();
+	private final List<String> bodies = new CopyOnWriteArrayList<>();
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+	private volatile long delayMillis;
+	private volatile String retryAfter;
+	private SensuGoTransport transport;
+	private ScheduledExecutorService retries;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+		server.createContext("/", exchange -> handle(exchange));
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		retries = Executors.newSingleThreadScheduledExecutor();
+		transport = new SensuGoTransport(url(), "ops", "secret", retries);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		retries.shutdownNow();
+	}
+
+	@Test
+	public void testPostsToNamespacedEventsEndpoint() throws Exception {
+		transport.send(EVENT);
+
+		assertEquals(Arrays.asList("/api/core/v2/namespaces/ops/events"), paths);
+		assertEquals(Arrays.asList("Key secret"), authorizations);
+		assertEquals(Arrays.asList("{\"check\":{}}"), bodies);
+	}
+
+	@Test
+	public void testEventsUrlKeepsBasePath() {
+		HttpUrl backend = HttpUrl.parse("https://sensu.example.com:8080/proxy/");
+		assertEquals("https://sensu.example.com:8080/proxy/api/core/v2/namespaces/default/events",
+				new SensuGoTransport(backend, "default", null, retries).getEventsUrl().toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUrlWithoutScheme() {
+		SensuGoTransport.forBackend("sensu.example.com:8080", "default", null, retries);
+	}
+
+	@Test
+	public void testSharedPerBackend() {
+		String url = url().toString();
+		assertSame(SensuGoTransport.forBackend(url, "ops", null, retries),
+				SensuGoTransport.forBackend(url, "ops", null, retries));
+		assertNotSame(SensuGoTransport.forBackend(url, "ops", null, retries),
+				SensuGoTransport.forBackend(url, "dev", null, retries));
+	}
+
+	@Test
+	public void testRetriesServerErrors() throws Exception {
+		statuses.add(503);
+		statuses.add(500);
+
+		transport.send(EVENT);
+
+		assertEquals(3, paths.size());
+		assertTrue(statuses.isEmpty());
+	}
+
+	@Test
+	public void testHonoursRetryAfter() throws Exception {
+		statuses.add(429);
+		retryAfter = "1";
+
+		long started = System.nanoTime();
+		transport.send(EVENT);
+
+		assertEquals(2, paths.size());
+		assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(1000));
+	}
+
+	@Test
+	public void testClientErrorIsNotRetried() {
+		statuses.add(400);
+
+		try {
+			transport.send(EVENT);
+			fail("expected the event to be rejected");
+		} catch (IOException | TimeoutException e) {
+			assertTrue(e.getMessage().contains("400"));
+		}
+		assertEquals(1, paths.size());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		for (int i = 0; i < SensuGoTransport.MAX_ATTEMPTS; i++) {
+			statuses.add(502);
+		}
+
+		try {
+			transport.send(EVENT);
+			fail("expected the event to fail");
+		} catch (IOException | TimeoutException e) {
+			assertTrue(e.getMessage().contains("502"));
+		}
+		assertEquals(SensuGoTransport.MAX_ATTEMPTS, paths.size());
+	}
+
+	@Test
+	public void testBatchIsPostedConcurrentlyWithinLimit() throws Exception {
+		transport.configure(4, SensuGoTransport.DEFAULT_TIMEOUT);
+		delayMillis = 50;
+		List<byte[]> events = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			events.add(("{\"id\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+		}
+
+		long started = System.nanoTime();
+		transport.sendBatch(events);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+		assertEquals(16, bodies.size());
+		assertTrue(maxInFlight.get() > 1 && maxInFlight.get() <= 4);
+		// four rounds of four, not sixteen round trips one after another
+		assertTrue("took " + elapsed + "ms", elapsed < 16 * 50);
+		assertTrue(clientPorts.size() <= 4);
+	}
+
+	@Test
+	public void testConnectionsAreKeptAlive() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			transport.send(EVENT);
+		}
+
+		assertEquals(5, paths.size());
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testEventRendering() throws Exception {
+		CheckTemplate template = new CheckTemplate(2, "mail,slack", "ops", "graylog");
+		JSONObject event = (JSONObject) new JSONParser().parse(
+				new String(template.renderEvent(" check ", " output ", 1447848420, " client ", "ops"), StandardCharsets.UTF_8));
+
+		JSONObject entity = (JSONObject) event.get("entity");
+		assertEquals("proxy", entity.get("entity_class"));
+		assertEquals("client", ((JSONObject) entity.get("metadata")).get("name"));
+		assertEquals("ops", ((JSONObject) entity.get("metadata")).get("namespace"));
+		JSONObject check = (JSONObject) event.get("check");
+		assertEquals("check", ((JSONObject) check.get("metadata")).get("name"));
+		assertEquals(2L, check.get("status"));
+		assertEquals("output", check.get("output"));
+		assertEquals(1447848420L, check.get("issued"));
+		assertEquals(Arrays.asList("mail", "slack"), (JSONArray) check.get("handlers"));
+		assertEquals(Arrays.asList("ops"), (JSONArray) check.get("subscriptions"));
+	}
+
+	@Test
+	public void testRetryAfterSeconds() {
+		assertEquals(0, SensuGoTransport.retryAfterMillis(null));
+		assertEquals(2000, SensuGoTransport.retryAfterMillis("2"));
+		assertEquals(0, SensuGoTransport.retryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+	}
+
+	private HttpUrl url() {
+		return HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		int current = inFlight.incrementAndGet();
+		maxInFlight.accumulateAndGet(current, Math::max);
+		try {
+			paths.add(exchange.getRequestURI().getPath());
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			if (authorization != null) {
+				authorizations.add(authorization);
+			}
+			String body = read(exchange.getRequestBody());
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+
+			int status = statuses.isEmpty() ? 201 : statuses.remove(0);
+			if (status == 201) {
+				bodies.add(body);
+			}
+			if (status == 429 && retryAfter != null) {
+				exchange.getResponseHeaders().add("Retry-After", retryAfter);
+			}
+			exchange.sendResponseHeaders(status, -1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			inFlight.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
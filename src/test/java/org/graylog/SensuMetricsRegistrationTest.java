@@ -0,0 +1,22 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class SensuMetricsRegistrationTest {
+
+	@Test
+	public void testRegistersSharedMetricsInServerRegistry() {
+		MetricRegistry serverRegistry = new MetricRegistry();
+
+		new SensuMetricsRegistration(serverRegistry);
+		new SensuMetricsRegistration(serverRegistry);
+
+		assertSame(SensuMetrics.shared().getPublishTime(),
+				serverRegistry.getTimers().get(MetricRegistry.name(RabbitMQConnection.class, "publish-time")));
+		assertEquals(SensuMetrics.shared().getMetrics().size(), serverRegistry.getMetrics().size());
+	}
+}
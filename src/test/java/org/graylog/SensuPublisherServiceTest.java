@@ -0,0 +1,120 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SensuPublisherServiceTest {
+	private static final byte[] RESULT = "result".getBytes();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File snapshot;
+	private SensuPublisherService service;
+	private SensuTransport transport;
+
+	@Before
+	public void setUp() {
+		service = new SensuPublisherService();
+		transport = mock(SensuTransport.class);
+		snapshot = new File(folder.getRoot(), "auto-resolve.snapshot");
+		service.setAutoResolveSnapshot(snapshot.getPath());
+		service.startAsync().awaitRunning();
+	}
+
+	@Test
+	public void testShutdownDrainsQueuedResults() throws Exception {
+		doAnswer(invocation -> {
+			Thread.sleep(20);
+			return null;
+		}).when(transport).send(any(byte[].class));
+		AsyncPublisher publisher = service.getAsyncPublisher();
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 1);
+		for (int i = 0; i < 5; i++) {
+			publisher.publish(transport, RESULT);
+		}
+
+		service.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+
+		verify(transport, times(5)).send(RESULT);
+		verify(transport, never()).spool(any(byte[].class));
+	}
+
+	@Test
+	public void testResultsLeftAfterTimeoutAreSpooled() throws Exception {
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			sending.countDown();
+			release.await();
+			return null;
+		}).when(transport).send(any(byte[].class));
+		when(transport.spool(any(byte[].class))).thenReturn(true);
+		service.setShutdownTimeout(0);
+		AsyncPublisher publisher = service.getAsyncPublisher();
+		publisher.configure(10, AsyncPublisher.OverflowPolicy.DROP_OLDEST, 0, 1);
+		try {
+			for (int i = 0; i < 3; i++) {
+				publisher.publish(transport, RESULT);
+			}
+			assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+			service.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+
+			verify(transport, times(2)).spool(RESULT);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testOpenAggregationWindowsAreFlushed() throws Exception {
+		final List<AlertAggregator.Aggregate> emitted = new ArrayList<>();
+		service.getAggregator().add("client", new AlertAggregator.Alert("client", "check", "stream-id", "stream", 2,
+				Collections.<String>emptyList(), aggregate -> emitted.add(aggregate)), 60000);
+
+		service.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+
+		assertEquals(1, emitted.size());
+	}
+
+	@Test
+	public void testPendingResolvesSurviveRestart() throws Exception {
+		Map<String, Object> configuration = new HashMap<>();
+		configuration.put("check_severity", "2");
+		service.getAutoResolver().schedule(service.getAutoResolver().owner(configuration,
+				mock(AutoResolver.Resolution.class)), "stream", "client", "check", 60000);
+
+		service.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+		assertTrue(snapshot.isFile());
+
+		SensuPublisherService restarted = new SensuPublisherService();
+		restarted.setAutoResolveSnapshot(snapshot.getPath());
+		restarted.startAsync().awaitRunning();
+		try {
+			assertEquals(1, restarted.getAutoResolver().getActiveCount());
+		} finally {
+			restarted.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class SensuTopologyTest {
+	private SensuTopology topology;
+	private Channel channel;
+
+	@Before
+	public void setUp() {
+		topology = new SensuTopology();
+		channel = mock(Channel.class);
+	}
+
+	@Test
+	public void testModeIgnoresDefaultLocale() {
+		Locale previous = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			assertEquals(SensuTopology.Mode.PASSIVE, SensuTopology.Mode.fromString("passive"));
+		} finally {
+			Locale.setDefault(previous);
+		}
+	}
+
+	@Test
+	public void testDeclaresOnlyOnce() throws IOException {
+		topology.ensureDeclared(channel);
+		topology.ensureDeclared(channel);
+
+		verify(channel, times(1)).exchangeDeclare("results", "direct", false);
+		verify(channel, times(1)).queueBind("results", "results", "");
+		verify(channel, times(1)).exchangeDeclare("keepalives", "direct", false);
+		assertTrue(topology.isDeclared());
+	}
+
+	@Test
+	public void testPassiveModeOnlyVerifies() throws IOException {
+		topology.setMode(SensuTopology.Mode.PASSIVE);
+		topology.ensureDeclared(channel);
+
+		verify(channel).exchangeDeclarePassive("results");
+		verify(channel).queueDeclarePassive("results");
+		verify(channel, never()).exchangeDeclare(anyString(), anyString(), Mockito.anyBoolean());
+	}
+
+	@Test
+	public void testSkipModeDoesNotTouchTheBroker() throws IOException {
+		topology.setMode(SensuTopology.Mode.SKIP);
+		topology.ensureDeclared(channel);
+
+		Mockito.verifyZeroInteractions(channel);
+	}
+
+	@Test
+	public void testRedeclaresAfterNotFound() throws IOException {
+		topology.ensureDeclared(channel);
+
+		AMQP.Channel.Close close = new AMQP.Channel.Close.Builder().replyCode(AMQP.NOT_FOUND).build();
+		topology.handleChannelShutdown(new ShutdownSignalException(false, false, close, channel));
+		assertFalse(topology.isDeclared());
+
+		topology.ensureDeclared(channel);
+		verify(channel, times(2)).exchangeDeclare("results", "direct", false);
+	}
+
+	@Test
+	public void testKeepsTopologyOnOtherChannelErrors() throws IOException {
+		topology.ensureDeclared(channel);
+
+		AMQP.Channel.Close close = new AMQP.Channel.Close.Builder().replyCode(AMQP.PRECONDITION_FAILED).build();
+		topology.handleChannelShutdown(new ShutdownSignalException(false, false, close, channel));
+
+		assertTrue(topology.isDeclared());
+	}
+}
@@ -0,0 +1,91 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.graylog2.plugin.MessageSummary;
+import org.junit.Test;
+
+public class SourceFanOutTest {
+
+	@Test
+	public void testGroupsMessagesBySource() {
+		List<MessageSummary> messages = messages("a", "b", "a", "c");
+
+		Map<String, List<MessageSummary>> groups = SourceFanOut.groupBySource(messages, 10);
+
+		assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(groups.keySet()));
+		assertEquals(2, groups.get("a").size());
+	}
+
+	@Test
+	public void testSourcesOverLimitAreGroupedTogether() {
+		List<MessageSummary> messages = messages("a", "b", "c", "a", "d");
+
+		Map<String, List<MessageSummary>> groups = SourceFanOut.groupBySource(messages, 2);
+
+		assertEquals(Arrays.asList("a", "b", SourceFanOut.OVERFLOW_CLIENT), new ArrayList<>(groups.keySet()));
+		assertEquals(2, groups.get(SourceFanOut.OVERFLOW_CLIENT).size());
+	}
+
+	@Test
+	public void testSendAllBoundsResultsInFlight() throws InterruptedException {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxSeen = new AtomicInteger();
+		List<byte[]> results = Collections.nCopies(20, new byte[0]);
+
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<Exception> failures = SourceFanOut.sendAll(executor, results, 3, new SourceFanOut.Sender() {
+			@Override
+			public void send(byte[] sensuResult) throws Exception {
+				int current = inFlight.incrementAndGet();
+				maxSeen.set(Math.max(maxSeen.get(), current));
+				Thread.sleep(5);
+				inFlight.decrementAndGet();
+				if (sensuResult.length > 0) {
+					throw new Exception("unexpected");
+				}
+			}
+		});
+
+		assertTrue(failures.isEmpty());
+		assertEquals(0, inFlight.get());
+		assertTrue(maxSeen.get() <= 3);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSendAllReportsShutDownExecutor() throws InterruptedException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		executor.shutdown();
+
+		List<Exception> failures = SourceFanOut.sendAll(executor, Collections.nCopies(3, new byte[0]), 2,
+				new SourceFanOut.Sender() {
+					@Override
+					public void send(byte[] sensuResult) {
+					}
+				});
+
+		assertEquals(3, failures.size());
+	}
+
+	private List<MessageSummary> messages(String... sources) {
+		List<MessageSummary> messages = new ArrayList<>();
+		for (String source : sources) {
+			MessageSummary message = mock(MessageSummary.class);
+			when(message.getSource()).thenReturn(source);
+			messages.add(message);
+		}
+		return messages;
+	}
+}
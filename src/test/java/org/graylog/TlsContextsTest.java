@@ -0,0 +1,160 @@
+package org.graylog;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TlsContextsTest {
+	private static final String PASSWORD = "changeit";
+
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	private static File keyStore;
+	private static File trustStore;
+
+	@BeforeClass
+	public static void createStores() throws Exception {
+		File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+		assumeTrue(keytool.canExecute());
+		keyStore = new File(folder.getRoot(), "broker.p12");
+		trustStore = new File(folder.getRoot(), "trust.p12");
+		File certificate = new File(folder.getRoot(), "broker.crt");
+
+		keytool(keytool, "-genkeypair", "-alias", "broker", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+				"-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.getPath(), "-storepass", PASSWORD,
+				"-keypass", PASSWORD);
+		keytool(keytool, "-exportcert", "-alias", "broker", "-keystore", keyStore.getPath(), "-storepass", PASSWORD,
+				"-file", certificate.getPath());
+		keytool(keytool, "-importcert", "-noprompt", "-alias", "broker", "-file", certificate.getPath(), "-storetype",
+				"PKCS12", "-keystore", trustStore.getPath(), "-storepass", PASSWORD);
+	}
+
+	@Test
+	public void testContextIsBuiltOncePerStores() throws Exception {
+		SSLContext context = TlsContexts.forStores(null, trustStore.getPath(), PASSWORD, null, null);
+
+		assertSame(context, TlsContexts.forStores(TlsContexts.DEFAULT_PROTOCOL, trustStore.getPath(), PASSWORD, null, null));
+		assertNotSame(context, TlsContexts.forStores(null, null, null, null, null));
+		assertEquals(TlsContexts.DEFAULT_PROTOCOL, context.getProtocol());
+		assertTrue(context.getClientSessionContext().getSessionCacheSize() > 0);
+	}
+
+	@Test
+	public void testChangedStoreReplacesContext() throws Exception {
+		SSLContext context = TlsContexts.forStores(null, trustStore.getPath(), PASSWORD, null, null);
+		int count = TlsContexts.getContextCount();
+
+		assertTrue(trustStore.setLastModified(trustStore.lastModified() + 2000));
+		SSLContext reloaded = TlsContexts.forStores(null, trustStore.getPath(), PASSWORD, null, null);
+
+		assertNotSame(context, reloaded);
+		assertSame(reloaded, TlsContexts.forStores(null, trustStore.getPath(), PASSWORD, null, null));
+		assertEquals(count, TlsContexts.getContextCount());
+	}
+
+	@Test
+	public void testTruststoreVerifiesHost() throws Exception {
+		SSLContext verifying = TlsContexts.forStores(null, trustStore.getPath(), PASSWORD, null, null);
+		SSLContext trustAll = TlsContexts.forStores(null, null, null, null, null);
+
+		try (SSLSocket socket = (SSLSocket) verifying.getSocketFactory().createSocket()) {
+			TlsContexts.socketConfigurator(verifying).configure(socket);
+			assertEquals("HTTPS", socket.getSSLParameters().getEndpointIdentificationAlgorithm());
+		}
+		try (SSLSocket socket = (SSLSocket) trustAll.getSocketFactory().createSocket()) {
+			TlsContexts.socketConfigurator(trustAll).configure(socket);
+			assertNull(socket.getSSLParameters().getEndpointIdentificationAlgorithm());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongPasswordFails() throws Exception {
+		TlsContexts.forStores(null, trustStore.getPath(), "wrong", null, null);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingStoreFails() throws Exception {
+		TlsContexts.forStores(null, new File(folder.getRoot(), "missing.jks").getPath(), PASSWORD, null, null);
+	}
+
+	@Test
+	public void testReconnectResumesSession() throws Exception {
+		SSLContext brokerContext = TlsContexts.forStores(null, null, null, keyStore.getPath(), PASSWORD);
+		final SSLServerSocket server = (SSLServerSocket) brokerContext.getServerSocketFactory().createServerSocket(0, 50,
+				InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!server.isClosed()) {
+					try (Socket socket = server.accept()) {
+						InputStream in = socket.getInputStream();
+						in.read();
+						socket.getOutputStream().write(1);
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		SSLContext context = TlsContexts.forStores(null, trustStore.getPath(), PASSWORD, null, null);
+		SensuMetrics metrics = SensuMetrics.shared();
+		long handshakes = metrics.getTlsHandshakeTime().getCount();
+		long resumed = metrics.getTlsSessionsResumed().getCount();
+		try {
+			for (int i = 0; i < 3; i++) {
+				try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket()) {
+					TlsContexts.handshakeMetrics().configure(socket);
+					socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 5000);
+					OutputStream out = socket.getOutputStream();
+					out.write(1);
+					out.flush();
+					assertEquals(1, socket.getInputStream().read());
+					assertTrue(socket.getTcpNoDelay());
+				}
+			}
+		} finally {
+			server.close();
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (metrics.getTlsHandshakeTime().getCount() < handshakes + 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(handshakes + 3, metrics.getTlsHandshakeTime().getCount());
+		assertEquals(resumed + 2, metrics.getTlsSessionsResumed().getCount());
+	}
+
+	private static void keytool(File keytool, String... args) throws Exception {
+		List<String> command = new ArrayList<>(Arrays.asList(args));
+		command.add(0, keytool.getPath());
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		InputStream output = process.getInputStream();
+		while (output.read() != -1) {
+			// keytool blocks on a full pipe
+		}
+		assertEquals(0, process.waitFor());
+	}
+}